@@ -110,7 +110,8 @@ public interface ChainController<M extends ChainMessage> {
 
   /**
    * fired when otherwise uncaught exceptions interrupt the execution of the
-   * monitor thread.
+   * monitor thread. Also fired, without handler, when the spill file or the
+   * parking store fails, or a parked message cannot be started again.
    * 
    * @param e
    *        the exception thrown.
@@ -1,18 +1,31 @@
 package com.gmail.gtassone.util.chain;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.gmail.gtassone.util.concurrent.MonitorDispatchThread;
 import com.gmail.gtassone.util.concurrent.MonitorDispatchThread.MonitoredAction;
+import com.gmail.gtassone.util.concurrent.TimeoutWheel;
 import com.gmail.gtassone.util.chain.ChainHandler.ChainHandlerResult;
 
 /**
@@ -28,6 +41,11 @@ import com.gmail.gtassone.util.chain.ChainHandler.ChainHandlerResult;
  * 'handled', indicating that no further handling should be performed.
  * {@link ChainHandler$ChainHandlerResult.PASS} indicates that the ChainManager
  * should pass control on to the next ChainHandler in the chain.
+ * Handlers implementing {@link SelectiveChainHandler} are only offered the
+ * classes of message they accept; the list of handlers for each message class
+ * is computed when the class is first seen and cached.
+ * Independent handlers can be grouped in a {@link ParallelStage}, which runs
+ * them concurrently and joins their results into one.
  * <p>
  * ChainManager implementations can provide a submitResult(ChainMessage) method.
  * This allows data results to be provided by ChainHandlers and then managed by
@@ -36,6 +54,47 @@ import com.gmail.gtassone.util.chain.ChainHandler.ChainHandlerResult;
  * instance, an implementation might have all Handlers return false from
  * execute(), and let the ChainManager implementation decide when to terminate
  * the chain thread based on result() data.
+ * <p>
+ * Messages run on a cached pool of platform threads unless an Executor is
+ * supplied. For handlers which mostly block on I/O, an executor starting a
+ * virtual thread per message lets very many messages be in flight at once:
+ * 
+ * <pre>
+ * new MyChainManager(handlers,
+ *     ThreadFactories.threadPerTask(ThreadFactories.preferVirtual(&quot;chain-&quot;)));
+ * </pre>
+ * 
+ * Dispatch threads, used when {@link #getTimeoutWheel()} returns null, come
+ * from {@link #getDispatchThreadFactory()}.
+ * <p>
+ * A subclass returning a positive {@link #getWorkerPoolSize()} switches to a
+ * pooled engine instead: a fixed set of long-lived worker threads takes
+ * messages from a queue and walks each through the handler list, with the
+ * same results, controller hooks and per-handler timeouts, but without
+ * creating a ChainThread or starting a thread per message. Handler
+ * deadlines are registered with the TimeoutWheel, and
+ * {@link ChainController#handleTimeout} runs on its timer thread. Workers are
+ * daemon threads created by the dispatch thread factory, and are stopped by
+ * {@link #shutdown()}.
+ * <p>
+ * Messages are accepted without limit unless {@link #getIntakeCapacity()}
+ * bounds the number outstanding. A message arriving at a full intake then
+ * blocks the submitter, is rejected, displaces the oldest message not started
+ * yet, or is spilled to a file, according to {@link #getOverflowPolicy()}.
+ * Messages left out are reported to
+ * {@link #handleRejectedMessage(ChainMessage)}, and the queue
+ * depth and overflow counts are available from {@link #getIntakeMetrics()}.
+ * <p>
+ * A message for which a handler returns
+ * {@link ChainHandler$ChainHandlerResult.WAIT} is parked with the position of
+ * the next handler, holding no thread, until {@link #resume(ChainMessage)} or
+ * the timer set by {@link #getParkTimeout()} or
+ * {@link #resumeAfter(ChainMessage, long, TimeUnit)} continues it from that
+ * handler; the handlers already passed are not run again. Each resumed run
+ * fires {@link ChainController#start} and {@link ChainController#finish}
+ * like a new message. With a {@link #getParkingStore()}, parked messages are
+ * also recorded durably and can be reloaded after a restart with
+ * {@link #restoreParkedMessages()}.
  * 
  * @param <M>
  *        message type
@@ -58,7 +117,32 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
 
   private final boolean defaultController;
 
-  private final Map<ChainMessage, ChainThread> messageThreadMap = new ConcurrentHashMap<ChainMessage, ChainThread>();
+  private final ConcurrentMap<ChainMessage, MessageExecution<M>> messageThreadMap = new ConcurrentHashMap<ChainMessage, MessageExecution<M>>();
+
+  private final Object intakeLock = new Object();
+
+  private final Set<MessageExecution<M>> intake = Collections
+      .newSetFromMap(new LinkedHashMap<MessageExecution<M>, Boolean>());
+
+  private int intakeWaiters;
+
+  private int pendingSpills;
+
+  private final IntakeMetrics intakeMetrics = new IntakeMetrics();
+
+  private final ConcurrentMap<Class<?>, Route> routes = new ConcurrentHashMap<Class<?>, Route>();
+
+  private final Object parkLock = new Object();
+
+  private final Map<ChainMessage, Parking> parked = new HashMap<ChainMessage, Parking>();
+
+  private final Map<ChainMessage, Long> pendingResumes = new ConcurrentHashMap<ChainMessage, Long>();
+
+  private final Object poolLock = new Object();
+
+  private WorkerPool workerPool;
+
+  private volatile boolean shutdown;
 
   /**
    * Constructor sets the list of ChainHandlers. Uses default
@@ -177,6 +261,138 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
    */
   public abstract int getHandlerTimeout();
 
+  /**
+   * The wheel on which ChainThreads register handler deadlines. By default
+   * there is none, and each message gets a dedicated monitor thread plus a
+   * dispatch thread. With a wheel, such as {@link TimeoutWheel#getShared()},
+   * each message is processed on a single executor thread, and
+   * {@link ChainController#handleTimeout} runs on the wheel's timer thread, so
+   * it must be brief. The pooled engine and parked message timers use the
+   * shared wheel when this returns null.
+   * 
+   * @return the wheel, or null.
+   */
+  protected TimeoutWheel getTimeoutWheel() {
+    return null;
+  }
+
+  /**
+   * The factory for the dispatch threads of ChainThreads running without a
+   * TimeoutWheel.
+   * 
+   * @return the factory, or null for platform threads.
+   */
+  protected ThreadFactory getDispatchThreadFactory() {
+    return null;
+  }
+
+  /**
+   * The number of long-lived workers processing messages. Zero, the default,
+   * runs each message on its own ChainThread via the executor.
+   * 
+   * @return the pool size.
+   */
+  protected int getWorkerPoolSize() {
+    return 0;
+  }
+
+  /**
+   * The most messages accepted and not finished at once; a message arriving
+   * while that many are outstanding is handled by {@link #getOverflowPolicy()}.
+   * Without a worker pool every outstanding message holds a thread, so the
+   * capacity also bounds the threads in use. Zero, the default, accepts every
+   * message.
+   * <p>
+   * With {@link OverflowPolicy#BLOCK}, a handler submitting messages to its
+   * own full manager waits for itself; use another policy in that case.
+   * 
+   * @return the capacity.
+   */
+  protected int getIntakeCapacity() {
+    return 0;
+  }
+
+  /**
+   * What to do with a message arriving while the intake is full.
+   * 
+   * @return the policy, {@link OverflowPolicy#BLOCK} by default.
+   */
+  protected OverflowPolicy getOverflowPolicy() {
+    return OverflowPolicy.BLOCK;
+  }
+
+  /**
+   * The file holding messages shed under {@link OverflowPolicy#SPILL}.
+   * Messages found in it, such as those left by a previous run, are started
+   * as the intake has room.
+   * 
+   * @return the spill file, or null for none.
+   */
+  protected MessageSpillFile getSpillFile() {
+    return null;
+  }
+
+  /**
+   * Called when a message will not be processed because the intake is full:
+   * rejected on arrival, dropped to make room for a newer message, or failing
+   * to spill. Runs on the submitting thread, or on the thread finishing a
+   * message when a spilled message cannot be started. Does nothing by
+   * default.
+   * 
+   * @param msg
+   *        the message left out.
+   */
+  protected void handleRejectedMessage(M msg) {
+  }
+
+  /**
+   * The time a parked message waits before it is resumed by timer, unless
+   * resumed earlier or given another delay with
+   * {@link #resumeAfter(ChainMessage, long, TimeUnit)}.
+   * 
+   * @return milliseconds, 0 by default for no timer.
+   */
+  protected long getParkTimeout() {
+    return 0;
+  }
+
+  /**
+   * The store recording parked messages durably.
+   * 
+   * @return the store, or null to keep parked messages in memory only.
+   */
+  protected ParkingStore getParkingStore() {
+    return null;
+  }
+
+  /**
+   * Stops the pooled workers once the messages already submitted have been
+   * processed; later messages are rejected. Has no effect without a worker
+   * pool.
+   */
+  public final void shutdown() {
+    synchronized (poolLock) {
+      if (!shutdown) {
+        shutdown = true;
+        if (workerPool != null) {
+          workerPool.shutdown();
+        }
+      }
+    }
+  }
+
+  private void enqueue(MessageRun run, int poolSize) {
+    synchronized (poolLock) {
+      if (shutdown) {
+        throw new RejectedExecutionException("ChainManager has been shut down");
+      }
+      if (workerPool == null) {
+        workerPool = new WorkerPool(poolSize);
+      }
+      workerPool.execute(run);
+    }
+  }
+
   /**
    * @param toCheck
    *        The list of chain handlers to check.
@@ -202,17 +418,532 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
 
   /**
    * The main execution method to call for each ChainMessage. This method starts
-   * a new MessageChainThread to handle the submitted message.
+   * a new MessageChainThread to handle the submitted message, or queues it for
+   * the worker pool.
    * 
    * @param msg
    *        the message to handle.
    */
   public final void handleChainMessage(M msg) {
-    InvokeHandlerTask invokeHandlerTask = new InvokeHandlerTask(msg);
-    ChainThread msgThread = new ChainThread(invokeHandlerTask);
-    messageThreadMap.put(msg, msgThread);
+    MessageExecution<M> execution = createExecution(msg, 0);
+    if (admit(execution)) {
+      launch(execution);
+    }
+    drainSpill();
+  }
+
+  private MessageExecution<M> createExecution(M msg, int position) {
+    Route route = routeFor(msg.getClass());
+    if (getWorkerPoolSize() > 0) {
+      return new MessageRun(msg, route, position);
+    }
+    return new ChainThread(route.handlers.subList(route.firstFrom(position),
+        route.handlers.size()), new InvokeHandlerTask(msg));
+  }
+
+  /**
+   * The handlers offered the messages of a class, in chain order: every
+   * handler except the {@link SelectiveChainHandler}s which do not accept the
+   * class.
+   * 
+   * @param messageClass
+   *        the concrete class of a message.
+   * @return an unmodifiable list.
+   */
+  public final List<ChainHandler<M>> getRoute(Class<? extends M> messageClass) {
+    return routeFor(messageClass).handlers;
+  }
+
+  private Route routeFor(Class<? extends ChainMessage> messageClass) {
+    Route route = routes.get(messageClass);
+    if (route == null) {
+      route = new Route(messageClass);
+      Route existing = routes.putIfAbsent(messageClass, route);
+      if (existing != null) {
+        route = existing;
+      }
+    }
+    return route;
+  }
+
+  /**
+   * The handlers accepting one message class, with their indices in the
+   * handler list, which remain the positions used for parking.
+   */
+  private final class Route {
+
+    private final int[] indices;
+
+    private final List<ChainHandler<M>> handlers;
+
+    Route(Class<? extends ChainMessage> messageClass) {
+      List<ChainHandler<M>> accepted = new ArrayList<ChainHandler<M>>();
+      int[] index = new int[handlerList.size()];
+      for (int i = 0; i < handlerList.size(); i++) {
+        ChainHandler<M> h = handlerList.get(i);
+        if (!(h instanceof SelectiveChainHandler)
+            || ((SelectiveChainHandler<M>) h).accepts(messageClass)) {
+          index[accepted.size()] = i;
+          accepted.add(h);
+        }
+      }
+      this.indices = Arrays.copyOf(index, accepted.size());
+      this.handlers = Collections.unmodifiableList(accepted);
+    }
+
+    /**
+     * @return the route step of the first handler at or after the position.
+     */
+    int firstFrom(int position) {
+      int k = Arrays.binarySearch(indices, position);
+      return k >= 0 ? k : -k - 1;
+    }
+  }
+
+  private void launch(MessageExecution<M> execution) {
+    M msg = execution.getMessage();
+    messageThreadMap.put(msg, execution);
     controller.start(msg);
-    executor.execute(msgThread);
+    try {
+      execution.launch();
+    } catch (RejectedExecutionException e) {
+      messageThreadMap.remove(msg, execution);
+      release(execution);
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the intake capacity and overflow policy to a new message.
+   * 
+   * @param execution
+   *        the processing of the message.
+   * @return true if the message was accepted and should be launched.
+   */
+  private boolean admit(MessageExecution<M> execution) {
+    M msg = execution.getMessage();
+    int capacity = getIntakeCapacity();
+    MessageExecution<M> dropped = null;
+    boolean rejected = false;
+    MessageSpillFile spill = null;
+    synchronized (intakeLock) {
+      if (capacity > 0) {
+        OverflowPolicy policy = getOverflowPolicy();
+        MessageSpillFile spillFile = getSpillFile();
+        if (intake.size() >= capacity
+            || (policy == OverflowPolicy.SPILL && spillFile != null
+                && (pendingSpills > 0 || spillFile.size() > 0))) {
+          switch (policy) {
+            case BLOCK:
+              intakeMetrics.blocked();
+              intakeWaiters++;
+              try {
+                while (intake.size() >= capacity) {
+                  intakeLock.wait();
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected = true;
+              } finally {
+                intakeWaiters--;
+              }
+              break;
+            case DROP_OLDEST:
+              dropped = dropOldest();
+              rejected = dropped == null;
+              break;
+            case SPILL:
+              if (spillFile != null) {
+                // written once the lock is released.
+                pendingSpills++;
+                spill = spillFile;
+              } else {
+                rejected = true;
+              }
+              break;
+            default:
+              rejected = true;
+          }
+        }
+      }
+      if (!rejected && spill == null) {
+        intake.add(execution);
+        intakeMetrics.accepted();
+        intakeMetrics.depth(intake.size());
+      }
+    }
+    if (dropped != null) {
+      messageThreadMap.remove(dropped.getMessage(), dropped);
+      handleRejectedMessage(dropped.getMessage());
+    }
+    if (spill != null) {
+      rejected = !spill(spill, msg);
+    }
+    if (rejected) {
+      intakeMetrics.rejected();
+      handleRejectedMessage(msg);
+    }
+    return !rejected && spill == null;
+  }
+
+  /**
+   * removes the oldest accepted message not started yet; called holding the
+   * intake lock.
+   */
+  private MessageExecution<M> dropOldest() {
+    Iterator<MessageExecution<M>> it = intake.iterator();
+    while (it.hasNext()) {
+      MessageExecution<M> e = it.next();
+      if (e.discard()) {
+        it.remove();
+        intakeMetrics.dropped();
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * appends a message to the spill file, outside the intake lock. Until it is
+   * written, later messages are spilled behind it, and the intake may have
+   * emptied meanwhile.
+   */
+  private boolean spill(MessageSpillFile spill, M msg) {
+    boolean written;
+    try {
+      spill.append(msg);
+      written = true;
+    } catch (IOException e) {
+      reportFailure(e, msg);
+      written = false;
+    }
+    synchronized (intakeLock) {
+      pendingSpills--;
+      if (written) {
+        intakeMetrics.spilled();
+        intakeMetrics.spillDepth(spill.size());
+      }
+    }
+    if (written) {
+      drainSpill();
+    }
+    return written;
+  }
+
+  /**
+   * Ends the intake accounting of a finished or unlaunched execution, waking
+   * a blocked submitter and taking back spilled messages.
+   */
+  private void release(MessageExecution<M> execution) {
+    synchronized (intakeLock) {
+      if (!intake.remove(execution)) {
+        return;
+      }
+      intakeMetrics.depth(intake.size());
+      if (intakeWaiters > 0) {
+        intakeLock.notifyAll();
+      }
+    }
+    drainSpill();
+  }
+
+  /**
+   * launches spilled messages while the intake has room.
+   */
+  @SuppressWarnings("unchecked")
+  private void drainSpill() {
+    MessageSpillFile spill = getSpillFile();
+    if (spill == null) {
+      return;
+    }
+    while (!shutdown) {
+      MessageExecution<M> execution;
+      synchronized (intakeLock) {
+        int capacity = getIntakeCapacity();
+        if (spill.size() == 0 || (capacity > 0 && intake.size() >= capacity)) {
+          return;
+        }
+        M msg;
+        try {
+          msg = (M) spill.poll();
+        } catch (IOException e) {
+          reportFailure(e, null);
+          return;
+        }
+        intakeMetrics.spillDepth(spill.size());
+        if (msg == null) {
+          return;
+        }
+        execution = createExecution(msg, 0);
+        intake.add(execution);
+        intakeMetrics.accepted();
+        intakeMetrics.depth(intake.size());
+      }
+      try {
+        launch(execution);
+      } catch (RejectedExecutionException e) {
+        handleRejectedMessage(execution.getMessage());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Continues a parked message from the handler after the one which returned
+   * WAIT. A message still being processed is resumed as soon as it parks.
+   * 
+   * @param msg
+   *        the message.
+   * @return false if the message is neither parked nor being processed.
+   */
+  public final boolean resume(M msg) {
+    return resumeAfter(msg, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sets the timer resuming a parked message, replacing any earlier one. For
+   * a message still being processed, the timer starts when it parks.
+   * 
+   * @param msg
+   *        the message.
+   * @param delay
+   *        the time until the message is resumed; 0 resumes it now.
+   * @param unit
+   *        the unit of delay.
+   * @return false if the message is neither parked nor being processed.
+   */
+  public final boolean resumeAfter(M msg, long delay, TimeUnit unit) {
+    long millis = Math.max(0, unit.toMillis(delay));
+    Parking parking;
+    synchronized (parkLock) {
+      parking = parked.get(msg);
+      if (parking == null) {
+        if (!messageThreadMap.containsKey(msg)) {
+          return false;
+        }
+        pendingResumes.put(msg, millis);
+        return true;
+      }
+      unpark(parking);
+      if (millis > 0) {
+        ParkedMessage p = parking.parked;
+        park(new ParkedMessage(msg, p.getPosition(), p.getParkedAt(),
+            System.currentTimeMillis() + millis), true);
+        return true;
+      }
+    }
+    relaunch(parking.parked);
+    return true;
+  }
+
+  /**
+   * @param msg
+   *        the message.
+   * @return true if the message is parked.
+   */
+  public final boolean isParked(M msg) {
+    synchronized (parkLock) {
+      return parked.containsKey(msg);
+    }
+  }
+
+  /**
+   * The messages currently parked.
+   * 
+   * @return a snapshot.
+   */
+  public final List<ParkedMessage> getParkedMessages() {
+    List<ParkedMessage> list = new ArrayList<ParkedMessage>();
+    synchronized (parkLock) {
+      for (Parking p : parked.values()) {
+        list.add(p.parked);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Parks again the messages the parking store holds from previous runs,
+   * restarting their timers. Messages whose timer expired while the process
+   * was down are resumed.
+   * 
+   * @return the number of messages restored.
+   */
+  public final int restoreParkedMessages() {
+    ParkingStore store = getParkingStore();
+    if (store == null) {
+      return 0;
+    }
+    int count = 0;
+    for (ParkedMessage p : store.restore()) {
+      synchronized (parkLock) {
+        park(p, false);
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Parks a message whose handler returned WAIT, or resumes it at once if a
+   * resume was requested while it was processed.
+   */
+  private void parkWaiting(MessageExecution<M> execution) {
+    M msg = execution.getMessage();
+    long now = System.currentTimeMillis();
+    ParkedMessage p;
+    synchronized (parkLock) {
+      Long pending = pendingResumes.remove(msg);
+      long delay = pending != null ? pending.longValue() : getParkTimeout();
+      p = new ParkedMessage(msg, execution.getResumePosition(), now,
+          delay > 0 ? now + delay : 0);
+      if (pending == null || delay > 0) {
+        park(p, true);
+        return;
+      }
+    }
+    try {
+      relaunch(p);
+    } catch (RejectedExecutionException e) {
+      reportFailure(e, msg);
+    }
+  }
+
+  /**
+   * records and times a parked message; called holding the park lock.
+   */
+  private void park(ParkedMessage p, boolean store) {
+    final Parking parking = new Parking(p);
+    parked.put(p.getMessage(), parking);
+    ParkingStore parkingStore = getParkingStore();
+    if (store && parkingStore != null) {
+      try {
+        parkingStore.parked(p);
+      } catch (IOException e) {
+        reportFailure(e, p.getMessage());
+      }
+    }
+    if (p.getResumeAt() > 0) {
+      TimeoutWheel wheel = getTimeoutWheel();
+      if (wheel == null) {
+        wheel = TimeoutWheel.getShared();
+      }
+      parking.timer = wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timerExpired(parking);
+        }
+      }, Math.max(0, p.getResumeAt() - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * forgets a parked message; called holding the park lock.
+   */
+  private void unpark(Parking parking) {
+    parked.remove(parking.parked.getMessage());
+    if (parking.timer != null) {
+      parking.timer.cancel();
+    }
+    ParkingStore store = getParkingStore();
+    if (store != null) {
+      try {
+        store.resumed(parking.parked);
+      } catch (IOException e) {
+        reportFailure(e, parking.parked.getMessage());
+      }
+    }
+  }
+
+  private void timerExpired(Parking parking) {
+    synchronized (parkLock) {
+      if (parked.get(parking.parked.getMessage()) != parking) {
+        return;
+      }
+      unpark(parking);
+    }
+    try {
+      relaunch(parking.parked);
+    } catch (RejectedExecutionException e) {
+      reportFailure(e, parking.parked.getMessage());
+    }
+  }
+
+  /**
+   * reports a failure of the spill file, the parking store or a relaunch to
+   * the controller, without handler.
+   */
+  @SuppressWarnings("unchecked")
+  private void reportFailure(Exception e, ChainMessage msg) {
+    controller.handleMonitorException(e, (M) msg, null);
+  }
+
+  /**
+   * starts a parked message from its position, outside the overflow policy.
+   * A message which cannot be started is parked again, without timer.
+   */
+  @SuppressWarnings("unchecked")
+  private void relaunch(ParkedMessage p) {
+    MessageExecution<M> execution = createExecution((M) p.getMessage(),
+        p.getPosition());
+    synchronized (intakeLock) {
+      intake.add(execution);
+      intakeMetrics.accepted();
+      intakeMetrics.depth(intake.size());
+    }
+    try {
+      launch(execution);
+    } catch (RejectedExecutionException e) {
+      synchronized (parkLock) {
+        park(new ParkedMessage(p.getMessage(), p.getPosition(),
+            p.getParkedAt(), 0), true);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Ends the processing of a message, parking it if a handler returned WAIT.
+   * Otherwise a resume requested meanwhile is dropped together with the
+   * execution, under the park lock, so that it cannot outlive the execution
+   * and apply to a later run of an equal message.
+   */
+  private void processed(MessageExecution<M> execution, boolean waiting) {
+    M msg = execution.getMessage();
+    if (waiting) {
+      parkWaiting(execution);
+      messageThreadMap.remove(msg, execution);
+    } else {
+      synchronized (parkLock) {
+        pendingResumes.remove(msg);
+        messageThreadMap.remove(msg, execution);
+      }
+    }
+    release(execution);
+  }
+
+  /**
+   * A parked message and its resume timer.
+   */
+  private static final class Parking {
+
+    private final ParkedMessage parked;
+
+    private TimeoutWheel.Timeout timer;
+
+    Parking(ParkedMessage parked) {
+      this.parked = parked;
+    }
+  }
+
+  /**
+   * Queue depth and overflow counters of the intake.
+   * 
+   * @return the metrics.
+   */
+  public final IntakeMetrics getIntakeMetrics() {
+    return intakeMetrics;
   }
 
   /**
@@ -222,7 +953,7 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
    *        The message.
    */
   public final void terminateMessageHandling(M msg) {
-    ChainThread thread = messageThreadMap.get(msg);
+    MessageExecution<M> thread = messageThreadMap.get(msg);
     if (thread == null) {
       throw new NullPointerException(
           "Could not find thread responsible for handling given message.");
@@ -239,7 +970,7 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
    *        The message.
    */
   public final void interruptMessageHandling(M msg) {
-    ChainThread thread = messageThreadMap.get(msg);
+    MessageExecution<M> thread = messageThreadMap.get(msg);
     if (thread == null) {
       throw new NullPointerException(
           "Could not find thread responsible for handling given message.");
@@ -257,7 +988,7 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
    *        How the set the message's handled flag.
    */
   public final void setMessageHandled(M msg, boolean isHandled) {
-    ChainThread thread = messageThreadMap.get(msg);
+    MessageExecution<M> thread = messageThreadMap.get(msg);
     if (thread == null) {
       throw new NullPointerException(
           "Could not find thread responsible for handling given message.");
@@ -350,32 +1081,329 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
     public void execute(ChainHandler<M> nextHandler)
         throws Exception {
 
-      ChainHandlerResult result = nextHandler.execute(message);
-      switch (result) {
-        case HANDLED:
-          if (!controller.handleHandledMessage(message)) {
-            thread.isMessageHandled = true;
-            thread.terminateAfterThisTask();
+      applyResult(nextHandler.execute(message), message, nextHandler, thread);
+    }
+  }
+
+  /**
+   * Acts on the result of a handler.
+   * 
+   * @param result
+   *        the result.
+   * @param message
+   *        the message handled.
+   * @param handler
+   *        the handler.
+   * @param execution
+   *        the processing of the message.
+   */
+  private void applyResult(ChainHandlerResult result, M message,
+      ChainHandler<M> handler, MessageExecution<?> execution) {
+    switch (result) {
+      case HANDLED:
+        if (!controller.handleHandledMessage(message)) {
+          execution.setMessageHandled(true);
+          execution.terminateAfterThisTask();
+        }
+        break;
+      case FAILED:
+        if (!controller.handleReportedFailure(message, handler)) {
+          execution.terminateAfterThisTask();
+        }
+        break;
+      case WAIT:
+        execution.setMessageWaiting(true);
+        execution.terminateAfterThisTask();
+        break;
+      case PASS:
+        // handler returned PASS
+        // pass control to the next Handler with no complaints
+        break;
+      default:
+        // handler didn't behave. complain and then treat like PASS
+        System.err
+            .println("ChainHandler did not respond to execute in a valid format! Treating response like PASS.");
+
+    }
+  }
+
+  /**
+   * The processing of one message, by a ChainThread or by a pooled worker.
+   * 
+   * @param <N>
+   *        message type.
+   */
+  private interface MessageExecution<N extends ChainMessage> {
+
+    N getMessage();
+
+    /**
+     * @return true if processing was prevented; false if it has started.
+     */
+    boolean discard();
+
+    /**
+     * hands the execution to its executor or the worker pool.
+     */
+    void launch();
+
+    /**
+     * @return the index in the handler list of the handler after the last
+     *         one run.
+     */
+    int getResumePosition();
+
+    void terminateAfterThisTask();
+
+    void interruptMonitoredTask();
+
+    void setMessageHandled(boolean isHandled);
+
+    void setMessageWaiting(boolean isWaiting);
+
+    ChainHandler<N> getCurrentObject();
+  }
+
+  /**
+   * The processing of one message by the worker pool: walks the route of the
+   * message from its start position, with the semantics of a ChainThread
+   * running inline.
+   * 
+   * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+   * @version $Revision$
+   */
+  private final class MessageRun implements Runnable, MessageExecution<M> {
+
+    private final M message;
+
+    private final Route route;
+
+    private int step;
+
+    private volatile int position;
+
+    private volatile ChainHandler<M> current;
+
+    private volatile Thread runner;
+
+    private volatile boolean terminate;
+
+    private volatile boolean isMessageHandled;
+
+    private volatile boolean isMessageWaiting;
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    MessageRun(M message, Route route, int position) {
+      this.message = message;
+      this.route = route;
+      this.position = position;
+      this.step = route.firstFrom(position);
+    }
+
+    @Override
+    public int getResumePosition() {
+      return position;
+    }
+
+    @Override
+    public M getMessage() {
+      return message;
+    }
+
+    @Override
+    public boolean discard() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    @Override
+    public void launch() {
+      enqueue(this, getWorkerPoolSize());
+    }
+
+    @Override
+    public void run() {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      runner = Thread.currentThread();
+      try {
+        while (!terminate && step < route.indices.length) {
+          position = route.indices[step] + 1;
+          ChainHandler<M> handler = route.handlers.get(step++);
+          current = handler;
+          if (handler == null) {
+            controller.handleNullObject(message);
+            continue;
           }
-          break;
-        case FAILED:
-          if (!controller.handleReportedFailure(message, nextHandler)) {
-            thread.terminateAfterThisTask();
+          invoke(handler);
+        }
+      } catch (RuntimeException e) {
+        controller.handleMonitorException(e, message, current);
+      } finally {
+        runner = null;
+        Thread.interrupted();
+        controller.finish(message, current);
+        if (!isMessageHandled && !isMessageWaiting) {
+          controller.handleUnhandledMessage(message);
+        }
+        processed(this, isMessageWaiting);
+      }
+    }
+
+    private void invoke(ChainHandler<M> handler) {
+      controller.handleStartTask(message, handler);
+      HandlerDeadline deadline = new HandlerDeadline(handler);
+      TimeoutWheel wheel = getTimeoutWheel();
+      if (wheel == null) {
+        wheel = TimeoutWheel.getShared();
+      }
+      TimeoutWheel.Timeout timeout = wheel.schedule(deadline,
+          getHandlerTimeout(), TimeUnit.MILLISECONDS);
+      Thread.interrupted();
+      try {
+        applyResult(handler.execute(message), message, handler, this);
+        deadline.finish();
+        controller.handleTaskCompleted(message, handler);
+      } catch (InterruptedException e) {
+        deadline.finish();
+        controller.handleInterruptedTask(e, message, handler);
+      } catch (Exception e) {
+        deadline.finish();
+        controller.handleDispatchException(e, message, handler);
+      } finally {
+        timeout.cancel();
+        Thread.interrupted();
+      }
+    }
+
+    @Override
+    public void terminateAfterThisTask() {
+      terminate = true;
+    }
+
+    @Override
+    public void interruptMonitoredTask() {
+      Thread t = runner;
+      if (t != null) {
+        t.interrupt();
+      }
+    }
+
+    @Override
+    public void setMessageHandled(boolean isHandled) {
+      this.isMessageHandled = isHandled;
+    }
+
+    @Override
+    public void setMessageWaiting(boolean isWaiting) {
+      this.isMessageWaiting = isWaiting;
+    }
+
+    @Override
+    public ChainHandler<M> getCurrentObject() {
+      return current;
+    }
+
+    /**
+     * The deadline of one handler execution. handleTimeout fires only if the
+     * timer finishes before the handler; a handler returning late is still
+     * followed by handleTaskCompleted, as on a ChainThread.
+     */
+    private final class HandlerDeadline implements Runnable {
+
+      private final ChainHandler<M> handler;
+
+      private boolean finished;
+
+      HandlerDeadline(ChainHandler<M> handler) {
+        this.handler = handler;
+      }
+
+      @Override
+      public void run() {
+        synchronized (this) {
+          if (finished) {
+            return;
           }
-          break;
-        case WAIT:
-          thread.isMessageWaiting = true;
-          thread.terminateAfterThisTask();
-          break;
-        case PASS:
-          // handler returned PASS
-          // pass control to the next Handler with no complaints
-          break;
-        default:
-          // handler didn't behave. complain and then treat like PASS
-          System.err
-              .println("ChainHandler did not respond to execute in a valid format! Treating response like PASS.");
+          finished = true;
+        }
+        controller.handleTimeout(message, handler);
+      }
+
+      /**
+       * @return true if the handler finished before the deadline.
+       */
+      synchronized boolean finish() {
+        if (finished) {
+          return false;
+        }
+        finished = true;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Fixed set of long-lived threads running MessageRuns from a queue.
+   * 
+   * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+   * @version $Revision$
+   */
+  private final class WorkerPool implements Runnable {
+
+    private final Runnable stop = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+    private final Thread[] workers;
 
+    WorkerPool(int size) {
+      ThreadFactory factory = getDispatchThreadFactory();
+      if (factory == null) {
+        factory = new ChainThreadFactory();
+      }
+      workers = new Thread[size];
+      for (int i = 0; i < size; i++) {
+        workers[i] = factory.newThread(this);
+        if (!workers[i].isDaemon()) {
+          workers[i].setDaemon(true);
+        }
+        workers[i].start();
+      }
+    }
+
+    void execute(MessageRun run) {
+      queue.add(run);
+    }
+
+    void shutdown() {
+      for (int i = 0; i < workers.length; i++) {
+        queue.add(stop);
+      }
+    }
+
+    @Override
+    public void run() {
+      for (;;) {
+        Runnable next;
+        try {
+          next = queue.take();
+        } catch (InterruptedException e) {
+          continue;
+        }
+        if (next == stop) {
+          return;
+        }
+        try {
+          next.run();
+        } catch (RuntimeException e) {
+          e.printStackTrace(System.err);
+        }
       }
     }
   }
@@ -388,7 +1416,8 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
    * @version $Revision$
    */
   public class ChainThread extends
-      MonitorDispatchThread.Adapter<ChainHandler<M>> {
+      MonitorDispatchThread.Adapter<ChainHandler<M>> implements
+      MessageExecution<M> {
 
     private boolean isMessageHandled = false;
 
@@ -396,6 +1425,8 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
 
     private InvokeHandlerTask task;
 
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
     /**
      * True if a ChainHandler has returned ChainHandlerResult.HANDLED.
      * 
@@ -446,6 +1477,8 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
       task = t;
       t.setThread(this);
       this.setTimeout(getHandlerTimeout());
+      this.setTimeoutWheel(getTimeoutWheel());
+      this.setThreadFactory(getDispatchThreadFactory());
       this.shouldJoinDispatch(true);
     }
 
@@ -464,6 +1497,8 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
       task = t;
       t.setThread(this);
       this.setTimeout(getHandlerTimeout());
+      this.setTimeoutWheel(getTimeoutWheel());
+      this.setThreadFactory(getDispatchThreadFactory());
       this.shouldJoinDispatch(true);
     }
 
@@ -493,8 +1528,36 @@ public abstract class ChainManager<M extends ChainMessage, C extends ChainContro
       if (!isMessageHandled && !isMessageWaiting) {
         controller.handleUnhandledMessage(task.message);
       }
+      processed(this, isMessageWaiting);
+    }
 
-      messageThreadMap.remove(task.message);
+    @Override
+    public final int getResumePosition() {
+      return handlerList.indexOf(getCurrentObject()) + 1;
+    }
+
+    @Override
+    public final M getMessage() {
+      return task.message;
+    }
+
+    @Override
+    public final boolean discard() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    @Override
+    public final void launch() {
+      // run() is final, so the claim is taken by the Runnable handed to the
+      // executor.
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (claimed.compareAndSet(false, true)) {
+            ChainThread.this.run();
+          }
+        }
+      });
     }
 
     @Override
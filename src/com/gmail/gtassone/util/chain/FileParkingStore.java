@@ -0,0 +1,289 @@
+package com.gmail.gtassone.util.chain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ParkingStore kept in an append-only local file. Each park and resume is
+ * written, and flushed, as one binary record; the file is truncated whenever
+ * no message is left parked. Once the records of resumed messages outnumber
+ * the parked ones, and exceed {@link #COMPACT_THRESHOLD}, the file is
+ * replaced by a copy holding only the parked messages. A partial record left
+ * by a crash is discarded when the file is reopened.
+ * <p>
+ * A park record holds an id, the handler position, both timestamps and the
+ * serialized message; a resume record holds the id of the park it ends.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public class FileParkingStore implements ParkingStore {
+
+  private static final byte PARKED = 'P';
+
+  private static final byte RESUMED = 'R';
+
+  /**
+   * The number of dead records, those of resumed messages, below which the
+   * file is never compacted.
+   */
+  public static final int COMPACT_THRESHOLD = 1024;
+
+  private final File file;
+
+  private final Map<ParkedMessage, Long> ids = new IdentityHashMap<ParkedMessage, Long>();
+
+  private List<ParkedMessage> restored = new ArrayList<ParkedMessage>();
+
+  private FileOutputStream out;
+
+  private DataOutputStream data;
+
+  private long nextId;
+
+  private int deadRecords;
+
+  private boolean closed;
+
+  /**
+   * Opens a store.
+   * 
+   * @param file
+   *        the parking file, created if missing.
+   * @param resume
+   *        true to load the messages parked by previous runs; false to
+   *        discard them.
+   * @throws IOException
+   *         if the file cannot be read or opened for append.
+   */
+  public FileParkingStore(File file, boolean resume) throws IOException {
+    this.file = file;
+    long length = 0;
+    if (resume && file.exists()) {
+      length = load();
+    }
+    this.out = new FileOutputStream(file, true);
+    this.out.getChannel().truncate(length);
+    this.data = new DataOutputStream(out);
+  }
+
+  /**
+   * the parking file.
+   * 
+   * @return the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public synchronized void parked(ParkedMessage parked) throws IOException {
+    checkOpen();
+    long id = nextId++;
+    data.write(record(id, parked));
+    data.flush();
+    ids.put(parked, id);
+  }
+
+  @Override
+  public synchronized void resumed(ParkedMessage parked) throws IOException {
+    checkOpen();
+    Long id = ids.remove(parked);
+    if (id == null) {
+      return;
+    }
+    if (ids.isEmpty()) {
+      data.flush();
+      out.getChannel().truncate(0);
+      deadRecords = 0;
+      return;
+    }
+    data.writeByte(RESUMED);
+    data.writeLong(id);
+    data.flush();
+    // the park record and this resume record.
+    deadRecords += 2;
+    if (deadRecords >= COMPACT_THRESHOLD && deadRecords > ids.size()) {
+      compact();
+    }
+  }
+
+  @Override
+  public synchronized Collection<ParkedMessage> restore() {
+    List<ParkedMessage> r = restored;
+    restored = Collections.emptyList();
+    return r;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      data.close();
+    }
+  }
+
+  /**
+   * replaces the file by a copy holding only the parked messages, in park
+   * order and with their ids. The copy is moved over the file, so a crash
+   * leaves either the old file or the new one.
+   */
+  private void compact() throws IOException {
+    Map<Long, ParkedMessage> live = new TreeMap<Long, ParkedMessage>();
+    for (Map.Entry<ParkedMessage, Long> e : ids.entrySet()) {
+      live.put(e.getValue(), e.getKey());
+    }
+    File copy = new File(file.getPath() + ".tmp");
+    DataOutputStream w = new DataOutputStream(new FileOutputStream(copy));
+    try {
+      for (Map.Entry<Long, ParkedMessage> e : live.entrySet()) {
+        w.write(record(e.getKey(), e.getValue()));
+      }
+    } finally {
+      w.close();
+    }
+
+    data.close();
+    try {
+      Files.move(copy.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      deadRecords = 0;
+    } finally {
+      // the old file is kept if the move failed.
+      out = new FileOutputStream(file, true);
+      data = new DataOutputStream(out);
+    }
+  }
+
+  /**
+   * encodes the park record of a message.
+   */
+  private static byte[] record(long id, ParkedMessage parked)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream o = new ObjectOutputStream(bytes);
+    o.writeObject(parked.getMessage());
+    o.close();
+    byte[] message = bytes.toByteArray();
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream(message.length + 32);
+    DataOutputStream r = new DataOutputStream(record);
+    r.writeByte(PARKED);
+    r.writeLong(id);
+    r.writeInt(parked.getPosition());
+    r.writeLong(parked.getParkedAt());
+    r.writeLong(parked.getResumeAt());
+    r.writeInt(message.length);
+    r.write(message);
+    return record.toByteArray();
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("parking store is closed: " + file);
+    }
+  }
+
+  /**
+   * replays the existing records.
+   * 
+   * @return the length of the complete records.
+   */
+  private long load() throws IOException {
+    byte[] content;
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int n;
+      while ((n = in.read(chunk)) > 0) {
+        bytes.write(chunk, 0, n);
+      }
+      content = bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+
+    Map<Long, ParkedMessage> live = new LinkedHashMap<Long, ParkedMessage>();
+    DataInputStream r = new DataInputStream(new ByteArrayInputStream(content));
+    long complete = 0;
+    int records = 0;
+    try {
+      while (complete < content.length) {
+        byte type = r.readByte();
+        long id = r.readLong();
+        if (type == PARKED) {
+          int position = r.readInt();
+          long parkedAt = r.readLong();
+          long resumeAt = r.readLong();
+          byte[] message = new byte[r.readInt()];
+          r.readFully(message);
+          ChainMessage m = deserialize(message);
+          if (m != null) {
+            live.put(id, new ParkedMessage(m, position, parkedAt, resumeAt));
+          }
+          complete += 33 + message.length;
+        } else if (type == RESUMED) {
+          live.remove(id);
+          complete += 9;
+        } else {
+          throw new IOException("corrupt parking record at " + complete
+              + " in " + file);
+        }
+        nextId = Math.max(nextId, id + 1);
+        records++;
+      }
+    } catch (EOFException e) {
+      // partial record left by a crash.
+    }
+
+    if (live.isEmpty()) {
+      return 0;
+    }
+    for (Map.Entry<Long, ParkedMessage> e : live.entrySet()) {
+      ids.put(e.getValue(), e.getKey());
+      restored.add(e.getValue());
+    }
+    deadRecords = records - live.size();
+    return complete;
+  }
+
+  private static ChainMessage deserialize(byte[] message) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+          message));
+      try {
+        return (ChainMessage) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace(System.err);
+    } catch (ClassNotFoundException e) {
+      e.printStackTrace(System.err);
+    } catch (ClassCastException e) {
+      e.printStackTrace(System.err);
+    }
+    return null;
+  }
+}
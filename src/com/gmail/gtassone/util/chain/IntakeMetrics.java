@@ -0,0 +1,138 @@
+package com.gmail.gtassone.util.chain;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue depth and overflow counters of the intake of a ChainManager. The
+ * depth is the number of messages accepted and not finished yet, whether
+ * waiting for a worker or being processed; messages in the spill file are
+ * counted separately.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public final class IntakeMetrics {
+
+  private volatile int depth;
+
+  private volatile int peakDepth;
+
+  private volatile int spillDepth;
+
+  private final AtomicLong accepted = new AtomicLong();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private final AtomicLong spilled = new AtomicLong();
+
+  private final AtomicLong blocked = new AtomicLong();
+
+  IntakeMetrics() {
+  }
+
+  /**
+   * the number of messages accepted and not finished.
+   * 
+   * @return the depth.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * the highest depth seen.
+   * 
+   * @return the depth.
+   */
+  public int getPeakDepth() {
+    return peakDepth;
+  }
+
+  /**
+   * the number of messages waiting in the spill file.
+   * 
+   * @return the count.
+   */
+  public int getSpillDepth() {
+    return spillDepth;
+  }
+
+  /**
+   * the number of messages accepted for processing, including those taken
+   * back from the spill file.
+   * 
+   * @return the count.
+   */
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  /**
+   * the number of messages rejected on arrival.
+   * 
+   * @return the count.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * the number of accepted messages dropped to make room.
+   * 
+   * @return the count.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * the number of messages written to the spill file.
+   * 
+   * @return the count.
+   */
+  public long getSpilledCount() {
+    return spilled.get();
+  }
+
+  /**
+   * the number of submissions which had to wait for room.
+   * 
+   * @return the count.
+   */
+  public long getBlockedCount() {
+    return blocked.get();
+  }
+
+  void depth(int current) {
+    depth = current;
+    if (current > peakDepth) {
+      peakDepth = current;
+    }
+  }
+
+  void spillDepth(int current) {
+    spillDepth = current;
+  }
+
+  void accepted() {
+    accepted.incrementAndGet();
+  }
+
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  void dropped() {
+    dropped.incrementAndGet();
+  }
+
+  void spilled() {
+    spilled.incrementAndGet();
+  }
+
+  void blocked() {
+    blocked.incrementAndGet();
+  }
+}
@@ -0,0 +1,259 @@
+package com.gmail.gtassone.util.chain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * First-in first-out queue of ChainMessages kept in a local file, used by a
+ * ChainManager to shed messages arriving while its intake is full. Each
+ * message is stored as a length-prefixed serialized record after a header
+ * holding the offset of the oldest record not yet taken. The file is
+ * truncated whenever the queue empties; once the records already taken
+ * exceed {@link #COMPACT_THRESHOLD} bytes, and outweigh the queued ones, the
+ * file is replaced by a copy holding only the queued records. A partial
+ * record left by a crash is discarded when the file is reopened.
+ * <p>
+ * When the file is reopened with resume, the records from the saved offset
+ * are queued again. A message taken before the crash is not delivered again,
+ * even if its processing had not finished.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public class MessageSpillFile {
+
+  /**
+   * The number of bytes of taken records below which the file is never
+   * compacted.
+   */
+  public static final int COMPACT_THRESHOLD = 64 * 1024;
+
+  /**
+   * The length of the header, the offset of the oldest queued record.
+   */
+  private static final int HEADER = 8;
+
+  private final File file;
+
+  private RandomAccessFile raf;
+
+  private long readPosition;
+
+  private long writePosition;
+
+  private int size;
+
+  private boolean closed;
+
+  /**
+   * Opens a spill file.
+   * 
+   * @param file
+   *        the file, created if missing.
+   * @param resume
+   *        true to queue the messages left by previous runs; false to discard
+   *        them.
+   * @throws IOException
+   *         if the file cannot be opened or read.
+   */
+  public MessageSpillFile(File file, boolean resume) throws IOException {
+    this.file = file;
+    this.raf = new RandomAccessFile(file, "rw");
+    if (resume) {
+      load();
+    } else {
+      clear();
+    }
+  }
+
+  /**
+   * the spill file.
+   * 
+   * @return the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * appends a message.
+   * 
+   * @param message
+   *        the message.
+   * @throws IOException
+   *         if the message cannot be serialized or written.
+   */
+  public synchronized void append(ChainMessage message) throws IOException {
+    if (closed) {
+      throw new IOException("spill file is closed: " + file);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(message);
+    out.close();
+    byte[] record = bytes.toByteArray();
+    raf.seek(writePosition);
+    raf.writeInt(record.length);
+    raf.write(record);
+    writePosition += 4 + record.length;
+    size++;
+  }
+
+  /**
+   * takes the oldest message. A record which cannot be deserialized is
+   * skipped after reporting it.
+   * 
+   * @return the message, or null if the queue is empty.
+   * @throws IOException
+   *         if the file cannot be read.
+   */
+  public synchronized ChainMessage poll() throws IOException {
+    while (size > 0 && !closed) {
+      raf.seek(readPosition);
+      byte[] record = new byte[raf.readInt()];
+      raf.readFully(record);
+      readPosition += 4 + record.length;
+      if (--size == 0) {
+        clear();
+      } else {
+        raf.seek(0);
+        raf.writeLong(readPosition);
+        long dead = readPosition - HEADER;
+        if (dead >= COMPACT_THRESHOLD && dead > writePosition - readPosition) {
+          compact();
+        }
+      }
+      try {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+            record));
+        try {
+          return (ChainMessage) in.readObject();
+        } finally {
+          in.close();
+        }
+      } catch (ClassNotFoundException e) {
+        e.printStackTrace(System.err);
+      } catch (ClassCastException e) {
+        e.printStackTrace(System.err);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * the number of messages queued.
+   * 
+   * @return the count.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * closes the file, keeping the messages still queued for a later resume.
+   * 
+   * @throws IOException
+   *         if closing fails.
+   */
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      raf.close();
+    }
+  }
+
+  /**
+   * empties the file down to its header.
+   */
+  private void clear() throws IOException {
+    raf.setLength(HEADER);
+    raf.seek(0);
+    raf.writeLong(HEADER);
+    readPosition = HEADER;
+    writePosition = HEADER;
+  }
+
+  /**
+   * replaces the file by a copy holding only the queued records. The copy is
+   * moved over the file, so a crash leaves either the old file or the new
+   * one.
+   */
+  private void compact() throws IOException {
+    File copy = new File(file.getPath() + ".tmp");
+    OutputStream w = new FileOutputStream(copy);
+    try {
+      byte[] header = new byte[HEADER];
+      header[HEADER - 1] = HEADER;
+      w.write(header);
+      byte[] chunk = new byte[8192];
+      raf.seek(readPosition);
+      for (long left = writePosition - readPosition; left > 0;) {
+        int n = (int) Math.min(chunk.length, left);
+        raf.readFully(chunk, 0, n);
+        w.write(chunk, 0, n);
+        left -= n;
+      }
+    } finally {
+      w.close();
+    }
+
+    raf.close();
+    try {
+      Files.move(copy.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      writePosition -= readPosition - HEADER;
+      readPosition = HEADER;
+    } finally {
+      // the old file is kept if the move failed.
+      raf = new RandomAccessFile(file, "rw");
+    }
+  }
+
+  /**
+   * counts the complete records from the saved offset, dropping a trailing
+   * partial one.
+   */
+  private void load() throws IOException {
+    long length = raf.length();
+    if (length < HEADER) {
+      clear();
+      return;
+    }
+    raf.seek(0);
+    long position = raf.readLong();
+    if (position < HEADER || position > length) {
+      throw new IOException("corrupt spill header " + position + " in "
+          + file);
+    }
+    readPosition = position;
+    raf.seek(position);
+    while (position + 4 <= length) {
+      int recordLength;
+      try {
+        recordLength = raf.readInt();
+      } catch (EOFException e) {
+        break;
+      }
+      if (recordLength < 0 || position + 4 + recordLength > length) {
+        break;
+      }
+      position += 4 + recordLength;
+      raf.seek(position);
+      size++;
+    }
+    if (position < length) {
+      raf.setLength(position);
+    }
+    writePosition = position;
+  }
+}
@@ -0,0 +1,39 @@
+package com.gmail.gtassone.util.chain;
+
+/**
+ * What a ChainManager with a bounded intake does with a message arriving
+ * while the intake is full; see {@link ChainManager#getIntakeCapacity()}.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public enum OverflowPolicy {
+
+  /**
+   * the submitting thread waits for room. A submitter interrupted while
+   * waiting has its message rejected.
+   */
+  BLOCK,
+
+  /**
+   * the message is rejected and reported to
+   * {@link ChainManager#handleRejectedMessage(ChainMessage)}.
+   */
+  REJECT,
+
+  /**
+   * the oldest message not yet started is dropped, and reported to
+   * {@link ChainManager#handleRejectedMessage(ChainMessage)}, to make room.
+   * When every accepted message has started, the new one is rejected instead.
+   * Without a worker pool a message starts as soon as the executor runs it, so
+   * only messages still queued in the executor can be dropped.
+   */
+  DROP_OLDEST,
+
+  /**
+   * the message is appended to the spill file of the manager, and taken back
+   * in arrival order as room frees up. Without a spill file, or if writing
+   * fails, the message is rejected.
+   */
+  SPILL
+}
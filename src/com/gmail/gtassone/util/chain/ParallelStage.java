@@ -0,0 +1,316 @@
+package com.gmail.gtassone.util.chain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.gtassone.util.concurrent.ThreadFactories;
+
+/**
+ * A ChainHandler running a group of independent handlers concurrently on the
+ * same message, so that their latencies overlap instead of adding up. The
+ * stage takes one place in the chain: the ChainManager offers it the message
+ * like any other handler, the members run on the stage Executor while the
+ * chain thread waits, and the {@link JoinRule} turns their results into the
+ * result of the stage, after which the chain continues as usual.
+ * <p>
+ * A member counts as succeeded when it returns PASS or HANDLED, and as failed
+ * when it returns FAILED or WAIT, or throws; a message cannot be parked from
+ * inside a stage. If the timeout passes before the join rule is decided, the
+ * stage returns FAILED. Members still running once the result is decided are
+ * interrupted. When the join rule decides a failure and a member threw, the
+ * first exception is rethrown, reaching
+ * {@link ChainController#handleDispatchException}; otherwise the stage
+ * returns FAILED.
+ * <p>
+ * Members must tolerate running concurrently on the same message. Members
+ * implementing {@link SelectiveChainHandler} only run for the classes they
+ * accept, and the stage accepts a class when any member does. The ChainManager
+ * handler timeout applies to the stage as a whole, so the stage timeout
+ * should be shorter.
+ *
+ * @param <M>
+ *        the type of ChainMessage handled by this Handler.
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public class ParallelStage<M extends ChainMessage> extends
+    ChainHandler.Adapter<M> implements SelectiveChainHandler<M> {
+
+  /**
+   * How the results of the members decide the result of the stage.
+   *
+   * @author GTassone
+   */
+  public enum JoinRule {
+
+    /**
+     * waits for every member. The stage fails if any member failed, and
+     * returns HANDLED if any member handled the message, PASS otherwise.
+     */
+    ALL,
+
+    /**
+     * returns HANDLED as soon as a member handles the message. If none does,
+     * the stage is decided like {@link #ALL} once every member is done.
+     */
+    FIRST_HANDLED,
+
+    /**
+     * returns as soon as the quorum of members has succeeded: HANDLED if one
+     * of them handled the message, PASS otherwise. The stage fails as soon
+     * as so many members have failed that the quorum cannot be reached.
+     */
+    QUORUM
+  }
+
+  private final JoinRule rule;
+
+  private final long timeoutMillis;
+
+  private final List<ChainHandler<M>> members;
+
+  private final ConcurrentMap<Class<?>, List<ChainHandler<M>>> routes =
+      new ConcurrentHashMap<Class<?>, List<ChainHandler<M>>>();
+
+  private volatile Executor executor;
+
+  private volatile int quorum;
+
+  /**
+   * Creates a stage.
+   *
+   * @param rule
+   *        the join rule.
+   * @param timeoutMillis
+   *        the longest the stage waits for its members to decide the rule.
+   * @param members
+   *        the handlers run concurrently.
+   */
+  public ParallelStage(JoinRule rule, long timeoutMillis,
+      List<? extends ChainHandler<M>> members) {
+    if (rule == null) {
+      throw new NullPointerException("rule");
+    }
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("timeout must be positive: "
+          + timeoutMillis);
+    }
+    this.rule = rule;
+    this.timeoutMillis = timeoutMillis;
+    this.members = Collections.unmodifiableList(new ArrayList<ChainHandler<M>>(
+        members));
+  }
+
+  /**
+   * sets the Executor running the members.
+   *
+   * @param e
+   *        the executor, or null for a shared cached pool of daemon threads.
+   */
+  public void setExecutor(Executor e) {
+    this.executor = e;
+  }
+
+  /**
+   * sets the number of members which must succeed under
+   * {@link JoinRule#QUORUM}. Capped at the number of members running for a
+   * message.
+   *
+   * @param members
+   *        at least 1, or 0 for a majority.
+   */
+  public void setQuorum(int members) {
+    if (members < 0) {
+      throw new IllegalArgumentException("quorum must not be negative: "
+          + members);
+    }
+    this.quorum = members;
+  }
+
+  /**
+   * @return the handlers run concurrently.
+   */
+  public List<ChainHandler<M>> getMembers() {
+    return members;
+  }
+
+  /**
+   * @return the join rule.
+   */
+  public JoinRule getJoinRule() {
+    return rule;
+  }
+
+  @Override
+  public boolean accepts(Class<? extends ChainMessage> messageClass) {
+    return !route(messageClass).isEmpty();
+  }
+
+  @Override
+  public ChainHandlerResult execute(final M message) throws Exception {
+    List<ChainHandler<M>> running = route(message.getClass());
+    int n = running.size();
+    if (n == 0) {
+      return ChainHandlerResult.PASS;
+    }
+    int needed = quorum > 0 ? Math.min(quorum, n) : n / 2 + 1;
+    final Join join = new Join(n, needed);
+    Executor e = executor;
+    if (e == null) {
+      e = SharedExecutor.INSTANCE;
+    }
+
+    List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(n);
+    for (final ChainHandler<M> member : running) {
+      FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            join.completed(member.execute(message));
+          } catch (Exception ex) {
+            join.failed(ex);
+          }
+        }
+      }, null);
+      tasks.add(task);
+      try {
+        e.execute(task);
+      } catch (RejectedExecutionException ree) {
+        join.failed(ree);
+      }
+    }
+
+    try {
+      return join.await(timeoutMillis);
+    } finally {
+      for (FutureTask<Void> task : tasks) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  private List<ChainHandler<M>> route(Class<? extends ChainMessage> messageClass) {
+    List<ChainHandler<M>> route = routes.get(messageClass);
+    if (route == null) {
+      List<ChainHandler<M>> accepted = new ArrayList<ChainHandler<M>>();
+      for (ChainHandler<M> h : members) {
+        if (!(h instanceof SelectiveChainHandler)
+            || ((SelectiveChainHandler<M>) h).accepts(messageClass)) {
+          accepted.add(h);
+        }
+      }
+      route = Collections.unmodifiableList(accepted);
+      List<ChainHandler<M>> existing = routes.putIfAbsent(messageClass, route);
+      if (existing != null) {
+        route = existing;
+      }
+    }
+    return route;
+  }
+
+  /**
+   * The join rule applied to the members of one execution.
+   */
+  private final class Join {
+
+    private final int size;
+
+    private final int needed;
+
+    private int succeeded;
+
+    private int handled;
+
+    private int failed;
+
+    private Exception firstException;
+
+    private ChainHandlerResult result;
+
+    Join(int size, int needed) {
+      this.size = size;
+      this.needed = needed;
+    }
+
+    synchronized void completed(ChainHandlerResult r) {
+      if (r == ChainHandlerResult.HANDLED) {
+        succeeded++;
+        handled++;
+      } else if (r == ChainHandlerResult.PASS) {
+        succeeded++;
+      } else {
+        failed++;
+      }
+      decide();
+    }
+
+    synchronized void failed(Exception e) {
+      failed++;
+      if (firstException == null) {
+        firstException = e;
+      }
+      decide();
+    }
+
+    /**
+     * sets the result once the rule is decided; called holding the lock.
+     */
+    private void decide() {
+      if (result != null) {
+        return;
+      }
+      if (rule == JoinRule.QUORUM) {
+        if (succeeded >= needed) {
+          result = handled > 0 ? ChainHandlerResult.HANDLED
+              : ChainHandlerResult.PASS;
+        } else if (size - failed < needed) {
+          result = ChainHandlerResult.FAILED;
+        }
+      } else if (rule == JoinRule.FIRST_HANDLED && handled > 0) {
+        result = ChainHandlerResult.HANDLED;
+      } else if (succeeded + failed == size) {
+        result = failed > 0 ? ChainHandlerResult.FAILED
+            : handled > 0 ? ChainHandlerResult.HANDLED : ChainHandlerResult.PASS;
+      }
+      if (result != null) {
+        notifyAll();
+      }
+    }
+
+    synchronized ChainHandlerResult await(long millis) throws Exception {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      while (result == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          result = ChainHandlerResult.FAILED;
+          return result;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      if (result == ChainHandlerResult.FAILED && firstException != null) {
+        throw firstException;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Lazily created default executor.
+   */
+  private static final class SharedExecutor {
+
+    private static final Executor INSTANCE = Executors
+        .newCachedThreadPool(ThreadFactories.platform("ParallelStage-", true));
+
+    private SharedExecutor() {
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.gmail.gtassone.util.chain;
+
+/**
+ * A message whose processing was suspended by a ChainHandler returning
+ * {@link ChainHandler.ChainHandlerResult#WAIT}, with the position in the
+ * handler list at which it resumes.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public final class ParkedMessage {
+
+  private final ChainMessage message;
+
+  private final int position;
+
+  private final long parkedAt;
+
+  private final long resumeAt;
+
+  /**
+   * Creates a parked message.
+   * 
+   * @param message
+   *        the message.
+   * @param position
+   *        the index of the next handler to run.
+   * @param parkedAt
+   *        when the message was parked, in System.currentTimeMillis terms.
+   * @param resumeAt
+   *        when the message is resumed by timer, in
+   *        System.currentTimeMillis terms, or 0 for no timer.
+   */
+  public ParkedMessage(ChainMessage message, int position, long parkedAt,
+      long resumeAt) {
+    this.message = message;
+    this.position = position;
+    this.parkedAt = parkedAt;
+    this.resumeAt = resumeAt;
+  }
+
+  /**
+   * @return the message.
+   */
+  public ChainMessage getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the index in the handler list of the next handler to run.
+   */
+  public int getPosition() {
+    return position;
+  }
+
+  /**
+   * @return when the message was parked, in milliseconds since the epoch.
+   */
+  public long getParkedAt() {
+    return parkedAt;
+  }
+
+  /**
+   * @return when the message is resumed by timer, in milliseconds since the
+   *         epoch, or 0 if it waits for an explicit resume.
+   */
+  public long getResumeAt() {
+    return resumeAt;
+  }
+}
@@ -0,0 +1,52 @@
+package com.gmail.gtassone.util.chain;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Durable record of the messages parked by a ChainManager, so that waiting
+ * messages survive a restart; see {@link ChainManager#getParkingStore()}.
+ * Implementations must be safe for concurrent use.
+ * 
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public interface ParkingStore {
+
+  /**
+   * records a message as parked.
+   * 
+   * @param parked
+   *        the parked message.
+   * @throws IOException
+   *         if the record cannot be written.
+   */
+  void parked(ParkedMessage parked) throws IOException;
+
+  /**
+   * records a parked message as resumed. Unknown messages are ignored.
+   * 
+   * @param parked
+   *        the parked message, as passed to {@link #parked(ParkedMessage)} or
+   *        returned by {@link #restore()}.
+   * @throws IOException
+   *         if the record cannot be written.
+   */
+  void resumed(ParkedMessage parked) throws IOException;
+
+  /**
+   * the messages parked by previous runs and not resumed. Later calls return
+   * an empty collection.
+   * 
+   * @return the parked messages.
+   */
+  Collection<ParkedMessage> restore();
+
+  /**
+   * closes the store.
+   * 
+   * @throws IOException
+   *         if closing fails.
+   */
+  void close() throws IOException;
+}
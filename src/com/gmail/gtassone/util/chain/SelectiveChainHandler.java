@@ -0,0 +1,62 @@
+package com.gmail.gtassone.util.chain;
+
+/**
+ * A ChainHandler which only handles some classes of message. The ChainManager
+ * asks it once per message class, caches the answer, and skips it for the
+ * messages of the classes it does not accept; handlers not implementing this
+ * interface receive every message.
+ * 
+ * @param <M>
+ *        the type of ChainMessage handled by this Handler.
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public interface SelectiveChainHandler<M extends ChainMessage> extends
+    ChainHandler<M> {
+
+  /**
+   * acceptance predicate. The result must depend on the class alone, since
+   * it is cached for the life of the ChainManager.
+   * 
+   * @param messageClass
+   *        the concrete class of a message.
+   * @return true if messages of that class should be offered to this handler.
+   */
+  boolean accepts(Class<? extends ChainMessage> messageClass);
+
+  /**
+   * convenience base implementation accepting the messages of one class and
+   * its subclasses.
+   * 
+   * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+   * @version $Revision$
+   */
+  public abstract class Adapter<M extends ChainMessage> extends
+      ChainHandler.Adapter<M> implements SelectiveChainHandler<M> {
+
+    private final Class<? extends ChainMessage> acceptedClass;
+
+    /**
+     * @param acceptedClass
+     *        the class of the messages handled.
+     */
+    protected Adapter(Class<? extends ChainMessage> acceptedClass) {
+      if (acceptedClass == null) {
+        throw new NullPointerException("acceptedClass");
+      }
+      this.acceptedClass = acceptedClass;
+    }
+
+    /**
+     * @return the class of the messages handled.
+     */
+    public final Class<? extends ChainMessage> getAcceptedClass() {
+      return acceptedClass;
+    }
+
+    @Override
+    public boolean accepts(Class<? extends ChainMessage> messageClass) {
+      return acceptedClass.isAssignableFrom(messageClass);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import com.gmail.gtassone.util.concurrent.MonitorDispatchThread.TimeoutPolicy;
+
+/**
+ * TimeoutPolicy which derives each element's timeout from observed latency:
+ * a percentile of a {@link LatencyHistogram} multiplied by a factor, clamped
+ * between a floor and a ceiling. Until enough samples have been recorded the
+ * ceiling is used. The percentile is recomputed after every
+ * {@link #setRefreshInterval(int) refresh interval} of new samples rather
+ * than per element.
+ * <p>
+ * Typical use feeds the policy from the thread's own metrics:
+ *
+ * <pre>
+ * thread.setTimeoutPolicy(new AdaptiveTimeoutPolicy&lt;Foo&gt;(thread.getMetrics()
+ *     .getLatencyHistogram(), 99, 3.0, 100, 30000));
+ * </pre>
+ *
+ * An override policy may supply a timeout for individual elements; it
+ * returns zero or a negative value to defer to the adaptive timeout.
+ *
+ * @param <T>
+ *        The type of objects to perform action on.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class AdaptiveTimeoutPolicy<T> implements TimeoutPolicy<T> {
+
+  /**
+   * The default number of samples required before adapting.
+   */
+  public static final int DEFAULT_MIN_SAMPLES = 100;
+
+  /**
+   * The default number of new samples between percentile recomputations.
+   */
+  public static final int DEFAULT_REFRESH_INTERVAL = 100;
+
+  private final LatencyHistogram histogram;
+
+  private final double percentile;
+
+  private final double factor;
+
+  private final long floorMillis;
+
+  private final long ceilingMillis;
+
+  private volatile int minSamples = DEFAULT_MIN_SAMPLES;
+
+  private volatile int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+  private volatile TimeoutPolicy<T> override;
+
+  private volatile long cachedTimeout;
+
+  private volatile long cachedAtCount = -1;
+
+  /**
+   * Creates an adaptive policy.
+   *
+   * @param histogram
+   *        observed latencies, in nanoseconds.
+   * @param percentile
+   *        the percentile to base the timeout on, between 0 and 100.
+   * @param factor
+   *        multiplier applied to the percentile.
+   * @param floorMillis
+   *        the smallest timeout ever returned.
+   * @param ceilingMillis
+   *        the largest timeout ever returned, also used until adapting.
+   */
+  public AdaptiveTimeoutPolicy(LatencyHistogram histogram, double percentile,
+      double factor, long floorMillis, long ceilingMillis) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile out of range: "
+          + percentile);
+    }
+    if (factor <= 0) {
+      throw new IllegalArgumentException("factor must be positive: " + factor);
+    }
+    if (floorMillis > ceilingMillis) {
+      throw new IllegalArgumentException("floor " + floorMillis
+          + " exceeds ceiling " + ceilingMillis);
+    }
+    this.histogram = histogram;
+    this.percentile = percentile;
+    this.factor = factor;
+    this.floorMillis = floorMillis;
+    this.ceilingMillis = ceilingMillis;
+    this.cachedTimeout = ceilingMillis;
+  }
+
+  /**
+   * sets the number of samples required before adapting.
+   *
+   * @param samples
+   *        the sample count.
+   */
+  public void setMinSamples(int samples) {
+    this.minSamples = samples;
+  }
+
+  /**
+   * sets the number of new samples between percentile recomputations.
+   *
+   * @param samples
+   *        the sample count, at least 1.
+   */
+  public void setRefreshInterval(int samples) {
+    if (samples < 1) {
+      throw new IllegalArgumentException("refresh interval must be positive: "
+          + samples);
+    }
+    this.refreshInterval = samples;
+  }
+
+  /**
+   * sets a per-element override.
+   *
+   * @param policy
+   *        returns a timeout for elements that need one, and zero or a
+   *        negative value otherwise; null removes the override.
+   */
+  public void setOverride(TimeoutPolicy<T> policy) {
+    this.override = policy;
+  }
+
+  @Override
+  public long getTimeout(T obj) {
+    TimeoutPolicy<T> o = override;
+    if (o != null) {
+      long t = o.getTimeout(obj);
+      if (t > 0) {
+        return t;
+      }
+    }
+    return getAdaptiveTimeout();
+  }
+
+  /**
+   * the timeout currently derived from the histogram.
+   *
+   * @return milliseconds.
+   */
+  public long getAdaptiveTimeout() {
+    long count = histogram.getCount();
+    if (count < minSamples) {
+      return ceilingMillis;
+    }
+    long last = cachedAtCount;
+    if (last < 0 || count - last >= refreshInterval || count < last) {
+      long nanos = histogram.getValueAtPercentile(percentile);
+      long millis = (long) Math.ceil(factor * nanos
+          / TimeUnit.MILLISECONDS.toNanos(1));
+      cachedTimeout = Math.min(ceilingMillis, Math.max(floorMillis, millis));
+      cachedAtCount = count;
+    }
+    return cachedTimeout;
+  }
+}
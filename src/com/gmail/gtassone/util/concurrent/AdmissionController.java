@@ -0,0 +1,378 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission layer for {@link AsynchronousFuture}s. Instead of running a
+ * future directly, {@link #submit(AsynchronousFuture)} queues it, and the
+ * controller runs it, initiating the call, once every {@link AdmissionPolicy}
+ * admits it: typically a {@link TokenBucketPolicy} limiting the initiation
+ * rate and a {@link MaxInFlightPolicy} capping the calls outstanding.
+ * <p>
+ * Queued futures are kept per label and admitted round-robin across labels,
+ * so one label submitting thousands of calls does not starve the others;
+ * within a label they are admitted in submission order. A future cancelled
+ * while queued is dropped without using capacity.
+ * <p>
+ * Futures are run on the thread which made capacity available (the
+ * submitter, the thread completing an earlier call, or the timer thread of
+ * the {@link TimeoutWheel} for rate limited calls) unless an Executor is set.
+ * Rate limited calls are retried with the tick granularity of the wheel.
+ * The time spent queued and the call latency after admission are recorded
+ * in separate histograms.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class AdmissionController {
+
+  private final AdmissionPolicy[] policies;
+
+  private final Object lock = new Object();
+
+  private final Map<String, ArrayDeque<Entry>> queues =
+      new HashMap<String, ArrayDeque<Entry>>();
+
+  private final ArrayDeque<String> labelOrder = new ArrayDeque<String>();
+
+  private int queued;
+
+  private boolean pumping;
+
+  private boolean pumpAgain;
+
+  private boolean retryScheduled;
+
+  private volatile Executor executor;
+
+  private volatile TimeoutWheel timeoutWheel;
+
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+
+  private final LatencyHistogram callLatency = new LatencyHistogram();
+
+  private final AtomicLong admitted = new AtomicLong();
+
+  private final AtomicLong inFlight = new AtomicLong();
+
+  /**
+   * Creates a controller.
+   *
+   * @param policies
+   *        the checks a call must pass to be initiated; none admits every
+   *        call at once.
+   */
+  public AdmissionController(AdmissionPolicy... policies) {
+    this.policies = policies.clone();
+  }
+
+  /**
+   * sets the Executor running admitted futures.
+   *
+   * @param e
+   *        the executor, or null to run them on the admitting thread.
+   */
+  public void setExecutor(Executor e) {
+    this.executor = e;
+  }
+
+  /**
+   * sets the wheel timing the retries of rate limited calls.
+   *
+   * @param wheel
+   *        the wheel, or null for {@link TimeoutWheel#getShared()}.
+   */
+  public void setTimeoutWheel(TimeoutWheel wheel) {
+    this.timeoutWheel = wheel;
+  }
+
+  /**
+   * queues a future to be run once admitted. The future must not have been
+   * run.
+   *
+   * @param <T>
+   *        result type.
+   * @param future
+   *        the future.
+   * @return the future.
+   */
+  public <T> AsynchronousFuture<T> submit(AsynchronousFuture<T> future) {
+    future.markQueued();
+    Entry e = new Entry(future);
+    synchronized (lock) {
+      ArrayDeque<Entry> q = queues.get(e.label);
+      if (q == null) {
+        q = new ArrayDeque<Entry>();
+        queues.put(e.label, q);
+      }
+      if (q.isEmpty()) {
+        labelOrder.addLast(e.label);
+      }
+      q.addLast(e);
+      queued++;
+    }
+    pump();
+    return future;
+  }
+
+  /**
+   * admits and runs queued futures until capacity runs out. Only one thread
+   * pumps at a time; others leave a note for it to look again. A future
+   * whose admission throws in a policy is failed with that exception.
+   */
+  private void pump() {
+    synchronized (lock) {
+      if (pumping) {
+        pumpAgain = true;
+        return;
+      }
+      pumping = true;
+    }
+    boolean drained = false;
+    try {
+      for (;;) {
+        Entry e;
+        synchronized (lock) {
+          e = admitNext();
+          if (e == null) {
+            if (pumpAgain) {
+              pumpAgain = false;
+              continue;
+            }
+            pumping = false;
+            drained = true;
+            return;
+          }
+        }
+        if (e.policyFailure != null) {
+          e.future.failQueued(e.policyFailure);
+        } else {
+          start(e);
+        }
+      }
+    } finally {
+      if (!drained) {
+        // start() threw; the next submit or completion pumps again.
+        synchronized (lock) {
+          pumping = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * takes the next admitted entry; called holding the lock.
+   *
+   * @return the entry, or null if none can be admitted now.
+   */
+  private Entry admitNext() {
+    while (!labelOrder.isEmpty()) {
+      String label = labelOrder.peekFirst();
+      ArrayDeque<Entry> q = queues.get(label);
+      Entry e = q.peekFirst();
+      boolean acquired = false;
+      if (!e.future.isDone()) {
+        long wait;
+        try {
+          wait = acquireAll();
+        } catch (RuntimeException failure) {
+          e.policyFailure = failure;
+          wait = 0;
+        }
+        if (wait > 0) {
+          scheduleRetry(wait);
+        }
+        if (wait != 0) {
+          return null;
+        }
+        acquired = e.policyFailure == null;
+      }
+      q.pollFirst();
+      queued--;
+      labelOrder.pollFirst();
+      if (q.isEmpty()) {
+        queues.remove(label);
+      } else {
+        labelOrder.addLast(label);
+      }
+      if (!e.future.isDone() || e.policyFailure != null) {
+        return e;
+      }
+      // cancelled since its capacity was taken.
+      if (acquired) {
+        for (AdmissionPolicy p : policies) {
+          p.revoke();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * acquires capacity from every policy, or from none: what was acquired is
+   * revoked when a policy refuses or throws.
+   */
+  private long acquireAll() {
+    for (int i = 0; i < policies.length; i++) {
+      long wait;
+      try {
+        wait = policies[i].tryAcquire();
+      } catch (RuntimeException e) {
+        for (int j = 0; j < i; j++) {
+          policies[j].revoke();
+        }
+        throw e;
+      }
+      if (wait != 0) {
+        for (int j = 0; j < i; j++) {
+          policies[j].revoke();
+        }
+        return wait;
+      }
+    }
+    return 0;
+  }
+
+  private void releaseAll() {
+    for (AdmissionPolicy p : policies) {
+      try {
+        p.release();
+      } catch (RuntimeException e) {
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+
+  private void scheduleRetry(long nanos) {
+    if (retryScheduled) {
+      return;
+    }
+    retryScheduled = true;
+    TimeoutWheel wheel = timeoutWheel;
+    if (wheel == null) {
+      wheel = TimeoutWheel.getShared();
+    }
+    wheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (lock) {
+          retryScheduled = false;
+        }
+        pump();
+      }
+    }, nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void start(final Entry e) {
+    final long admittedAt = System.nanoTime();
+    queueWait.record(admittedAt - e.queuedAt);
+    admitted.incrementAndGet();
+    inFlight.incrementAndGet();
+    e.future.addListener(new CompletionListener<Object>() {
+
+      @Override
+      public void onSuccess(Object value) {
+        done();
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        done();
+      }
+
+      @Override
+      public void onCancel() {
+        done();
+      }
+
+      private void done() {
+        callLatency.record(System.nanoTime() - admittedAt);
+        inFlight.decrementAndGet();
+        releaseAll();
+        pump();
+      }
+    });
+    Executor ex = executor;
+    if (ex == null) {
+      e.future.run();
+    } else {
+      try {
+        ex.execute(e.future);
+      } catch (RejectedExecutionException ree) {
+        e.future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * the number of futures waiting for admission.
+   *
+   * @return the count.
+   */
+  public int getQueuedCount() {
+    synchronized (lock) {
+      return queued;
+    }
+  }
+
+  /**
+   * the number of admitted futures not done yet.
+   *
+   * @return the count.
+   */
+  public long getInFlightCount() {
+    return inFlight.get();
+  }
+
+  /**
+   * the number of futures admitted.
+   *
+   * @return the count.
+   */
+  public long getAdmittedCount() {
+    return admitted.get();
+  }
+
+  /**
+   * The time from submission to admission, in nanoseconds.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getQueueWaitHistogram() {
+    return queueWait;
+  }
+
+  /**
+   * The time from admission to completion, in nanoseconds.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getCallLatencyHistogram() {
+    return callLatency;
+  }
+
+  /**
+   * A queued future.
+   */
+  private static final class Entry {
+
+    private final AsynchronousFuture<?> future;
+
+    private final String label;
+
+    private final long queuedAt = System.nanoTime();
+
+    private RuntimeException policyFailure;
+
+    Entry(AsynchronousFuture<?> future) {
+      this.future = future;
+      this.label = String.valueOf(future.getLabel());
+    }
+  }
+}
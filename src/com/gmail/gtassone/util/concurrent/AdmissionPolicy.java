@@ -0,0 +1,39 @@
+package com.gmail.gtassone.util.concurrent;
+
+/**
+ * Capacity check applied by an {@link AdmissionController} before it
+ * initiates a queued call. Every successful {@link #tryAcquire()} is later
+ * balanced by exactly one {@link #release()}, once the admitted call is
+ * done, or one {@link #revoke()}, when another policy of the controller
+ * refused the same call. The controller serializes calls to tryAcquire and
+ * revoke; release may come from any thread.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface AdmissionPolicy {
+
+  /**
+   * Returned by {@link #tryAcquire()} when capacity comes back only as
+   * admitted calls complete.
+   */
+  long UNTIL_RELEASE = -1;
+
+  /**
+   * takes capacity for one call.
+   *
+   * @return 0 if the call is admitted; otherwise the nanoseconds until
+   *         capacity is expected, or UNTIL_RELEASE.
+   */
+  long tryAcquire();
+
+  /**
+   * returns the capacity of an admitted call which is done.
+   */
+  void release();
+
+  /**
+   * withdraws an admission the call never used.
+   */
+  void revoke();
+}
@@ -0,0 +1,404 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups individual asynchronous requests into batched backend calls. Each
+ * {@link #submit(Object)} returns an {@link AsynchronousFuture} for one
+ * request; the requests accumulate until the batch holds the maximum number
+ * of items or the oldest has waited the maximum delay, and are then handed
+ * together to the {@link BatchHandler}. The handler issues one backend call
+ * and fans the responses back out through the {@link Batch}, which sets the
+ * value or failure of each individual future.
+ * <p>
+ * A full batch is dispatched on the submitting thread, a batch closed by its
+ * delay on the timer thread of the {@link TimeoutWheel}; with an Executor
+ * set, batches are dispatched on it instead. Requests whose future was
+ * cancelled before dispatch are left out of the batch.
+ *
+ * @param <R>
+ *        the request type.
+ * @param <T>
+ *        the response type.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class AsynchronousBatcher<R, T> {
+
+  /**
+   * Issues the backend call for a batch.
+   *
+   * @param <R>
+   *        the request type.
+   * @param <T>
+   *        the response type.
+   */
+  public interface BatchHandler<R, T> {
+
+    /**
+     * initiates one backend call for all requests of the batch, without
+     * waiting for its response. The responses are reported through the
+     * batch, from any thread; an exception thrown here fails the whole
+     * batch.
+     *
+     * @param batch
+     *        the batch.
+     */
+    void initiateBatch(Batch<R, T> batch);
+  }
+
+  private final BatchHandler<R, T> handler;
+
+  private final int maxBatchSize;
+
+  private final long maxDelayMillis;
+
+  private final Object lock = new Object();
+
+  private List<BatchedCall> pending = new ArrayList<BatchedCall>();
+
+  private int generation;
+
+  private TimeoutWheel.Timeout pendingFlush;
+
+  private volatile TimeoutWheel timeoutWheel;
+
+  private volatile Executor executor;
+
+  private volatile int callTimeoutMillis;
+
+  private final AtomicLong batches = new AtomicLong();
+
+  private final AtomicLong requests = new AtomicLong();
+
+  /**
+   * Creates a batcher.
+   *
+   * @param handler
+   *        issues the backend calls.
+   * @param maxBatchSize
+   *        the most requests per batch, at least 1.
+   * @param maxDelayMillis
+   *        the longest a request waits for its batch to fill.
+   */
+  public AsynchronousBatcher(BatchHandler<R, T> handler, int maxBatchSize,
+      long maxDelayMillis) {
+    if (handler == null) {
+      throw new NullPointerException("handler");
+    }
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("batch size must be at least 1: "
+          + maxBatchSize);
+    }
+    if (maxDelayMillis < 0) {
+      throw new IllegalArgumentException("delay must not be negative: "
+          + maxDelayMillis);
+    }
+    this.handler = handler;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * sets the Executor dispatching batches.
+   *
+   * @param e
+   *        the executor, or null to dispatch on the thread closing the batch.
+   */
+  public void setExecutor(Executor e) {
+    this.executor = e;
+  }
+
+  /**
+   * sets the wheel timing the batch delay and the call timeouts.
+   *
+   * @param wheel
+   *        the wheel, or null for {@link TimeoutWheel#getShared()}.
+   */
+  public void setTimeoutWheel(TimeoutWheel wheel) {
+    this.timeoutWheel = wheel;
+  }
+
+  /**
+   * sets the timeout of futures submitted from now on, measured from
+   * submission. A future without a response by then fails with a
+   * TimeoutException.
+   *
+   * @param millis
+   *        the timeout, 0 for none.
+   */
+  public void setCallTimeout(int millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("timeout must not be negative: "
+          + millis);
+    }
+    this.callTimeoutMillis = millis;
+  }
+
+  /**
+   * submits a request.
+   *
+   * @param request
+   *        the request.
+   * @return the running future for its response.
+   */
+  public AsynchronousFuture<T> submit(R request) {
+    BatchedCall call = new BatchedCall(request);
+    int timeout = callTimeoutMillis;
+    if (timeout > 0) {
+      call.setDelay(timeout);
+      call.setTimeoutBehavior(AsynchronousFuture.TimeoutBehavior.FAIL);
+      call.setTimeoutWheel(timeoutWheel);
+    }
+    call.run();
+    return call;
+  }
+
+  /**
+   * dispatches the requests accumulated so far without waiting for the batch
+   * to fill.
+   */
+  public void flush() {
+    List<BatchedCall> batch;
+    synchronized (lock) {
+      batch = takePending();
+    }
+    dispatch(batch);
+  }
+
+  private void add(BatchedCall call) {
+    List<BatchedCall> full = null;
+    synchronized (lock) {
+      pending.add(call);
+      if (pending.size() >= maxBatchSize) {
+        full = takePending();
+      } else if (pending.size() == 1) {
+        final int gen = generation;
+        TimeoutWheel wheel = timeoutWheel;
+        if (wheel == null) {
+          wheel = TimeoutWheel.getShared();
+        }
+        pendingFlush = wheel.schedule(new Runnable() {
+          @Override
+          public void run() {
+            delayExpired(gen);
+          }
+        }, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full != null) {
+      dispatch(full);
+    }
+  }
+
+  private void delayExpired(int gen) {
+    List<BatchedCall> batch;
+    synchronized (lock) {
+      if (gen != generation) {
+        return;
+      }
+      batch = takePending();
+    }
+    dispatch(batch);
+  }
+
+  /**
+   * closes the current batch; called holding the lock.
+   */
+  private List<BatchedCall> takePending() {
+    List<BatchedCall> batch = pending;
+    pending = new ArrayList<BatchedCall>();
+    generation++;
+    if (pendingFlush != null) {
+      pendingFlush.cancel();
+      pendingFlush = null;
+    }
+    return batch;
+  }
+
+  private void dispatch(List<BatchedCall> calls) {
+    List<BatchedCall> live = new ArrayList<BatchedCall>(calls.size());
+    for (BatchedCall c : calls) {
+      if (!c.isDone()) {
+        live.add(c);
+      }
+    }
+    if (live.isEmpty()) {
+      return;
+    }
+    final Batch<R, T> batch = new Batch<R, T>(live);
+    batches.incrementAndGet();
+    requests.addAndGet(live.size());
+    Runnable initiate = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          handler.initiateBatch(batch);
+        } catch (RuntimeException e) {
+          batch.fail(e);
+        }
+      }
+    };
+    Executor e = executor;
+    if (e == null) {
+      initiate.run();
+    } else {
+      try {
+        e.execute(initiate);
+      } catch (RejectedExecutionException ree) {
+        batch.fail(ree);
+      }
+    }
+  }
+
+  /**
+   * the number of batches dispatched.
+   *
+   * @return the count.
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /**
+   * the number of requests dispatched in batches.
+   *
+   * @return the count.
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * The requests of one backend call, and the means to answer them. Every
+   * request should be answered with a response or a failure; {@link #done()}
+   * fails those that were not, which covers backends answering only part of
+   * a batch.
+   *
+   * @param <R>
+   *        the request type.
+   * @param <T>
+   *        the response type.
+   */
+  public static final class Batch<R, T> {
+
+    private final List<? extends AsynchronousBatcher<R, T>.BatchedCall> calls;
+
+    private final List<R> requestList;
+
+    Batch(List<? extends AsynchronousBatcher<R, T>.BatchedCall> calls) {
+      this.calls = calls;
+      List<R> r = new ArrayList<R>(calls.size());
+      for (AsynchronousBatcher<R, T>.BatchedCall c : calls) {
+        r.add(c.request);
+      }
+      this.requestList = Collections.unmodifiableList(r);
+    }
+
+    /**
+     * the requests, in submission order.
+     *
+     * @return an unmodifiable list.
+     */
+    public List<R> getRequests() {
+      return requestList;
+    }
+
+    /**
+     * the number of requests.
+     *
+     * @return the size.
+     */
+    public int size() {
+      return calls.size();
+    }
+
+    /**
+     * answers one request.
+     *
+     * @param index
+     *        the position of the request in getRequests().
+     * @param value
+     *        the response.
+     * @return false if the request was already answered, cancelled or timed
+     *         out.
+     */
+    public boolean setResponse(int index, T value) {
+      return calls.get(index).setResponseValue(value);
+    }
+
+    /**
+     * fails one request.
+     *
+     * @param index
+     *        the position of the request in getRequests().
+     * @param cause
+     *        the failure.
+     * @return false if the request was already answered, cancelled or timed
+     *         out.
+     */
+    public boolean setFailure(int index, Exception cause) {
+      return calls.get(index).setResponseException(cause);
+    }
+
+    /**
+     * fails every request not answered yet, as when the backend call failed
+     * as a whole.
+     *
+     * @param cause
+     *        the failure.
+     */
+    public void fail(Exception cause) {
+      for (AsynchronousBatcher<R, T>.BatchedCall c : calls) {
+        c.setResponseException(cause);
+      }
+    }
+
+    /**
+     * signals that the backend response has been processed, failing every
+     * request it did not answer.
+     */
+    public void done() {
+      fail(new IllegalStateException("no response for request in batch"));
+    }
+  }
+
+  /**
+   * The future of one request; initiating it adds it to the current batch.
+   */
+  final class BatchedCall extends AsynchronousFuture<T> {
+
+    private final R request;
+
+    BatchedCall(R request) {
+      this.request = request;
+    }
+
+    @Override
+    public void initiateAsynchronousCall() {
+      add(this);
+    }
+
+    @Override
+    public void onFailure() {
+      // the FAIL timeout behavior applies.
+    }
+
+    @Override
+    public void onInterrupt(InterruptedException e) {
+      // nothing in progress to abort before dispatch.
+    }
+
+    @Override
+    public void onCancellation(CancellationException e) {
+      // left out of the batch at dispatch.
+    }
+  }
+}
@@ -1,18 +1,18 @@
 package com.gmail.gtassone.util.concurrent;
 
-import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Abstract base class for asynchronous computations. The major difference from
  * a normal FutureValue is that AsynchronousFuture expects an external entity to
- * set its final value via setResponseValue(Object value). Once the response
- * value is set, the waiting computation thread terminates. AsynchronousFuture
+ * set its final value via setResponseValue(Object value). AsynchronousFuture
  * also has a built-in time-out mechanism. This class assumes a timed maximum
  * delay to wait for a response to an asynchronous call. Set the delay with
  * setDelay(int millis). Rather than providing a Runnable or Callable
@@ -22,35 +22,59 @@ import java.util.concurrent.TimeoutException;
  * methods onFailure, onInterrupt, onCancellation. For instance, onFailure is
  * triggered when the call times out; implementations might cancel the
  * computation, or send a status query, or start another wait cycle.
+ * <p>
+ * The wait is event-driven: run() initiates the call and returns, the
+ * response completes the Future on the thread calling setResponseValue, and
+ * the time-out is a deadline on a {@link TimeoutWheel} rather than a blocked
+ * thread. Any number of calls can therefore be outstanding at once without a
+ * thread each. onFailure runs on the timer thread and should be brief.
+ * <p>
+ * What happens when a wait cycle times out and onFailure does not start
+ * another one is set with setTimeoutBehavior: complete with null (the
+ * default), fail with a TimeoutException, complete with a fallback value,
+ * cancel, or initiate the call again a limited number of times. A retry is
+ * initiated on the Executor set with setRetryExecutor, not on the timer
+ * thread.
+ * <p>
+ * Every Future timestamps its lifecycle events with System.nanoTime(); see
+ * getTimestamp. Futures with a {@link FutureLifecycleMetrics} report them
+ * once done, aggregated per label, without the debug flag.
+ * <p>
+ * The result can also be consumed without blocking: listeners added with
+ * addListener are notified when the value is set, the call fails through
+ * setResponseException, or the Future is cancelled, and thenApply and
+ * thenCompose chain further computations onto the result.
  * 
  * @param <T>
  *        return type parameter for the Future.
  * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
  * @version $Revision: 4272 $
  */
-public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
+public abstract class AsynchronousFuture<T> implements ListenableFuture<T>,
+    Runnable {
 
-  // should be easy to add a Callback mechanism whereby the setResponseValue()
-  // initiates Callbacks.
-  // implement a method to invoke cancellation or failure with an external
-  // exception.
   // ensure Exceptions and cancel, failure work as intended.
-  
+
   /**
-   * Called when the computation thread begins. Clearly implementations should
-   * initiate an asynchronous call of some kind.
+   * Called when the computation begins, on the thread calling run(). Clearly
+   * implementations should initiate an asynchronous call of some kind, and
+   * return without waiting for its response.
    */
   public abstract void initiateAsynchronousCall();
 
   /**
-   * Triggered on timeout; or a null value. Implementations can use this method
-   * to cancel the call, trigger a wait cycle, or do other arbitrary
-   * book-keeping like sending a status update request.
+   * Triggered on timeout. Implementations can use this method to cancel the
+   * call, trigger a wait cycle with awaitResponse(), or do other arbitrary
+   * book-keeping like sending a status update request. If no new wait cycle
+   * is started the TimeoutBehavior applies. An exception thrown here is
+   * reported to the timer thread's UncaughtExceptionHandler, and the
+   * TimeoutBehavior still applies.
    */
   public abstract void onFailure();
 
   /**
-   * triggered on interrupt.
+   * triggered when cancel(true) interrupts a call in progress, before
+   * onCancellation. Implementations can abort the outstanding call here.
    * 
    * @param e
    *        the exception.
@@ -67,7 +91,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
 
   private String label;
 
-  private boolean isDebug;
+  private volatile boolean isDebug;
 
   /**
    * sets the label for this object, used in logging.
@@ -110,9 +134,94 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
     this.isDebug = debug;
   }
 
-  private FutureTask<T> future;
+  /*
+   * Internal states. TIMED_OUT is a wait cycle which expired and whose
+   * onFailure handler is running; FAILED is a Future completed after a
+   * failure or time-out. Both are reported as ComputationState.FAILURE.
+   */
+
+  private static final int NOT_STARTED = 0;
+
+  private static final int STARTED = 1;
+
+  private static final int WAITING = 2;
 
-  private AsynchronousCallable<T> callable;
+  private static final int TIMED_OUT = 3;
+
+  private static final int SUCCESS = 4;
+
+  private static final int FAILED = 5;
+
+  private static final int CANCELLED = 6;
+
+  private static final ComputationState[] PUBLIC_STATES = {
+      ComputationState.NOT_STARTED, ComputationState.STARTED,
+      ComputationState.WAITING, ComputationState.FAILURE,
+      ComputationState.SUCCESS, ComputationState.FAILURE,
+      ComputationState.CANCELLED };
+
+  /**
+   * legal transitions, as a bit mask of target states per source state.
+   */
+  private static final int[] LEGAL = {
+      // NOT_STARTED: run, cancelled, or failed by an admission layer.
+      bits(STARTED, FAILED, CANCELLED),
+      // STARTED
+      bits(WAITING, SUCCESS, FAILED, CANCELLED),
+      // WAITING
+      bits(TIMED_OUT, SUCCESS, FAILED, CANCELLED),
+      // TIMED_OUT: wait again, retry, or complete.
+      bits(WAITING, STARTED, FAILED, CANCELLED),
+      // SUCCESS, FAILED, CANCELLED are final.
+      0, 0, 0 };
+
+  private static int bits(int... states) {
+    int mask = 0;
+    for (int s : states) {
+      mask |= 1 << s;
+    }
+    return mask;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<AsynchronousFuture> STATE =
+      AtomicIntegerFieldUpdater.newUpdater(AsynchronousFuture.class, "state");
+
+  private final CompletionFuture<T> completion = new CompletionFuture<T>();
+
+  private volatile int state = NOT_STARTED;
+
+  private volatile int delayMillis = 0;
+
+  private volatile boolean isTimed;
+
+  private volatile TimeoutWheel timeoutWheel;
+
+  private volatile TimeoutWheel.Timeout pendingTimeout;
+
+  private volatile int waitCycle;
+
+  private volatile TimeoutBehavior timeoutBehavior =
+      TimeoutBehavior.COMPLETE_NULL;
+
+  private volatile T fallbackValue;
+
+  private volatile int maxRetries;
+
+  private volatile int retries;
+
+  private volatile Executor retryExecutor;
+
+  private volatile long queuedNanos;
+
+  private volatile long initiatedNanos;
+
+  private volatile long respondedNanos;
+
+  private volatile long completedNanos;
+
+  private volatile FutureLifecycleMetrics lifecycleMetrics =
+      FutureLifecycleMetrics.getDefault();
 
   /**
    * default Constructor. Provides an AsynchronousFuture with default settings -
@@ -122,9 +231,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
 
     isDebug = false;
     label = "unlabeled";
-    callable = new AsynchronousCallable<T>(false);
-    future = new FutureTask<T>(callable);
-    callable.setParentFuture(this);
+    isTimed = false;
   }
 
   /**
@@ -135,7 +242,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    */
   public AsynchronousFuture(int delayMillis) {
     this();
-    callable.setDelayMillis(delayMillis);
+    setDelay(delayMillis);
   }
 
   /**
@@ -145,47 +252,370 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    *        the timeout delay, in milliseconds.
    */
   public final void setDelay(int millis) {
-    callable.setDelayMillis(millis);
+    delayMillis = millis;
+    isTimed = true;
+  }
+
+  /**
+   * sets the wheel tracking the timeout of each wait cycle.
+   * 
+   * @param wheel
+   *        the wheel, or null for {@link TimeoutWheel#getShared()}.
+   */
+  public final void setTimeoutWheel(TimeoutWheel wheel) {
+    timeoutWheel = wheel;
+  }
+
+  /**
+   * sets what happens when a wait cycle times out and onFailure does not
+   * start another one.
+   * 
+   * @param behavior
+   *        the behavior; COMPLETE_NULL by default.
+   */
+  public final void setTimeoutBehavior(TimeoutBehavior behavior) {
+    if (behavior == null) {
+      throw new NullPointerException("behavior");
+    }
+    timeoutBehavior = behavior;
+  }
+
+  /**
+   * sets the value the Future completes with under the FALLBACK timeout
+   * behavior.
+   * 
+   * @param val
+   *        the fallback value.
+   */
+  public final void setFallbackValue(T val) {
+    fallbackValue = val;
+  }
 
+  /**
+   * sets how many times the call is initiated again under the RETRY timeout
+   * behavior, after which the Future fails with a TimeoutException.
+   * 
+   * @param max
+   *        the number of retries.
+   */
+  public final void setMaxRetries(int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("max retries must not be negative: "
+          + max);
+    }
+    maxRetries = max;
+  }
+
+  /**
+   * sets the Executor initiating the call again under the RETRY timeout
+   * behavior.
+   * 
+   * @param e
+   *        the executor, or null for a shared cached pool of daemon threads.
+   */
+  public final void setRetryExecutor(Executor e) {
+    retryExecutor = e;
+  }
+
+  /**
+   * moves from one state to another if the Future is still in the first.
+   * 
+   * @return false if another thread changed the state first.
+   */
+  private boolean transition(int from, int to) {
+    if ((LEGAL[from] & (1 << to)) == 0) {
+      throw new IllegalStateException("illegal transition "
+          + PUBLIC_STATES[from] + " -> " + PUBLIC_STATES[to]);
+    }
+    if (!STATE.compareAndSet(this, from, to)) {
+      return false;
+    }
+    if (isDebug) {
+      debug("AsyncFuture setting ComputationState to " + PUBLIC_STATES[to]);
+    }
+    return true;
   }
 
   /**
    * Allows the AsynchronousFuture to be submitted to an Executor, like
-   * FutureValue. This method starts the computation thread, and triggers the
-   * onCancellation method if the computation is canceled.
+   * FutureValue. This method initiates the asynchronous call and starts the
+   * first wait cycle, then returns; it has no effect if the Future has
+   * already been run or cancelled. An exception thrown by
+   * initiateAsynchronousCall fails the Future.
    */
   public final void run() {
+    if (!transition(NOT_STARTED, STARTED)) {
+      debug("AsyncFuture already run, or cancelled");
+      return;
+    }
+
+    initiatedNanos = System.nanoTime();
+
+    debug("AsyncFuture set to started");
+
+    initiate();
+  }
+
+  private void initiate() {
     try {
-      future.run();
-    } catch (CancellationException e) {
-      onCancellation(e);
+      initiateAsynchronousCall();
+    } catch (RuntimeException e) {
+      finish(FAILED, null, e, false);
+      return;
     }
+    awaitResponse();
   }
 
   /**
-   * sets the final response value, which causes the computation thread to
-   * terminate.
+   * sets the final response value, which completes the Future.
    * 
    * @param val
    *        the return value for the Future. (The Future is now.)
    * @return false if the value is already set, true otherwise.
    */
   public final boolean setResponseValue(T val) {
-    return callable.setResponseValue(val);
+    debug("in setResponseValue");
+    return finish(SUCCESS, val, null, true);
   }
 
   /**
-   * This method triggers the internal computation thread to start another wait
-   * cycle. This method should only be called in onFailure or onInterrupt,
-   * because these methods are triggered within the computation thread. This
-   * method should not be called outside the computation thread.
+   * fails the call with an external exception, which completes the Future.
+   * get() then throws an ExecutionException with the given cause, and
+   * listeners are notified through onFailure.
+   * 
+   * @param e
+   *        the failure.
+   * @return false if the value is already set, true otherwise.
+   */
+  public final boolean setResponseException(Exception e) {
+    if (e == null) {
+      throw new NullPointerException("exception");
+    }
+    return finish(FAILED, null, e, true);
+  }
+
+  /**
+   * fails a Future which was never run, as an {@link AdmissionController}
+   * does when a policy throws while admitting it.
+   * 
+   * @param e
+   *        the failure.
+   * @return false if the Future has already been run or cancelled.
+   */
+  final boolean failQueued(Exception e) {
+    if (!transition(NOT_STARTED, FAILED)) {
+      return false;
+    }
+    ended(FutureLabelMetrics.FAILED, System.nanoTime());
+    completion.setException(e);
+    return true;
+  }
+
+  /**
+   * completes a call in progress, from STARTED or WAITING.
+   */
+  private boolean finish(int target, T val, Exception e, boolean responded) {
+    for (;;) {
+      int s = state;
+      if (s != STARTED && s != WAITING) {
+        return false;
+      }
+      if (transition(s, target)) {
+        break;
+      }
+    }
+    cancelPendingTimeout();
+    long now = System.nanoTime();
+    if (responded) {
+      respondedNanos = now;
+    }
+    ended(target == SUCCESS ? FutureLabelMetrics.SUCCEEDED
+        : FutureLabelMetrics.FAILED, now);
+    if (e != null) {
+      completion.setException(e);
+    } else {
+      completion.set(val);
+    }
+    return true;
+  }
+
+  /**
+   * Starts a wait cycle: the Future waits for its response, for the timeout
+   * delay if one is set. Called by run() after initiateAsynchronousCall, and
+   * by onFailure implementations to wait again after a timeout; it has no
+   * effect at other times. No thread is blocked while waiting.
    */
   public final void awaitResponse() {
-    callable.awaitResponse();
+
+    debug("AsyncFuture in awaitResponse");
+
+    int s = state;
+    if ((s != STARTED && s != TIMED_OUT) || !transition(s, WAITING)) {
+      return;
+    }
+    if (isTimed) {
+      final int cycle = ++waitCycle;
+      TimeoutWheel wheel = timeoutWheel;
+      if (wheel == null) {
+        wheel = TimeoutWheel.getShared();
+      }
+      pendingTimeout = wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          timedOut(cycle);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+      if (state != WAITING) {
+        // completed before the deadline was published.
+        cancelPendingTimeout();
+      }
+    }
   }
 
-  private void setComputationState(ComputationState state) {
-    callable.setComputationState(state);
+  /**
+   * initiates the call again on the retry Executor, keeping
+   * initiateAsynchronousCall off the timer thread.
+   */
+  private void retry() {
+    Executor e = retryExecutor;
+    if (e == null) {
+      e = RetryExecutor.INSTANCE;
+    }
+    try {
+      e.execute(new Runnable() {
+        @Override
+        public void run() {
+          // a response may have completed the Future meanwhile.
+          if (state == STARTED) {
+            initiate();
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      finish(FAILED, null, ree, false);
+    }
+  }
+
+  /**
+   * runs on the timer thread when a wait cycle expires without a response.
+   */
+  private void timedOut(int cycle) {
+    if (cycle != waitCycle || !transition(WAITING, TIMED_OUT)) {
+      return;
+    }
+    pendingTimeout = null;
+
+    debug("AsyncFuture wait cycle timed out");
+
+    try {
+      onFailure();
+    } catch (RuntimeException e) {
+      CompletionFuture.reportUncaught(e);
+    }
+
+    TimeoutBehavior behavior = timeoutBehavior;
+    if (behavior == TimeoutBehavior.RETRY && retries < maxRetries) {
+      if (transition(TIMED_OUT, STARTED)) {
+        retries++;
+        if (isDebug) {
+          debug("AsyncFuture initiating retry " + retries);
+        }
+        retry();
+      }
+      return;
+    }
+    if (!transition(TIMED_OUT,
+        behavior == TimeoutBehavior.CANCEL ? CANCELLED : FAILED)) {
+      // cancelled, or waiting again.
+      return;
+    }
+    ended(behavior == TimeoutBehavior.CANCEL ? FutureLabelMetrics.CANCELLED
+        : FutureLabelMetrics.TIMED_OUT, System.nanoTime());
+
+    switch (behavior) {
+    case FAIL:
+      completion.setException(new TimeoutException(label + " timed out after "
+          + delayMillis + " ms"));
+      break;
+    case FALLBACK:
+      completion.set(fallbackValue);
+      break;
+    case CANCEL:
+      completion.cancel(false);
+      onCancellation(new CancellationException(label + " timed out"));
+      break;
+    case RETRY:
+      completion.setException(new TimeoutException(label + " timed out "
+          + (maxRetries + 1) + " times"));
+      break;
+    default:
+      // new behavior is to allow null response value with no complaint.
+      completion.set(null);
+    }
+  }
+
+  /**
+   * stamps completion and reports the lifecycle, before the outcome is
+   * published to waiting threads and listeners.
+   */
+  private void ended(int outcome, long now) {
+    completedNanos = now;
+    FutureLifecycleMetrics m = lifecycleMetrics;
+    if (m != null) {
+      m.record(String.valueOf(label), queuedNanos, initiatedNanos,
+          respondedNanos, now, outcome);
+    }
+  }
+
+  /**
+   * sets the metrics this Future reports its lifecycle to once done.
+   * 
+   * @param metrics
+   *        the metrics, or null to report nowhere; by default
+   *        {@link FutureLifecycleMetrics#getDefault()} at construction.
+   */
+  public final void setLifecycleMetrics(FutureLifecycleMetrics metrics) {
+    lifecycleMetrics = metrics;
+  }
+
+  /**
+   * records the moment the Future was queued for initiation, as by an
+   * {@link AdmissionController}.
+   */
+  public final void markQueued() {
+    queuedNanos = System.nanoTime();
+  }
+
+  /**
+   * the System.nanoTime() at which a lifecycle event happened.
+   * 
+   * @param event
+   *        the event.
+   * @return the timestamp, or 0 if the event has not happened.
+   */
+  public final long getTimestamp(LifecycleEvent event) {
+    switch (event) {
+    case QUEUED:
+      return queuedNanos;
+    case INITIATED:
+      return initiatedNanos;
+    case RESPONDED:
+      return respondedNanos;
+    case COMPLETED:
+      return completedNanos;
+    case CANCELLED:
+      return state == CANCELLED ? completedNanos : 0;
+    default:
+      return state == FAILED ? completedNanos : 0;
+    }
+  }
+
+  private void cancelPendingTimeout() {
+    TimeoutWheel.Timeout t = pendingTimeout;
+    if (t != null) {
+      t.cancel();
+      pendingTimeout = null;
+    }
   }
 
   /**
@@ -194,18 +624,33 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    * @return the ComputationState representing the current state of the Future.
    */
   public final ComputationState getComputationState() {
-    return callable.getComputationState();
+    return PUBLIC_STATES[state];
   }
 
   /**
-   * cancels the Future execution.
+   * cancels the Future execution, triggering onCancellation; with
+   * mayInterruptIfRunning, a call in progress also triggers onInterrupt.
    * 
    * @param mayInterruptIfRunning
-   *        flag passed to future.cancel.
+   *        whether a call in progress is interrupted.
    * @return success or failure.
    */
   public final boolean cancel(boolean mayInterruptIfRunning) {
-    return future.cancel(mayInterruptIfRunning);
+    int s;
+    do {
+      s = state;
+      if (s == SUCCESS || s == FAILED || s == CANCELLED) {
+        return false;
+      }
+    } while (!transition(s, CANCELLED));
+    cancelPendingTimeout();
+    ended(FutureLabelMetrics.CANCELLED, System.nanoTime());
+    completion.cancel(mayInterruptIfRunning);
+    if (s != NOT_STARTED && mayInterruptIfRunning) {
+      onInterrupt(new InterruptedException("cancelled"));
+    }
+    onCancellation(new CancellationException());
+    return true;
   }
 
   /**
@@ -218,7 +663,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    *            if error.
    */
   public final T get() throws InterruptedException, ExecutionException {
-    return future.get();
+    return completion.get();
   }
 
   /**
@@ -238,7 +683,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    */
   public final T get(long timeout, TimeUnit unit) throws TimeoutException,
       InterruptedException, ExecutionException {
-    return future.get(timeout, unit);
+    return completion.get(timeout, unit);
   }
 
   /**
@@ -247,7 +692,7 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    * @return true if cancelled.
    */
   public final boolean isCancelled() {
-    return future.isCancelled();
+    return completion.isCancelled();
   }
 
   /**
@@ -256,295 +701,211 @@ public abstract class AsynchronousFuture<T> implements Future<T>, Runnable {
    * @return true if done.
    */
   public final boolean isDone() {
-    return future.isDone();
+    return completion.isDone();
   }
 
   /**
-   * Enumeration of possible computation states. The AsynchronousFuture manages
-   * its state internally, and client code can access it via
-   * AsynchronousFuture.getComputationState
+   * registers a listener run on the thread completing the Future: the thread
+   * setting the response, the timer thread, or the thread cancelling it.
    * 
-   * @author GTassone
+   * @param listener
+   *        the listener.
    */
-  public static enum ComputationState {
+  public final void addListener(CompletionListener<? super T> listener) {
+    completion.addListener(listener);
+  }
 
-    /**
-     * state before AsynchronousFuture is executed.
-     */
-    NOT_STARTED("NOT_STARTED"),
+  /**
+   * registers a listener run on the given executor once the Future is done.
+   * 
+   * @param listener
+   *        the listener.
+   * @param executor
+   *        runs the listener.
+   */
+  public final void addListener(CompletionListener<? super T> listener,
+      Executor executor) {
+    completion.addListener(listener, executor);
+  }
 
-    /**
-     * state when AsynchronousFuture has started executing.
-     */
-    STARTED("STARTED"),
+  /**
+   * chains a function onto the result.
+   * 
+   * @param <U>
+   *        the result type of the function.
+   * @param fn
+   *        the function.
+   * @return the derived future.
+   */
+  public final <U> ListenableFuture<U> thenApply(
+      CompletionFunction<? super T, ? extends U> fn) {
+    return completion.thenApply(fn);
+  }
 
-    /**
-     * state when AsynchronousFuture has finished executing
-     * initiateAsynchronousCall() and is in a wait loop.
-     */
-    WAITING("WAITING"),
+  /**
+   * chains another asynchronous call onto the result.
+   * 
+   * @param <U>
+   *        the result type of the returned future.
+   * @param fn
+   *        the function starting the next call.
+   * @return the derived future.
+   */
+  public final <U> ListenableFuture<U> thenCompose(
+      CompletionFunction<? super T, ? extends ListenableFuture<? extends U>> fn) {
+    return completion.thenCompose(fn);
+  }
+
+  /**
+   * What a timed out Future does when onFailure has not started another wait
+   * cycle.
+   * 
+   * @author GTassone
+   */
+  public static enum TimeoutBehavior {
 
     /**
-     * state when AsynchronousFuture has successfully set a return value.
+     * complete with a null value.
      */
-    SUCCESS("SUCCESS"),
+    COMPLETE_NULL,
 
     /**
-     * state set when wait cycle has completed and status is not SUCCESS.
+     * fail with a TimeoutException.
      */
-    FAILURE("FAILURE"),
+    FAIL,
 
     /**
-     * state set when Future is cancelled.
+     * complete with the value set by setFallbackValue.
      */
-    CANCELLED("CANCELLED");
-
-    ComputationState(final String n) {
-      this.statename = n;
-    }
-
-    private final String statename;
+    FALLBACK,
 
     /**
-     * returns String name of state.
-     * 
-     * @return the name of the state.
+     * cancel the Future, triggering onCancellation.
      */
-    public final String getStateName() {
-      return statename;
-    }
+    CANCEL,
 
     /**
-     * returns String representation of state.
-     * 
-     * @return the String representation of the state.
+     * initiate the call again, up to setMaxRetries times, then fail with a
+     * TimeoutException.
      */
-    public String toString() {
-      return statename;
-    }
+    RETRY
   }
 
   /**
-   * Internal Callable implementation which executes the 'computation' and
-   * response wait cycle.
+   * Lifecycle events timestamped by every AsynchronousFuture. COMPLETED
+   * applies to every outcome; CANCELLED and FAILED share its timestamp when
+   * they are the outcome. FAILED includes time-outs.
    * 
    * @author GTassone
    */
-  protected static class AsynchronousCallable<T> implements Callable<T> {
-
-    private AsynchronousFuture<T> parent = null;
-
-    private Object responseLock;
-
-    private T response;
-
-    private int delayMillis = 0;
-
-    private boolean isTimed;
-
-    private ComputationState state;
+  public static enum LifecycleEvent {
 
     /**
-     * sets up default callable.
+     * submitted to an admission layer; see markQueued.
      */
-    public AsynchronousCallable() {
-      responseLock = new Object();
-      response = null;
-      isTimed = false;
-      state = ComputationState.NOT_STARTED;
-    }
+    QUEUED,
 
     /**
-     * sets the timed flag.
-     * 
-     * @param timed
-     *        flag.
+     * run, before initiateAsynchronousCall.
      */
-    public AsynchronousCallable(boolean timed) {
-      this();
-      isTimed = timed;
-    }
+    INITIATED,
 
     /**
-     * sets timed flag and delay interval in milliseconds.
-     * 
-     * @param delayMillis
-     *        delay interval in milliseconds.
+     * response value or exception set.
      */
-    public AsynchronousCallable(int delayMillis) {
-      this();
-      setDelayMillis(delayMillis);
-    }
+    RESPONDED,
 
     /**
-     * attaches parent AsynchronousFuture.
-     * 
-     * @param p
-     *        the parent AsynchronousFuture containing this callable.
-     * @return this.
+     * done, whatever the outcome.
      */
-    protected final AsynchronousCallable<T> setParentFuture(
-        AsynchronousFuture<T> p) {
-      parent = p;
-      return this;
-    }
+    COMPLETED,
 
     /**
-     * sets the timed flag and delay interval in milliseconds.
-     * 
-     * @param millis
-     *        delay interval in milliseconds.
+     * cancelled.
      */
-    public final void setDelayMillis(int millis) {
-      isTimed = true;
-      delayMillis = millis;
-    }
+    CANCELLED,
 
     /**
-     * safely alters the ComputationState.
-     * 
-     * @param newState
-     *        the current ComputationState.
+     * failed or timed out.
      */
-    public final void setComputationState(ComputationState newState) {
-
-      parent.debug("AsyncFuture in setComputationState");
-
-      synchronized (responseLock) {
-
-        parent.debug("AsyncFuture in setComputationState sync block");
-        parent.debug("AsyncFuture setting ComputationState to " + newState);
+    FAILED
+  }
 
-        this.state = newState;
-      }
-    }
+  /**
+   * Enumeration of possible computation states. The AsynchronousFuture manages
+   * its state internally, and client code can access it via
+   * AsynchronousFuture.getComputationState
+   * 
+   * @author GTassone
+   */
+  public static enum ComputationState {
 
     /**
-     * gets the current ComputationState.
-     * 
-     * @return the current ComputationState.
+     * state before AsynchronousFuture is executed.
      */
-    public final ComputationState getComputationState() {
-
-      synchronized (responseLock) {
-        return state;
-      }
-    }
+    NOT_STARTED("NOT_STARTED"),
 
     /**
-     * Sets the final value of the AsynchronousCallable, which should cause it
-     * to return, which should end the computation cycle of the enclosing
-     * FutureValue.
-     * 
-     * @param val
-     *        the final result.
-     * @return true on success.
+     * state when AsynchronousFuture has started executing.
      */
-    public final boolean setResponseValue(T val) {
-
-      synchronized (responseLock) {
-
-        parent
-            .debug("in setResponseValue sync block -- this should not occur without first entering awaitResponse()");
-        // since we can't do anything until call() releases the response
-        // lock, this is a good place to check the ComputationState.
-
-        if (getComputationState().equals(ComputationState.STARTED)
-            || getComputationState().equals(ComputationState.WAITING)) {
-          response = val;
-          setComputationState(ComputationState.SUCCESS);
-
-          responseLock.notifyAll();
-          return true;
-        } else {
-          return false;
-        }
-      }
-    }
+    STARTED("STARTED"),
 
     /**
-     * Wait loop of the execution thread. This wait loop constitutes the main
-     * behavior of the computation thread; actual computation or retrieval of
-     * the response value is expected to be carried out externally.
+     * state when AsynchronousFuture has finished executing
+     * initiateAsynchronousCall() and is in a wait loop.
      */
-    public final void awaitResponse() {
-
-      parent.debug("AsyncFuture in awaitResponse");
+    WAITING("WAITING"),
 
-      synchronized (responseLock) {
+    /**
+     * state when AsynchronousFuture has successfully set a return value.
+     */
+    SUCCESS("SUCCESS"),
 
-        parent.debug("AsyncFuture in awaitResponse sync block");
+    /**
+     * state set when wait cycle has completed and status is not SUCCESS.
+     */
+    FAILURE("FAILURE"),
 
-        if (getComputationState().equals(ComputationState.STARTED)) {
+    /**
+     * state set when Future is cancelled.
+     */
+    CANCELLED("CANCELLED");
 
-          parent.setComputationState(ComputationState.WAITING);
+    ComputationState(final String n) {
+      this.statename = n;
+    }
 
-          try {
-            if (isTimed) {
-              responseLock.wait(delayMillis);
-            } else {
-              responseLock.wait();
-            }
-          } catch (InterruptedException e) {
-            parent.onInterrupt(e);
-          }
+    private final String statename;
 
-        }
-      }
+    /**
+     * returns String name of state.
+     * 
+     * @return the name of the state.
+     */
+    public final String getStateName() {
+      return statename;
     }
 
     /**
-     * The method called on the main computation thread. This method obtains the
-     * response lock; initiates the external computation via
-     * initiateAsynchronousCall; and then releases (waits on) the response lock
-     * so the response can be set. If the response is not set the computation
-     * thread regains the lock and executes AsynchronousFuture.onFailure()...
+     * returns String representation of state.
      * 
-     * @return T the final result value set when
-     *         AsynchronousFuture.setResponseValue() is called
-     * @exception Exception
-     *            if something goes wrong.
+     * @return the String representation of the state.
      */
-    public final T call() throws Exception {
-
-      if (parent == null) {
-        throw new Exception(
-            "unset Future; AsynchronousCallable must be wrapped by AsynchronousFuture");
-      }
-      synchronized (responseLock) {
-
-        parent.debug("AsyncFuture called");
-
-        setComputationState(ComputationState.STARTED);
-
-        parent.debug("AsyncFuture set to started");
-
-        (new Thread() {
-
-          public void run() {
-            parent.initiateAsynchronousCall();
-          }
-        }).run();
-
-        awaitResponse();
+    public String toString() {
+      return statename;
+    }
+  }
 
-        parent.debug("AsyncFuture finished awaiting Response");
+  /**
+   * Lazily created default retry executor.
+   */
+  private static final class RetryExecutor {
 
-        if (!getComputationState().equals(ComputationState.SUCCESS)) {
-          setComputationState(ComputationState.FAILURE);
-          parent.onFailure();
-        }
-        // new behavior is to allow null response value with no complaint.
-        // if (response == null) {
-        // use onFailure to customize behavior; for example to
-        // trigger another
-        // awaitResponse cycle
-        // parent.onFailure();
-        // }
+    private static final Executor INSTANCE = Executors
+        .newCachedThreadPool(ThreadFactories.platform(
+            "AsynchronousFuture-retry-", true));
 
-      }
-      return response;
+    private RetryExecutor() {
     }
-
   }
 }
@@ -0,0 +1,368 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fan-in utilities for groups of {@link ListenableFuture}s, such as the
+ * AsynchronousFutures of a scatter-gather request. The combinators return a
+ * future which completes as soon as its condition is decided, without a
+ * thread waiting on the inputs; wrap it with
+ * {@link #withDeadline(ListenableFuture, long, TimeUnit)} to bound the
+ * overall wait:
+ *
+ * <pre>
+ * List&lt;String&gt; answers = AsynchronousFutures.withDeadline(
+ *     AsynchronousFutures.quorum(calls), 200, TimeUnit.MILLISECONDS).get();
+ * </pre>
+ *
+ * A cancelled input counts as failed. Completing or cancelling the combined
+ * future leaves the inputs untouched; cancel the stragglers explicitly if
+ * their results are no longer wanted.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public final class AsynchronousFutures {
+
+  private AsynchronousFutures() {
+  }
+
+  /**
+   * a future holding the values of all inputs, in input order. It fails with
+   * the first input failure.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the inputs.
+   * @return the combined future.
+   */
+  public static <T> ListenableFuture<List<T>> allOf(
+      Collection<? extends ListenableFuture<? extends T>> futures) {
+    final int n = futures.size();
+    final CompletionFuture<List<T>> result = new CompletionFuture<List<T>>();
+    if (n == 0) {
+      result.set(Collections.<T> emptyList());
+      return result;
+    }
+    final AtomicReferenceArray<T> values = new AtomicReferenceArray<T>(n);
+    final AtomicInteger remaining = new AtomicInteger(n);
+    int i = 0;
+    for (ListenableFuture<? extends T> f : futures) {
+      final int index = i++;
+      f.addListener(new CompletionListener<T>() {
+
+        @Override
+        public void onSuccess(T value) {
+          values.set(index, value);
+          if (remaining.decrementAndGet() == 0) {
+            List<T> list = new ArrayList<T>(n);
+            for (int k = 0; k < n; k++) {
+              list.add(values.get(k));
+            }
+            result.set(list);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+          result.setException(cause);
+        }
+
+        @Override
+        public void onCancel() {
+          result.setException(new CancellationException("input cancelled"));
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * a future holding the value of the first input to succeed. It fails with
+   * the last failure once every input has failed.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the inputs, at least one.
+   * @return the combined future.
+   */
+  public static <T> ListenableFuture<T> anyOf(
+      Collection<? extends ListenableFuture<? extends T>> futures) {
+    return AsynchronousFutures.<T> firstN(futures, 1).thenApply(
+        new CompletionFunction<List<T>, T>() {
+          @Override
+          public T apply(List<T> values) {
+            return values.get(0);
+          }
+        });
+  }
+
+  /**
+   * a future holding the values of the first n inputs to succeed, in
+   * completion order. It fails as soon as so many inputs have failed that n
+   * successes are no longer possible.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the inputs.
+   * @param n
+   *        the number of successes needed, between 1 and the number of
+   *        inputs.
+   * @return the combined future.
+   */
+  public static <T> ListenableFuture<List<T>> firstN(
+      Collection<? extends ListenableFuture<? extends T>> futures, final int n) {
+    final int size = futures.size();
+    if (n < 1 || n > size) {
+      throw new IllegalArgumentException("cannot wait for " + n + " of "
+          + size + " futures");
+    }
+    final CompletionFuture<List<T>> result = new CompletionFuture<List<T>>();
+    final List<T> successes = new ArrayList<T>(n);
+    final AtomicInteger failures = new AtomicInteger();
+    for (ListenableFuture<? extends T> f : futures) {
+      f.addListener(new CompletionListener<T>() {
+
+        @Override
+        public void onSuccess(T value) {
+          List<T> done = null;
+          synchronized (successes) {
+            if (successes.size() < n) {
+              successes.add(value);
+              if (successes.size() == n) {
+                done = new ArrayList<T>(successes);
+              }
+            }
+          }
+          if (done != null) {
+            result.set(done);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+          if (size - failures.incrementAndGet() < n) {
+            result.setException(cause);
+          }
+        }
+
+        @Override
+        public void onCancel() {
+          onFailure(new CancellationException("input cancelled"));
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * a future holding the values of the first majority of inputs to succeed,
+   * in completion order: firstN with n = size / 2 + 1.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the inputs, at least one.
+   * @return the combined future.
+   */
+  public static <T> ListenableFuture<List<T>> quorum(
+      Collection<? extends ListenableFuture<? extends T>> futures) {
+    return firstN(futures, futures.size() / 2 + 1);
+  }
+
+  /**
+   * a view of the future which fails with a TimeoutException if the future
+   * is not done within the timeout. The deadline runs on the shared
+   * {@link TimeoutWheel}; the future itself is not cancelled.
+   *
+   * @param <T>
+   *        result type.
+   * @param future
+   *        the future.
+   * @param timeout
+   *        the time allowed.
+   * @param unit
+   *        the unit of timeout.
+   * @return the bounded future.
+   */
+  public static <T> ListenableFuture<T> withDeadline(ListenableFuture<T> future,
+      final long timeout, final TimeUnit unit) {
+    final CompletionFuture<T> result = new CompletionFuture<T>();
+    final TimeoutWheel.Timeout deadline = TimeoutWheel.getShared().schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            result.setException(new TimeoutException("not done within "
+                + timeout + " " + unit));
+          }
+        }, timeout, unit);
+    result.addListener(new CompletionListener.Adapter<T>() {
+      @Override
+      public void onSuccess(T value) {
+        deadline.cancel();
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        deadline.cancel();
+      }
+
+      @Override
+      public void onCancel() {
+        deadline.cancel();
+      }
+    });
+    future.addListener(CompletionFuture.forwardTo(result));
+    return result;
+  }
+
+  /**
+   * iterates over the futures in the order they complete.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the futures.
+   * @return an iterator blocking until the next future is done.
+   */
+  public static <T> CompletionOrder<T> inCompletionOrder(
+      Collection<? extends ListenableFuture<T>> futures) {
+    return new CompletionOrder<T>(futures, -1);
+  }
+
+  /**
+   * iterates over the futures in the order they complete, until the
+   * deadline passes.
+   *
+   * @param <T>
+   *        result type.
+   * @param futures
+   *        the futures.
+   * @param timeout
+   *        the time allowed for the whole iteration.
+   * @param unit
+   *        the unit of timeout.
+   * @return an iterator blocking until the next future is done.
+   */
+  public static <T> CompletionOrder<T> inCompletionOrder(
+      Collection<? extends ListenableFuture<T>> futures, long timeout,
+      TimeUnit unit) {
+    return new CompletionOrder<T>(futures, Math.max(0, unit.toNanos(timeout)));
+  }
+
+  /**
+   * Iterator over a group of futures in completion order, like an
+   * ExecutorCompletionService. {@link #hasNext()} blocks until another future
+   * is done, and returns false once every future has been returned, the
+   * deadline has passed, or the waiting thread is interrupted; the futures
+   * returned by {@link #next()} are done, so their get() does not block.
+   *
+   * @param <T>
+   *        result type.
+   */
+  public static final class CompletionOrder<T> implements
+      Iterator<ListenableFuture<T>> {
+
+    private final BlockingQueue<ListenableFuture<T>> completed =
+        new LinkedBlockingQueue<ListenableFuture<T>>();
+
+    private final boolean timed;
+
+    private final long deadline;
+
+    private int remaining;
+
+    private ListenableFuture<T> next;
+
+    CompletionOrder(Collection<? extends ListenableFuture<T>> futures,
+        long timeoutNanos) {
+      this.timed = timeoutNanos >= 0;
+      this.deadline = System.nanoTime() + Math.max(0, timeoutNanos);
+      this.remaining = futures.size();
+      for (final ListenableFuture<T> f : futures) {
+        f.addListener(new CompletionListener<T>() {
+
+          @Override
+          public void onSuccess(T value) {
+            completed.add(f);
+          }
+
+          @Override
+          public void onFailure(Throwable cause) {
+            completed.add(f);
+          }
+
+          @Override
+          public void onCancel() {
+            completed.add(f);
+          }
+        });
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (remaining == 0) {
+        return false;
+      }
+      try {
+        if (timed) {
+          next = completed.poll(deadline - System.nanoTime(),
+              TimeUnit.NANOSECONDS);
+        } else {
+          next = completed.take();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      if (next == null) {
+        return false;
+      }
+      remaining--;
+      return true;
+    }
+
+    @Override
+    public ListenableFuture<T> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ListenableFuture<T> f = next;
+      next = null;
+      return f;
+    }
+
+    /**
+     * the number of futures not returned yet.
+     *
+     * @return the count.
+     */
+    public int getRemaining() {
+      return next != null ? remaining + 1 : remaining;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,591 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MonitorDispatchThread which feeds a {@link BatchMonitoredAction} chunks of
+ * the client Collection rather than single elements. A chunk is closed when it
+ * reaches the batch size, or when the max linger time has elapsed since its
+ * first element was taken. The timeout applies to each batch as a whole.
+ * <p>
+ * The source may also be a live feed, a BlockingQueue or an Iterator whose
+ * hasNext() may block, consumed until {@link #endOfInput()} is called and the
+ * feed is drained. A chunk of a BlockingQueue waits for more elements with a
+ * timed poll, so it is closed once the linger time expires even while the
+ * queue stays empty; a chunk of an Iterator is only closed between elements.
+ * <p>
+ * Every MonitorDispatchThread hook applies, with the batch as the current
+ * object. In addition, {@link #handleBatchTimedOut(BatchOutcome)} reports the
+ * elements still pending when a batch exceeds its timeout, and
+ * {@link #handleBatchCompleted(BatchOutcome)} reports which elements
+ * succeeded, failed or timed out once the action returns. A
+ * {@link RetryPolicy} retries whole batches, each attempt reporting to a fresh
+ * outcome.
+ *
+ * @param <T>
+ *            The type of objects to perform action on.
+ * @author gabriel
+ */
+public class BatchMonitorDispatchThread<T> extends
+		MonitorDispatchThread.Adapter<List<T>> {
+
+	/**
+	 * The default maximum number of elements per batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * Client-defined execution block for a batch of elements.
+	 *
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	public static interface BatchMonitoredAction<T> {
+
+		/**
+		 * Execute action on the given batch. Individual elements may be
+		 * reported through the outcome as they succeed or fail; elements still
+		 * pending when this method returns normally are marked succeeded, and
+		 * elements still pending when it throws are marked failed with the
+		 * thrown exception.
+		 *
+		 * @param batch
+		 *            Objects to execute action on.
+		 * @param outcome
+		 *            Receives per-element results, indexed by batch position.
+		 * @throws Exception
+		 *             if the batch as a whole fails.
+		 */
+		void execute(List<T> batch, BatchOutcome<T> outcome) throws Exception;
+
+	}
+
+	/**
+	 * Status of one element of a batch.
+	 */
+	public static enum ElementStatus {
+		/**
+		 * No result has been reported yet.
+		 */
+		PENDING,
+		/**
+		 * The element was processed successfully.
+		 */
+		SUCCEEDED,
+		/**
+		 * The element failed.
+		 */
+		FAILED,
+		/**
+		 * The batch timed out before a result was reported for the element.
+		 */
+		TIMED_OUT;
+	}
+
+	/**
+	 * Per-element results of one batch. The batch is settled once, by the
+	 * action returning or by the timeout, whichever comes first: results
+	 * reported after the batch timed out are ignored, so a TIMED_OUT element
+	 * stays TIMED_OUT, and a timeout after the action returned marks nothing.
+	 *
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	public static class BatchOutcome<T> {
+
+		private final List<T> batch;
+
+		private final ElementStatus[] status;
+
+		private final Exception[] failures;
+
+		private boolean timedOut;
+
+		private boolean settled;
+
+		BatchOutcome(List<T> batch) {
+			this.batch = batch;
+			this.status = new ElementStatus[batch.size()];
+			this.failures = new Exception[batch.size()];
+			for (int i = 0; i < status.length; i++) {
+				status[i] = ElementStatus.PENDING;
+			}
+		}
+
+		/**
+		 * the batch these results belong to.
+		 *
+		 * @return the batch.
+		 */
+		public List<T> getBatch() {
+			return batch;
+		}
+
+		/**
+		 * Reports the element at the given batch position as processed.
+		 *
+		 * @param index
+		 *            batch position.
+		 */
+		public synchronized void succeeded(int index) {
+			report(index, ElementStatus.SUCCEEDED, null);
+		}
+
+		/**
+		 * Reports the element at the given batch position as failed.
+		 *
+		 * @param index
+		 *            batch position.
+		 * @param cause
+		 *            the reason, may be null.
+		 */
+		public synchronized void failed(int index, Exception cause) {
+			report(index, ElementStatus.FAILED, cause);
+		}
+
+		/**
+		 * The status of the element at the given batch position.
+		 *
+		 * @param index
+		 *            batch position.
+		 * @return the status.
+		 */
+		public synchronized ElementStatus getStatus(int index) {
+			return status[index];
+		}
+
+		/**
+		 * The failure reported for the element at the given batch position.
+		 *
+		 * @param index
+		 *            batch position.
+		 * @return the failure, or null.
+		 */
+		public synchronized Exception getFailure(int index) {
+			return failures[index];
+		}
+
+		/**
+		 * The elements currently in the given status, in batch order.
+		 *
+		 * @param s
+		 *            the status.
+		 * @return the matching elements.
+		 */
+		public synchronized List<T> getElements(ElementStatus s) {
+			List<T> result = new ArrayList<T>();
+			for (int i = 0; i < status.length; i++) {
+				if (status[i] == s) {
+					result.add(batch.get(i));
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * timed out predicate.
+		 *
+		 * @return true if the batch exceeded its timeout.
+		 */
+		public synchronized boolean isTimedOut() {
+			return timedOut;
+		}
+
+		private void report(int index, ElementStatus s, Exception cause) {
+			if (status[index] == ElementStatus.PENDING) {
+				status[index] = s;
+				failures[index] = cause;
+			}
+		}
+
+		synchronized boolean timeOut() {
+			if (settled) {
+				return false;
+			}
+			settled = true;
+			timedOut = true;
+			for (int i = 0; i < status.length; i++) {
+				report(i, ElementStatus.TIMED_OUT, null);
+			}
+			return true;
+		}
+
+		synchronized void finish(Exception cause) {
+			if (settled) {
+				return;
+			}
+			settled = true;
+			for (int i = 0; i < status.length; i++) {
+				if (cause == null) {
+					report(i, ElementStatus.SUCCEEDED, null);
+				} else {
+					report(i, ElementStatus.FAILED, cause);
+				}
+			}
+		}
+	}
+
+	private final BatchInvoker<T> invoker;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private long maxLingerNanos = Long.MAX_VALUE;
+
+	/**
+	 * Creates a thread that will perform the given batch action on chunks of
+	 * the given collection in iterator order.
+	 *
+	 * @param coll
+	 *            The collection to perform task on.
+	 * @param batchAction
+	 *            The task to perform on each chunk.
+	 */
+	public BatchMonitorDispatchThread(Collection<T> coll,
+			BatchMonitoredAction<T> batchAction) {
+		this(new ChunkedCollection<T>(coll), new BatchInvoker<T>(batchAction));
+	}
+
+	/**
+	 * Creates a thread that will perform the given batch action on chunks of
+	 * the elements taken from the given queue, as elements arrive.
+	 *
+	 * @param feed
+	 *            The queue to consume.
+	 * @param batchAction
+	 *            The task to perform on each chunk.
+	 */
+	public BatchMonitorDispatchThread(BlockingQueue<T> feed,
+			BatchMonitoredAction<T> batchAction) {
+		this(new FeedChunks<T>(feed), new BatchInvoker<T>(batchAction));
+	}
+
+	/**
+	 * Creates a thread that will perform the given batch action on chunks of
+	 * the elements of the given iterator. hasNext() may block while waiting
+	 * for elements; the source ends when it returns false.
+	 *
+	 * @param source
+	 *            The elements to perform task on.
+	 * @param batchAction
+	 *            The task to perform on each chunk.
+	 */
+	public BatchMonitorDispatchThread(Iterator<T> source,
+			BatchMonitoredAction<T> batchAction) {
+		this(new IteratorChunks<T>(source), new BatchInvoker<T>(batchAction));
+	}
+
+	private BatchMonitorDispatchThread(ChunkedCollection<T> chunks,
+			BatchInvoker<T> invoker) {
+		super(chunks, invoker);
+		chunks.owner = this;
+		invoker.owner = this;
+		this.invoker = invoker;
+	}
+
+	private BatchMonitorDispatchThread(Chunks<T> chunks, BatchInvoker<T> invoker) {
+		super(chunks, invoker);
+		chunks.owner = this;
+		invoker.owner = this;
+		this.invoker = invoker;
+	}
+
+	/**
+	 * Set the maximum number of elements per batch. Must be called before the
+	 * thread is started.
+	 *
+	 * @param size
+	 *            at least 1.
+	 */
+	public void setBatchSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("batch size must be at least 1: "
+					+ size);
+		}
+		this.batchSize = size;
+	}
+
+	/**
+	 * Set the longest time a batch may wait for more elements after its first
+	 * element was taken. Must be called before the thread is started. With a
+	 * live feed and no limit, a batch waits until it is full or the input
+	 * ends.
+	 *
+	 * @param millis
+	 *            milliseconds; unlimited by default.
+	 */
+	public void setMaxLinger(long millis) {
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * the batch action being performed.
+	 *
+	 * @return the batch action.
+	 */
+	public BatchMonitoredAction<T> getBatchMonitoredAction() {
+		return invoker.batchAction;
+	}
+
+	/**
+	 * This hook is called on the monitor thread when a batch exceeds its
+	 * timeout, after the pending elements were marked TIMED_OUT.
+	 *
+	 * @param outcome
+	 *            results of the batch so far.
+	 */
+	public void handleBatchTimedOut(BatchOutcome<T> outcome) {
+	}
+
+	/**
+	 * This hook is called when the batch action returns or throws, before
+	 * {@link #handleTaskCompleted()} or {@link #handleDispatchException}.
+	 *
+	 * @param outcome
+	 *            final results of the batch.
+	 */
+	public void handleBatchCompleted(BatchOutcome<T> outcome) {
+	}
+
+	/**
+	 * Marks the pending elements of the current batch TIMED_OUT and reports
+	 * them, unless the action returned first. Final so the marking always
+	 * runs; subclasses are told through {@link #handleBatchTimedOut}.
+	 */
+	@Override
+	public final void handleTimeout() {
+		List<T> current = getCurrentObject();
+		if (current instanceof Chunk) {
+			BatchOutcome<T> outcome = ((Chunk<T>) current).outcome;
+			if (outcome.timeOut()) {
+				handleBatchTimedOut(outcome);
+			}
+		}
+	}
+
+	/**
+	 * MonitoredAction adapting a BatchMonitoredAction to chunks.
+	 */
+	private static class BatchInvoker<T> implements MonitoredAction<List<T>> {
+
+		private final BatchMonitoredAction<T> batchAction;
+
+		private BatchMonitorDispatchThread<T> owner;
+
+		BatchInvoker(BatchMonitoredAction<T> batchAction) {
+			this.batchAction = batchAction;
+		}
+
+		@Override
+		public void execute(List<T> batch) throws Exception {
+			BatchOutcome<T> outcome = ((Chunk<T>) batch).begin();
+			try {
+				batchAction.execute(batch, outcome);
+			} catch (Exception e) {
+				outcome.finish(e);
+				owner.handleBatchCompleted(outcome);
+				throw e;
+			}
+			outcome.finish(null);
+			owner.handleBatchCompleted(outcome);
+		}
+	}
+
+	/**
+	 * A batch, carrying the outcome of its current execution so the hooks can
+	 * find it from the current object. A retried batch gets a fresh outcome.
+	 */
+	private static class Chunk<T> extends AbstractList<T> {
+
+		private final List<T> elements;
+
+		private volatile BatchOutcome<T> outcome;
+
+		private volatile boolean executed;
+
+		Chunk(List<T> elements) {
+			this.elements = elements;
+			this.outcome = new BatchOutcome<T>(this);
+		}
+
+		BatchOutcome<T> begin() {
+			if (executed) {
+				outcome = new BatchOutcome<T>(this);
+			}
+			executed = true;
+			return outcome;
+		}
+
+		@Override
+		public T get(int index) {
+			return elements.get(index);
+		}
+
+		@Override
+		public int size() {
+			return elements.size();
+		}
+	}
+
+	/**
+	 * A source cut into chunks as the monitor iterates.
+	 */
+	private static abstract class Chunks<T> implements Iterator<List<T>> {
+
+		BatchMonitorDispatchThread<T> owner;
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Chunks of an Iterator; the linger time is checked between elements.
+	 */
+	private static class IteratorChunks<T> extends Chunks<T> {
+
+		private final Iterator<T> elements;
+
+		IteratorChunks(Iterator<T> elements) {
+			this.elements = elements;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return elements.hasNext();
+		}
+
+		@Override
+		public List<T> next() {
+			if (!elements.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int size = owner.batchSize;
+			long linger = owner.maxLingerNanos;
+			List<T> chunk = new ArrayList<T>(Math.min(size, 1024));
+			long start = System.nanoTime();
+			do {
+				chunk.add(elements.next());
+			} while (chunk.size() < size && System.nanoTime() - start < linger
+					&& elements.hasNext());
+			return new Chunk<T>(chunk);
+		}
+	}
+
+	/**
+	 * Chunks of a BlockingQueue; a chunk waits for more elements with a timed
+	 * poll, up to the linger time. The queue ends once the input is closed and
+	 * drained.
+	 */
+	private static class FeedChunks<T> extends Chunks<T> {
+
+		private final BlockingQueue<T> feed;
+
+		private T first;
+
+		FeedChunks(BlockingQueue<T> feed) {
+			this.feed = feed;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while (first == null) {
+					if (owner.isTerminating()) {
+						return false;
+					}
+					if (owner.isInputClosed()) {
+						first = feed.poll();
+						if (first == null) {
+							return false;
+						}
+					} else {
+						first = feed.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					}
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"interrupted while waiting for input", e);
+			}
+		}
+
+		@Override
+		public List<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int size = owner.batchSize;
+			long linger = owner.maxLingerNanos;
+			List<T> chunk = new ArrayList<T>(Math.min(size, 1024));
+			chunk.add(first);
+			first = null;
+			long start = System.nanoTime();
+			try {
+				while (chunk.size() < size) {
+					T t = feed.poll();
+					if (t == null) {
+						long left = linger - (System.nanoTime() - start);
+						if (left <= 0 || owner.isInputClosed()
+								|| owner.isTerminating()) {
+							break;
+						}
+						t = feed.poll(Math.min(left,
+								TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS)),
+								TimeUnit.NANOSECONDS);
+						if (t == null) {
+							continue;
+						}
+					}
+					chunk.add(t);
+				}
+			} catch (InterruptedException e) {
+				// the chunk is closed early; the monitor sees the interrupt.
+				Thread.currentThread().interrupt();
+			}
+			return new Chunk<T>(chunk);
+		}
+	}
+
+	/**
+	 * View of the client Collection as a sequence of chunks, cut lazily as the
+	 * monitor iterates.
+	 */
+	private static class ChunkedCollection<T> extends
+			AbstractCollection<List<T>> {
+
+		private final Collection<T> source;
+
+		private BatchMonitorDispatchThread<T> owner;
+
+		ChunkedCollection(Collection<T> source) {
+			this.source = source;
+		}
+
+		@Override
+		public Iterator<List<T>> iterator() {
+			IteratorChunks<T> chunks = new IteratorChunks<T>(source.iterator());
+			chunks.owner = owner;
+			return chunks;
+		}
+
+		/**
+		 * The number of full-size chunks the source would be cut into; fewer
+		 * elements per chunk are possible when the linger time expires.
+		 */
+		@Override
+		public int size() {
+			int size = owner.batchSize;
+			return (source.size() + size - 1) / size;
+		}
+	}
+}
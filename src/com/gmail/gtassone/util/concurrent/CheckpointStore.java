@@ -0,0 +1,71 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.io.IOException;
+
+/**
+ * Durable record of the elements a {@link MonitorDispatchThread} has
+ * completed, so that a run interrupted by a crash can resume without
+ * repeating them. Elements are identified either by their position in the
+ * source or by a key; see
+ * {@link MonitorDispatchThread#setCheckpointStore(CheckpointStore)}.
+ * Implementations may buffer records, and must be safe for concurrent use.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface CheckpointStore {
+
+  /**
+   * completed predicate for an element identified by position.
+   *
+   * @param index
+   *        position in the source, counting from 0.
+   * @return true if a previous run completed the element.
+   */
+  boolean isCompleted(long index);
+
+  /**
+   * completed predicate for an element identified by key.
+   *
+   * @param key
+   *        the element key.
+   * @return true if a previous run completed the element.
+   */
+  boolean isCompleted(String key);
+
+  /**
+   * records the element at the given position as completed.
+   *
+   * @param index
+   *        position in the source, counting from 0.
+   * @throws IOException
+   *         if buffered records could not be written.
+   */
+  void completed(long index) throws IOException;
+
+  /**
+   * records the element with the given key as completed.
+   *
+   * @param key
+   *        the element key.
+   * @throws IOException
+   *         if buffered records could not be written.
+   */
+  void completed(String key) throws IOException;
+
+  /**
+   * writes out any buffered records.
+   *
+   * @throws IOException
+   *         if the records could not be written.
+   */
+  void flush() throws IOException;
+
+  /**
+   * flushes and releases the store.
+   *
+   * @throws IOException
+   *         if the records could not be written.
+   */
+  void close() throws IOException;
+}
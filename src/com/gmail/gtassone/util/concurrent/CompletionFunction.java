@@ -0,0 +1,26 @@
+package com.gmail.gtassone.util.concurrent;
+
+/**
+ * A step in a chain of {@link ListenableFuture}s, transforming the result of
+ * one future into a value or into another future.
+ *
+ * @param <A>
+ *        input type.
+ * @param <B>
+ *        output type.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface CompletionFunction<A, B> {
+
+  /**
+   * transforms a result.
+   *
+   * @param input
+   *        the result of the previous future.
+   * @return the transformed result.
+   * @throws Exception
+   *         to fail the derived future.
+   */
+  B apply(A input) throws Exception;
+}
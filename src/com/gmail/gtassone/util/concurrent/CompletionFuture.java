@@ -0,0 +1,366 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ListenableFuture completed explicitly through {@link #set(Object)},
+ * {@link #setException(Throwable)} or {@link #cancel(boolean)}. Whichever
+ * call comes first wins; later calls return false. Listeners registered
+ * before completion run after the completing call has published the result,
+ * on the executor they were registered with. A listener which throws, or
+ * whose executor rejects it, is reported to the UncaughtExceptionHandler of
+ * the thread notifying it.
+ * <p>
+ * This is the building block for non-blocking consumers of
+ * {@link AsynchronousFuture}, and the type of the futures derived with
+ * {@link #thenApply(CompletionFunction)} and
+ * {@link #thenCompose(CompletionFunction)}.
+ *
+ * @param <T>
+ *        result type.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class CompletionFuture<T> implements ListenableFuture<T> {
+
+  private static final int PENDING = 0;
+
+  private static final int SUCCEEDED = 1;
+
+  private static final int FAILED = 2;
+
+  private static final int CANCELLED = 3;
+
+  /**
+   * runs listeners on the calling thread.
+   */
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable r) {
+      r.run();
+    }
+  };
+
+  private int state = PENDING;
+
+  private T value;
+
+  private Throwable failure;
+
+  private List<Registration<T>> listeners;
+
+  /**
+   * a future already completed with the given value.
+   *
+   * @param <T>
+   *        result type.
+   * @param value
+   *        the value.
+   * @return the future.
+   */
+  public static <T> CompletionFuture<T> completed(T value) {
+    CompletionFuture<T> f = new CompletionFuture<T>();
+    f.set(value);
+    return f;
+  }
+
+  /**
+   * a future already failed with the given cause.
+   *
+   * @param <T>
+   *        result type.
+   * @param cause
+   *        the failure.
+   * @return the future.
+   */
+  public static <T> CompletionFuture<T> failed(Throwable cause) {
+    CompletionFuture<T> f = new CompletionFuture<T>();
+    f.setException(cause);
+    return f;
+  }
+
+  /**
+   * completes the future with a value.
+   *
+   * @param val
+   *        the value, possibly null.
+   * @return false if the future was already done.
+   */
+  public boolean set(T val) {
+    return complete(SUCCEEDED, val, null);
+  }
+
+  /**
+   * completes the future with a failure.
+   *
+   * @param cause
+   *        the failure, not null.
+   * @return false if the future was already done.
+   */
+  public boolean setException(Throwable cause) {
+    if (cause == null) {
+      throw new NullPointerException("cause");
+    }
+    return complete(FAILED, null, cause);
+  }
+
+  /**
+   * cancels the future. There is no computation to interrupt, so the flag
+   * is ignored.
+   *
+   * @param mayInterruptIfRunning
+   *        ignored.
+   * @return false if the future was already done.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return complete(CANCELLED, null, null);
+  }
+
+  private boolean complete(int newState, T val, Throwable cause) {
+    List<Registration<T>> toNotify;
+    synchronized (this) {
+      if (state != PENDING) {
+        return false;
+      }
+      state = newState;
+      value = val;
+      failure = cause;
+      toNotify = listeners;
+      listeners = null;
+      notifyAll();
+    }
+    if (toNotify != null) {
+      for (Registration<T> r : toNotify) {
+        dispatch(r.listener, r.executor);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (state == PENDING) {
+      wait();
+    }
+    return report();
+  }
+
+  @Override
+  public synchronized T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (state == PENDING) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return report();
+  }
+
+  private T report() throws ExecutionException {
+    if (state == SUCCEEDED) {
+      return value;
+    }
+    if (state == CANCELLED) {
+      throw new CancellationException();
+    }
+    throw new ExecutionException(failure);
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return state != PENDING;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return state == CANCELLED;
+  }
+
+  @Override
+  public void addListener(CompletionListener<? super T> listener) {
+    addListener(listener, DIRECT);
+  }
+
+  @Override
+  public void addListener(CompletionListener<? super T> listener,
+      Executor executor) {
+    if (listener == null || executor == null) {
+      throw new NullPointerException();
+    }
+    synchronized (this) {
+      if (state == PENDING) {
+        if (listeners == null) {
+          listeners = new ArrayList<Registration<T>>(2);
+        }
+        listeners.add(new Registration<T>(listener, executor));
+        return;
+      }
+    }
+    dispatch(listener, executor);
+  }
+
+  private void dispatch(final CompletionListener<? super T> listener,
+      Executor executor) {
+    final int s;
+    final T v;
+    final Throwable f;
+    synchronized (this) {
+      s = state;
+      v = value;
+      f = failure;
+    }
+    Runnable notification = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (s == SUCCEEDED) {
+            listener.onSuccess(v);
+          } else if (s == FAILED) {
+            listener.onFailure(f);
+          } else {
+            listener.onCancel();
+          }
+        } catch (RuntimeException e) {
+          // a failing listener must not affect the others.
+          reportUncaught(e);
+        }
+      }
+    };
+    try {
+      executor.execute(notification);
+    } catch (RejectedExecutionException e) {
+      reportUncaught(e);
+    }
+  }
+
+  /**
+   * hands an exception nobody can catch to the current thread's
+   * UncaughtExceptionHandler, without ending the thread.
+   * 
+   * @param e
+   *        the exception.
+   */
+  static void reportUncaught(Throwable e) {
+    Thread current = Thread.currentThread();
+    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+  }
+
+  @Override
+  public <U> CompletionFuture<U> thenApply(
+      final CompletionFunction<? super T, ? extends U> fn) {
+    final CompletionFuture<U> result = new CompletionFuture<U>();
+    addListener(new CompletionListener<T>() {
+
+      @Override
+      public void onSuccess(T v) {
+        try {
+          result.set(fn.apply(v));
+        } catch (Exception e) {
+          result.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        result.setException(cause);
+      }
+
+      @Override
+      public void onCancel() {
+        result.cancel(false);
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public <U> CompletionFuture<U> thenCompose(
+      final CompletionFunction<? super T, ? extends ListenableFuture<? extends U>> fn) {
+    final CompletionFuture<U> result = new CompletionFuture<U>();
+    addListener(new CompletionListener<T>() {
+
+      @Override
+      public void onSuccess(T v) {
+        ListenableFuture<? extends U> next;
+        try {
+          next = fn.apply(v);
+        } catch (Exception e) {
+          result.setException(e);
+          return;
+        }
+        if (next == null) {
+          result.setException(new NullPointerException(
+              "thenCompose function returned null"));
+        } else {
+          next.addListener(forwardTo(result));
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        result.setException(cause);
+      }
+
+      @Override
+      public void onCancel() {
+        result.cancel(false);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * a listener completing the target with the outcome it receives.
+   *
+   * @param <U>
+   *        result type.
+   * @param target
+   *        the future to complete.
+   * @return the listener.
+   */
+  static <U> CompletionListener<U> forwardTo(final CompletionFuture<U> target) {
+    return new CompletionListener<U>() {
+
+      @Override
+      public void onSuccess(U v) {
+        target.set(v);
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        target.setException(cause);
+      }
+
+      @Override
+      public void onCancel() {
+        target.cancel(false);
+      }
+    };
+  }
+
+  /**
+   * A listener with its executor.
+   */
+  private static final class Registration<T> {
+
+    private final CompletionListener<? super T> listener;
+
+    private final Executor executor;
+
+    Registration(CompletionListener<? super T> listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+  }
+}
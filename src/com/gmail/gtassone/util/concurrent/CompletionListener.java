@@ -0,0 +1,56 @@
+package com.gmail.gtassone.util.concurrent;
+
+/**
+ * Receives the outcome of a {@link ListenableFuture}. Exactly one method is
+ * called, once, after the future is done.
+ *
+ * @param <T>
+ *        result type of the future.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface CompletionListener<T> {
+
+  /**
+   * called when the future completed with a value.
+   *
+   * @param value
+   *        the result, possibly null.
+   */
+  void onSuccess(T value);
+
+  /**
+   * called when the future failed.
+   *
+   * @param cause
+   *        the failure.
+   */
+  void onFailure(Throwable cause);
+
+  /**
+   * called when the future was cancelled.
+   */
+  void onCancel();
+
+  /**
+   * Utility adapter class for listeners which don't wish to implement every
+   * method.
+   *
+   * @param <T>
+   *        result type of the future.
+   */
+  public abstract class Adapter<T> implements CompletionListener<T> {
+
+    @Override
+    public void onSuccess(T value) {
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+    }
+
+    @Override
+    public void onCancel() {
+    }
+  }
+}
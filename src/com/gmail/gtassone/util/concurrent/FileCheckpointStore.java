@@ -0,0 +1,301 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CheckpointStore kept in an append-only local file. Records are buffered
+ * and appended in batches, once the batch size is reached or the flush
+ * interval has elapsed since the last write, and on {@link #flush()} and
+ * {@link #close()}. A JVM crash therefore loses at most the last unwritten
+ * batch, which is simply executed again on resume; {@link #setSync(boolean)}
+ * extends the guarantee to operating system crashes.
+ * <p>
+ * The file holds one record per line: <code>i</code> followed by a position,
+ * or <code>k</code> followed by an escaped key. A partial line left by a
+ * crash is discarded when the file is reopened.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+  /**
+   * The default number of records per write.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  /**
+   * The default longest time between writes, in milliseconds.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+  private final File file;
+
+  private final BitSet completedIndices = new BitSet();
+
+  private final Set<Long> completedLargeIndices = new HashSet<Long>();
+
+  private final Set<String> completedKeys = new HashSet<String>();
+
+  private final FileOutputStream out;
+
+  private final Writer writer;
+
+  private final StringBuilder buffer = new StringBuilder();
+
+  private int buffered;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  private long flushIntervalNanos = TimeUnit.MILLISECONDS
+      .toNanos(DEFAULT_FLUSH_INTERVAL_MILLIS);
+
+  private long lastWrite = System.nanoTime();
+
+  private boolean sync;
+
+  private boolean closed;
+
+  /**
+   * Opens a store.
+   *
+   * @param file
+   *        the checkpoint file, created if missing.
+   * @param resume
+   *        true to load the records of previous runs; false to discard them
+   *        and start over.
+   * @throws IOException
+   *         if the file cannot be read or opened for append.
+   */
+  public FileCheckpointStore(File file, boolean resume) throws IOException {
+    this.file = file;
+    if (resume && file.exists()) {
+      load();
+    } else if (file.exists()) {
+      truncate(0);
+    }
+    this.out = new FileOutputStream(file, true);
+    this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * sets the number of records buffered before a write.
+   *
+   * @param records
+   *        at least 1.
+   */
+  public synchronized void setBatchSize(int records) {
+    if (records < 1) {
+      throw new IllegalArgumentException("batch size must be at least 1: "
+          + records);
+    }
+    this.batchSize = records;
+  }
+
+  /**
+   * sets the longest time records stay buffered. Checked whenever a record
+   * is added.
+   *
+   * @param millis
+   *        milliseconds.
+   */
+  public synchronized void setFlushInterval(long millis) {
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * sets whether each write is forced to the storage device.
+   *
+   * @param sync
+   *        true to sync after each write; false by default.
+   */
+  public synchronized void setSync(boolean sync) {
+    this.sync = sync;
+  }
+
+  /**
+   * the checkpoint file.
+   *
+   * @return the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public synchronized boolean isCompleted(long index) {
+    if (index <= Integer.MAX_VALUE) {
+      return completedIndices.get((int) index);
+    }
+    return completedLargeIndices.contains(index);
+  }
+
+  @Override
+  public synchronized boolean isCompleted(String key) {
+    return completedKeys.contains(key);
+  }
+
+  @Override
+  public synchronized void completed(long index) throws IOException {
+    buffer.append('i').append(index).append('\n');
+    added();
+  }
+
+  @Override
+  public synchronized void completed(String key) throws IOException {
+    buffer.append('k');
+    escape(key, buffer);
+    buffer.append('\n');
+    added();
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (buffered > 0 && !closed) {
+      writer.write(buffer.toString());
+      writer.flush();
+      if (sync) {
+        out.getFD().sync();
+      }
+      buffer.setLength(0);
+      buffered = 0;
+    }
+    lastWrite = System.nanoTime();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      try {
+        flush();
+      } finally {
+        closed = true;
+        writer.close();
+      }
+    }
+  }
+
+  private void added() throws IOException {
+    if (closed) {
+      throw new IOException("checkpoint store is closed: " + file);
+    }
+    buffered++;
+    if (buffered >= batchSize
+        || System.nanoTime() - lastWrite >= flushIntervalNanos) {
+      flush();
+    }
+  }
+
+  /**
+   * reads the existing records, dropping a trailing partial line.
+   */
+  private void load() throws IOException {
+    byte[] content;
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      int n;
+      while ((n = in.read(chunk)) > 0) {
+        bytes.write(chunk, 0, n);
+      }
+      content = bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+
+    int complete = content.length;
+    while (complete > 0 && content[complete - 1] != '\n') {
+      complete--;
+    }
+    if (complete < content.length) {
+      truncate(complete);
+    }
+
+    String text = new String(content, 0, complete, StandardCharsets.UTF_8);
+    int start = 0;
+    int end;
+    while ((end = text.indexOf('\n', start)) >= 0) {
+      if (end > start) {
+        parse(text.substring(start, end));
+      }
+      start = end + 1;
+    }
+  }
+
+  private void parse(String line) throws IOException {
+    char type = line.charAt(0);
+    String value = line.substring(1);
+    if (type == 'i') {
+      long index;
+      try {
+        index = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        throw new IOException("corrupt checkpoint record: " + line, e);
+      }
+      if (index <= Integer.MAX_VALUE) {
+        completedIndices.set((int) index);
+      } else {
+        completedLargeIndices.add(index);
+      }
+    } else if (type == 'k') {
+      completedKeys.add(unescape(value));
+    } else {
+      throw new IOException("corrupt checkpoint record: " + line);
+    }
+  }
+
+  private void truncate(long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void escape(String key, StringBuilder sb) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c == '\\') {
+        sb.append("\\\\");
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else if (c == '\r') {
+        sb.append("\\r");
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+
+  private static String unescape(String value) {
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char e = value.charAt(++i);
+        sb.append(e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,179 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lifecycle latencies and outcome counters of the AsynchronousFutures sharing
+ * one label, aggregated by a {@link FutureLifecycleMetrics}. Three intervals
+ * are recorded, in nanoseconds: the queue wait from QUEUED to INITIATED, the
+ * response latency from INITIATED to RESPONDED, and the total from QUEUED,
+ * or INITIATED for futures never queued, to COMPLETED.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class FutureLabelMetrics implements FutureLabelMetricsMBean {
+
+  static final int SUCCEEDED = 0;
+
+  static final int FAILED = 1;
+
+  static final int TIMED_OUT = 2;
+
+  static final int CANCELLED = 3;
+
+  private final String label;
+
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+
+  private final LatencyHistogram response = new LatencyHistogram();
+
+  private final LatencyHistogram total = new LatencyHistogram();
+
+  private final AtomicLong succeeded = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private final AtomicLong cancelled = new AtomicLong();
+
+  FutureLabelMetrics(String label) {
+    this.label = label;
+  }
+
+  void record(long queued, long initiated, long responded, long completed,
+      int outcome) {
+    if (queued != 0 && initiated != 0) {
+      queueWait.record(initiated - queued);
+    }
+    if (initiated != 0 && responded != 0) {
+      response.record(responded - initiated);
+    }
+    long start = queued != 0 ? queued : initiated;
+    if (start != 0) {
+      total.record(completed - start);
+    }
+    switch (outcome) {
+    case SUCCEEDED:
+      succeeded.incrementAndGet();
+      break;
+    case FAILED:
+      failed.incrementAndGet();
+      break;
+    case TIMED_OUT:
+      timedOut.incrementAndGet();
+      break;
+    default:
+      cancelled.incrementAndGet();
+    }
+  }
+
+  /**
+   * The queue wait histogram, in nanoseconds.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getQueueWaitHistogram() {
+    return queueWait;
+  }
+
+  /**
+   * The response latency histogram, in nanoseconds.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getResponseHistogram() {
+    return response;
+  }
+
+  /**
+   * The total latency histogram, in nanoseconds.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getTotalHistogram() {
+    return total;
+  }
+
+  @Override
+  public String getLabel() {
+    return label;
+  }
+
+  @Override
+  public long getSucceededCount() {
+    return succeeded.get();
+  }
+
+  @Override
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  @Override
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  @Override
+  public long getCancelledCount() {
+    return cancelled.get();
+  }
+
+  @Override
+  public double getMeanQueueWaitMicros() {
+    return queueWait.getMean() / 1000.0;
+  }
+
+  @Override
+  public long getP99QueueWaitMicros() {
+    return micros(queueWait.getValueAtPercentile(99));
+  }
+
+  @Override
+  public double getMeanResponseMicros() {
+    return response.getMean() / 1000.0;
+  }
+
+  @Override
+  public long getP50ResponseMicros() {
+    return micros(response.getValueAtPercentile(50));
+  }
+
+  @Override
+  public long getP99ResponseMicros() {
+    return micros(response.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getMaxResponseMicros() {
+    return micros(response.getMax());
+  }
+
+  @Override
+  public double getMeanTotalMicros() {
+    return total.getMean() / 1000.0;
+  }
+
+  @Override
+  public long getP99TotalMicros() {
+    return micros(total.getValueAtPercentile(99));
+  }
+
+  @Override
+  public void reset() {
+    queueWait.reset();
+    response.reset();
+    total.reset();
+    succeeded.set(0);
+    failed.set(0);
+    timedOut.set(0);
+    cancelled.set(0);
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
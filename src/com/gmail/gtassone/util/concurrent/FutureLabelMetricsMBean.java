@@ -0,0 +1,83 @@
+package com.gmail.gtassone.util.concurrent;
+
+/**
+ * JMX management interface for {@link FutureLabelMetrics}. Latencies are
+ * reported in microseconds.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface FutureLabelMetricsMBean {
+
+  /**
+   * @return the label of the futures measured.
+   */
+  String getLabel();
+
+  /**
+   * @return number of futures completed with a response value.
+   */
+  long getSucceededCount();
+
+  /**
+   * @return number of futures failed by an exception.
+   */
+  long getFailedCount();
+
+  /**
+   * @return number of futures completed after their last wait cycle timed
+   *         out.
+   */
+  long getTimedOutCount();
+
+  /**
+   * @return number of futures cancelled.
+   */
+  long getCancelledCount();
+
+  /**
+   * @return mean time from queueing to initiation.
+   */
+  double getMeanQueueWaitMicros();
+
+  /**
+   * @return 99th percentile time from queueing to initiation.
+   */
+  long getP99QueueWaitMicros();
+
+  /**
+   * @return mean time from initiation to response.
+   */
+  double getMeanResponseMicros();
+
+  /**
+   * @return median time from initiation to response.
+   */
+  long getP50ResponseMicros();
+
+  /**
+   * @return 99th percentile time from initiation to response.
+   */
+  long getP99ResponseMicros();
+
+  /**
+   * @return longest time from initiation to response.
+   */
+  long getMaxResponseMicros();
+
+  /**
+   * @return mean time from queueing, or initiation, to completion.
+   */
+  double getMeanTotalMicros();
+
+  /**
+   * @return 99th percentile time from queueing, or initiation, to
+   *         completion.
+   */
+  long getP99TotalMicros();
+
+  /**
+   * resets all counters and histograms.
+   */
+  void reset();
+}
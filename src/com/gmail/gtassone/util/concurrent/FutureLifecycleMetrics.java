@@ -0,0 +1,153 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-label aggregation of AsynchronousFuture lifecycles. A future reports to
+ * the metrics set with
+ * {@link AsynchronousFuture#setLifecycleMetrics(FutureLifecycleMetrics)},
+ * or to the process default installed with {@link #setDefault} when it was
+ * created, once it is done; its timestamps are folded into the
+ * {@link FutureLabelMetrics} of its label. The results can be pulled with
+ * {@link #getLabelMetrics(String)}, or exported through JMX with one MBean
+ * per label via {@link #registerMBeans(String)}.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class FutureLifecycleMetrics {
+
+  private static volatile FutureLifecycleMetrics defaultMetrics;
+
+  /**
+   * the metrics new AsynchronousFutures report to.
+   *
+   * @return the default metrics, or null if none are installed.
+   */
+  public static FutureLifecycleMetrics getDefault() {
+    return defaultMetrics;
+  }
+
+  /**
+   * installs the metrics AsynchronousFutures created from now on report to.
+   *
+   * @param metrics
+   *        the metrics, or null to stop collecting by default.
+   */
+  public static void setDefault(FutureLifecycleMetrics metrics) {
+    defaultMetrics = metrics;
+  }
+
+  private final ConcurrentMap<String, FutureLabelMetrics> labels =
+      new ConcurrentHashMap<String, FutureLabelMetrics>();
+
+  private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+  private volatile String registeredName;
+
+  /**
+   * the metrics of one label.
+   *
+   * @param label
+   *        the label.
+   * @return the metrics, or null if no future with that label is done yet.
+   */
+  public FutureLabelMetrics getLabelMetrics(String label) {
+    return labels.get(label);
+  }
+
+  /**
+   * the metrics of every label seen.
+   *
+   * @return an unmodifiable view.
+   */
+  public Collection<FutureLabelMetrics> getAllLabelMetrics() {
+    return Collections.unmodifiableCollection(labels.values());
+  }
+
+  /**
+   * resets the metrics of every label.
+   */
+  public void reset() {
+    for (FutureLabelMetrics m : labels.values()) {
+      m.reset();
+    }
+  }
+
+  void record(String label, long queued, long initiated, long responded,
+      long completed, int outcome) {
+    FutureLabelMetrics m = labels.get(label);
+    if (m == null) {
+      FutureLabelMetrics created = new FutureLabelMetrics(label);
+      m = labels.putIfAbsent(label, created);
+      if (m == null) {
+        m = created;
+        String name = registeredName;
+        if (name != null) {
+          try {
+            register(name, created);
+          } catch (JMException e) {
+            e.printStackTrace(System.err);
+          }
+        }
+      }
+    }
+    m.record(queued, initiated, responded, completed, outcome);
+  }
+
+  /**
+   * registers the metrics of every label with the platform MBeanServer,
+   * including labels first seen later.
+   *
+   * @param name
+   *        value of the name key of the ObjectNames; the label is the label
+   *        key.
+   * @throws JMException
+   *         if registration fails.
+   */
+  public synchronized void registerMBeans(String name) throws JMException {
+    registeredName = name;
+    for (FutureLabelMetrics m : labels.values()) {
+      register(name, m);
+    }
+  }
+
+  /**
+   * unregisters all MBeans registered by these metrics.
+   *
+   * @throws JMException
+   *         if unregistration fails.
+   */
+  public synchronized void unregisterMBeans() throws JMException {
+    registeredName = null;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName objectName : registered) {
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    }
+    registered.clear();
+  }
+
+  private synchronized void register(String name, FutureLabelMetrics m)
+      throws JMException {
+    ObjectName objectName = new ObjectName(MonitorMetrics.JMX_DOMAIN
+        + ":type=AsynchronousFuture,name=" + ObjectName.quote(name)
+        + ",label=" + ObjectName.quote(m.getLabel()));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (!server.isRegistered(objectName)) {
+      server.registerMBean(m, objectName);
+      registered.add(objectName);
+    }
+  }
+}
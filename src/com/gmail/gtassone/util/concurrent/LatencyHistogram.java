@@ -0,0 +1,135 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram, in the style of HdrHistogram.
+ * Values are grouped by power of two and each group is split into 32 linear
+ * sub-buckets, so any recorded value is reported within about 3% of its true
+ * value while the whole range of a long fits in under 2000 counters.
+ * Recording is a few atomic increments and never allocates; readers see a
+ * consistent-enough view while recording continues.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+
+  private static final int GROUPS = 64 - SUB_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(GROUPS
+      * SUB_COUNT);
+
+  private final AtomicLong total = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * records a value. Negative values are recorded as zero.
+   *
+   * @param value
+   *        the value, typically nanoseconds.
+   */
+  public void record(long value) {
+    long v = value < 0 ? 0 : value;
+    counts.incrementAndGet(indexOf(v));
+    total.incrementAndGet();
+    sum.addAndGet(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * the number of recorded values.
+   *
+   * @return the count.
+   */
+  public long getCount() {
+    return total.get();
+  }
+
+  /**
+   * the largest recorded value.
+   *
+   * @return the maximum, or 0 if empty.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * the arithmetic mean of the recorded values.
+   *
+   * @return the mean, or 0 if empty.
+   */
+  public double getMean() {
+    long n = total.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * the value at the given percentile, reported as the highest value
+   * equivalent to the bucket it falls in.
+   *
+   * @param percentile
+   *        between 0 and 100.
+   * @return the value, or 0 if empty.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long n = total.get();
+    if (n == 0) {
+      return 0;
+    }
+    double p = Math.min(Math.max(percentile, 0), 100);
+    long target = Math.max(1, (long) Math.ceil(p / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestEquivalentValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * clears all recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    total.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  private static int indexOf(long v) {
+    int msb = 63 - Long.numberOfLeadingZeros(v);
+    if (msb < SUB_BITS) {
+      return (int) v;
+    }
+    int group = msb - SUB_BITS + 1;
+    int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_COUNT - 1);
+    return (group << SUB_BITS) | sub;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    int group = index >>> SUB_BITS;
+    long sub = index & (SUB_COUNT - 1);
+    if (group == 0) {
+      return sub;
+    }
+    long lowest = (SUB_COUNT + sub) << (group - 1);
+    return lowest + (1L << (group - 1)) - 1;
+  }
+}
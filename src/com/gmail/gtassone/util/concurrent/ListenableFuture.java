@@ -0,0 +1,72 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Future whose outcome can be consumed without blocking a thread: listeners
+ * are notified on completion, and further computations can be chained onto
+ * the result.
+ * <p>
+ * To bridge to a Java 8 CompletableFuture, complete it from a listener:
+ *
+ * <pre>
+ * final CompletableFuture&lt;T&gt; cf = new CompletableFuture&lt;T&gt;();
+ * future.addListener(new CompletionListener&lt;T&gt;() {
+ *   public void onSuccess(T value) { cf.complete(value); }
+ *   public void onFailure(Throwable cause) { cf.completeExceptionally(cause); }
+ *   public void onCancel() { cf.cancel(false); }
+ * });
+ * </pre>
+ *
+ * @param <T>
+ *        result type.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface ListenableFuture<T> extends Future<T> {
+
+  /**
+   * registers a listener run on the thread completing the future, or on the
+   * calling thread if the future is already done.
+   *
+   * @param listener
+   *        the listener.
+   */
+  void addListener(CompletionListener<? super T> listener);
+
+  /**
+   * registers a listener run on the given executor once the future is done.
+   *
+   * @param listener
+   *        the listener.
+   * @param executor
+   *        runs the listener.
+   */
+  void addListener(CompletionListener<? super T> listener, Executor executor);
+
+  /**
+   * a future holding the result of applying the function to this future's
+   * value. Failure and cancellation propagate unchanged.
+   *
+   * @param <U>
+   *        the result type of the function.
+   * @param fn
+   *        the function, run on the thread completing this future.
+   * @return the derived future.
+   */
+  <U> ListenableFuture<U> thenApply(
+      CompletionFunction<? super T, ? extends U> fn);
+
+  /**
+   * a future completing with the future returned by the function.
+   *
+   * @param <U>
+   *        the result type of the returned future.
+   * @param fn
+   *        the function, run on the thread completing this future.
+   * @return the derived future.
+   */
+  <U> ListenableFuture<U> thenCompose(
+      CompletionFunction<? super T, ? extends ListenableFuture<? extends U>> fn);
+}
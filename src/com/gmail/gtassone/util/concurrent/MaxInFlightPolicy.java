@@ -0,0 +1,63 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency cap: at most a fixed number of admitted calls are outstanding
+ * at once.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MaxInFlightPolicy implements AdmissionPolicy {
+
+  private final int maxInFlight;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Creates a concurrency cap.
+   *
+   * @param maxInFlight
+   *        the most outstanding calls, at least 1.
+   */
+  public MaxInFlightPolicy(int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("limit must be at least 1: "
+          + maxInFlight);
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  @Override
+  public long tryAcquire() {
+    for (;;) {
+      int n = inFlight.get();
+      if (n >= maxInFlight) {
+        return UNTIL_RELEASE;
+      }
+      if (inFlight.compareAndSet(n, n + 1)) {
+        return 0;
+      }
+    }
+  }
+
+  @Override
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  @Override
+  public void revoke() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * the number of admitted calls outstanding.
+   *
+   * @return the count.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+}
@@ -1,7 +1,27 @@
 package com.gmail.gtassone.util.concurrent;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class performs an action on a Collection of objects in sequence on a
@@ -13,6 +33,52 @@ import java.util.Iterator;
  * action for the object collection. Also extend MonitorDispatchThread or
  * {@link MonitorDispatchThread$Adapter} to implement the desired abstract
  * methods. The execution may be started via Thread.start() or via Executor.
+ * <p>
+ * By default a single DispatchThread processes the Collection one element at a
+ * time. {@link #setParallelism(int)} enables a pooled mode in which several
+ * dispatch workers drain the Collection concurrently, subject to the
+ * {@link OrderingMode} selected with {@link #setOrderingMode(OrderingMode)}.
+ * Each element still gets its own timeout, and the same hooks are invoked;
+ * in pooled mode the task hooks run on the dispatch worker (or, for
+ * {@link #handleTimeout()}, on the monitor thread) and
+ * {@link #getCurrentObject()} resolves to the element of the worker the hook
+ * is reporting on.
+ * <p>
+ * {@link #setTimeoutWheel(TimeoutWheel)} removes the DispatchThread
+ * altogether: elements are executed on the thread running this
+ * MonitorDispatchThread and their deadlines are registered with a shared
+ * {@link TimeoutWheel}, so a monitored sequence costs one thread rather than
+ * two. {@link #handleTimeout()} then runs on the wheel's timer thread.
+ * <p>
+ * Instead of a fixed Collection, the source may be a live feed: a
+ * BlockingQueue (optionally created with a bounded capacity and fed through
+ * {@link #submit(Object)}) or an Iterator whose hasNext() may block. Elements
+ * are consumed as they arrive until {@link #endOfInput()} is called and the
+ * feed is drained, or {@link #terminateAfterThisTask()} is called.
+ * <p>
+ * A {@link RetryPolicy} set with {@link #setRetryPolicy(RetryPolicy)} gives
+ * failed and timed out elements further attempts. Retries wait out their
+ * backoff on a {@link TimeoutWheel}, not on a dispatch thread, and are then
+ * interleaved with the source; the run finishes only once no retry is
+ * outstanding. Elements the policy gives up on are passed to the
+ * {@link DeadLetterSink}, if one is set.
+ * <p>
+ * A {@link CheckpointStore} set with
+ * {@link #setCheckpointStore(CheckpointStore)} records each completed
+ * element, and elements recorded by a previous run are skipped, so a run cut
+ * short by a crash resumes where it stopped.
+ * <p>
+ * With {@link #setMaxOrphanedWorkers(int)}, a dispatch worker whose element
+ * timed out is interrupted and abandoned, and a fresh worker takes over at
+ * once instead of the next element waiting behind the stuck one. Abandoned
+ * workers are counted in the metrics until they die.
+ * <p>
+ * Dispatch workers are platform threads unless a ThreadFactory is set with
+ * {@link #setThreadFactory(ThreadFactory)}, for instance one from
+ * {@link ThreadFactories#preferVirtual(String)}; virtual workers use the
+ * {@link HandoffMode#PARKING} handoff. The MonitorDispatchThread
+ * itself may be run by any Executor; together with a TimeoutWheel, a
+ * monitored sequence then occupies a single, possibly virtual, thread.
  * 
  * @param <T>
  *            The type of objects to perform action on.
@@ -44,6 +110,42 @@ public abstract class MonitorDispatchThread<T> extends Thread {
 			super(coll, monitoredTask);
 		}
 
+		/**
+		 * Adapter constructor for a live feed.
+		 * 
+		 * @param feed
+		 *            Queue from which objects are consumed as they arrive.
+		 * @param monitoredTask
+		 *            Action to be performed to each object.
+		 */
+		public Adapter(BlockingQueue<T> feed, MonitoredAction<T> monitoredTask) {
+			super(feed, monitoredTask);
+		}
+
+		/**
+		 * Adapter constructor for a bounded live feed.
+		 * 
+		 * @param capacity
+		 *            Maximum number of submitted objects awaiting processing.
+		 * @param monitoredTask
+		 *            Action to be performed to each object.
+		 */
+		public Adapter(int capacity, MonitoredAction<T> monitoredTask) {
+			super(capacity, monitoredTask);
+		}
+
+		/**
+		 * Adapter constructor for an Iterator source.
+		 * 
+		 * @param source
+		 *            Iterator over the objects; hasNext() may block.
+		 * @param monitoredTask
+		 *            Action to be performed to each object.
+		 */
+		public Adapter(Iterator<T> source, MonitoredAction<T> monitoredTask) {
+			super(source, monitoredTask);
+		}
+
 		@Override
 		public void handleTimeout() {
 		}
@@ -117,6 +219,24 @@ public abstract class MonitorDispatchThread<T> extends Thread {
 	 */
 	public static final int DEFAULT_TIMEOUT = 10000;
 
+	/**
+	 * The default bound on elements held back behind an in-flight key in
+	 * {@link OrderingMode#PER_KEY}.
+	 */
+	public static final int DEFAULT_MAX_PARKED_ELEMENTS = 1024;
+
+	/**
+	 * How long a consumer waits on an idle feed before re-checking for
+	 * termination, in milliseconds.
+	 */
+	static final long IDLE_POLL_MILLIS = 100;
+
+	/**
+	 * How long a consumer waits for a retry to fall due before re-checking
+	 * its other inputs, in milliseconds.
+	 */
+	private static final long RETRY_POLL_MILLIS = 10;
+
 	/**
 	 * Client-defined execution block.
 	 * 
@@ -137,6 +257,96 @@ public abstract class MonitorDispatchThread<T> extends Thread {
 
 	}
 
+	/**
+	 * Computes the timeout for each element, replacing the single value set by
+	 * {@link MonitorDispatchThread#setTimeout(int)}. See
+	 * {@link AdaptiveTimeoutPolicy} for a policy driven by observed latency.
+	 * 
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	public static interface TimeoutPolicy<T> {
+
+		/**
+		 * Returns the timeout for the given element. Called once per element,
+		 * just before it is dispatched.
+		 * 
+		 * @param obj
+		 *            the element, may be null.
+		 * @return milliseconds.
+		 */
+		long getTimeout(T obj);
+
+	}
+
+	/**
+	 * Ordering guarantees available in pooled mode.
+	 * 
+	 * @author gabriel
+	 */
+	public static enum OrderingMode {
+		/**
+		 * Elements are handed to whichever dispatch worker is free; no ordering
+		 * between elements is guaranteed.
+		 */
+		NONE,
+		/**
+		 * Elements sharing a key (see {@link KeyExtractor}) are executed one at
+		 * a time in iteration order; elements with different keys run
+		 * concurrently. Null keys are unordered.
+		 */
+		PER_KEY,
+		/**
+		 * Elements are executed one at a time in iteration order by a single
+		 * DispatchThread, regardless of the configured parallelism.
+		 */
+		STRICT;
+	}
+
+	/**
+	 * Derives the ordering key of an element for {@link OrderingMode#PER_KEY}.
+	 * 
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	public static interface KeyExtractor<T> {
+
+		/**
+		 * Returns the ordering key of the given element.
+		 * 
+		 * @param obj
+		 *            the element, never null.
+		 * @return the key, or null if the element need not be ordered.
+		 */
+		Object getKey(T obj);
+
+	}
+
+	/**
+	 * Receives the elements which failed for good: their retries were used up,
+	 * the retry policy rejected the failure, or no retry policy is set.
+	 * 
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	public static interface DeadLetterSink<T> {
+
+		/**
+		 * Accepts a failed element. Called on the thread which observed the
+		 * last failure.
+		 * 
+		 * @param obj
+		 *            the element.
+		 * @param attempts
+		 *            the number of times it was executed.
+		 * @param lastFailure
+		 *            the exception thrown by the last attempt, or a
+		 *            TimeoutException.
+		 */
+		void deadLetter(T obj, int attempts, Exception lastFailure);
+
+	}
+
 	/**
 	 * Various actions can be performed on a timeout, including interrupting the
 	 * entire Thread, interrupting the long-running class, terminating after the
@@ -198,15 +408,90 @@ public abstract class MonitorDispatchThread<T> extends Thread {
 
 	private MonitoredAction<T> monitoredTask;
 
-	private DispatchThread dispatcher;
+	private volatile DispatchThread dispatcher;
 
 	private Collection<T> managedObjects;
 
+	private BlockingQueue<T> feed;
+
+	private Iterator<T> sourceIterator;
+
+	private volatile boolean inputClosed = false;
+
+	private final Collection<T> leftovers = new ArrayList<T>();
+
 	private int timeout = DEFAULT_TIMEOUT;
 
+	private TimeoutPolicy<T> timeoutPolicy;
+
 	private boolean shouldJoinDispatch = false;
 
-	private SharedState<T> sharedState;
+	private volatile SharedState<T> sharedState;
+
+	private HandoffMode handoffMode = HandoffMode.MONITOR;
+
+	private boolean handoffModeSet;
+
+	private boolean virtualWorkers;
+
+	private volatile boolean terminateRequested;
+
+	private int maxOrphanedWorkers;
+
+	private final List<Thread> orphans = new ArrayList<Thread>();
+
+	private ThreadFactory threadFactory;
+
+	private final ThreadLocal<DispatchThread> dispatchContext = new ThreadLocal<DispatchThread>();
+
+	private int parallelism = 1;
+
+	private OrderingMode orderingMode = OrderingMode.NONE;
+
+	private KeyExtractor<T> keyExtractor;
+
+	private int maxParkedElements = DEFAULT_MAX_PARKED_ELEMENTS;
+
+	private volatile WorkerPool pool;
+
+	private final ThreadLocal<WorkerSlot<T>> slotContext = new ThreadLocal<WorkerSlot<T>>();
+
+	private TimeoutWheel timeoutWheel;
+
+	private volatile Thread inlineRunner;
+
+	private volatile long taskStartNanos;
+
+	private final MonitorMetrics metrics = new MonitorMetrics(this);
+
+	private RetryPolicy<T> retryPolicy;
+
+	private DeadLetterSink<T> deadLetterSink;
+
+	/**
+	 * Attempt number of elements currently being retried, by identity.
+	 */
+	private final Map<T, Integer> attemptCounts = new IdentityHashMap<T, Integer>();
+
+	private final BlockingQueue<RetryTask> retryReady = new LinkedBlockingQueue<RetryTask>();
+
+	private final AtomicInteger retriesOutstanding = new AtomicInteger();
+
+	private CheckpointStore checkpointStore;
+
+	private KeyExtractor<T> checkpointKeys;
+
+	/**
+	 * Source position of elements in flight, by identity, when checkpointing
+	 * by position.
+	 */
+	private final Map<T, Long> checkpointIndex = new IdentityHashMap<T, Long>();
+
+	/**
+	 * Number of elements taken from a Collection source, for the queue depth;
+	 * unlike the metrics, never reset.
+	 */
+	private final AtomicLong sourcePosition = new AtomicLong();
 
 	/**
 	 * Creates a thread that will perform a given task on each element of the
@@ -222,272 +507,2225 @@ public abstract class MonitorDispatchThread<T> extends Thread {
 
 		this.managedObjects = coll;
 		this.monitoredTask = monitoredTask;
-		sharedState = new SharedState<T>();
+		sharedState = new MonitorSharedState<T>();
 		dispatcher = new DispatchThread();
 	}
 
 	/**
-	 * Flag for the Monitor thread to join on the dispatch thread when finished
-	 * pushing task objects. probably doesn't matter because it will still
-	 * perform timing on the last task. But if it doesn't interrupt the last
-	 * task, it would matter.
+	 * Creates a thread that will perform a given task on each element taken
+	 * from the given queue, as elements arrive. A bounded queue provides
+	 * back-pressure to its producers.
 	 * 
-	 * @param should
-	 *            yes or no
+	 * @param feed
+	 *            The queue to consume.
+	 * @param monitoredTask
+	 *            The task to perform on each element.
 	 */
-	public void shouldJoinDispatch(boolean should) {
-		shouldJoinDispatch = should;
+	public MonitorDispatchThread(BlockingQueue<T> feed,
+			MonitoredAction<T> monitoredTask) {
+		this((Collection<T>) feed, monitoredTask);
+		this.feed = feed;
 	}
 
 	/**
-	 * Set the timeout for each MonitoredTask execution.
+	 * Creates a thread that will perform a given task on each element passed
+	 * to {@link #submit(Object)} or {@link #offer(Object, long, TimeUnit)}.
+	 * Producers block once capacity elements are waiting.
 	 * 
-	 * @param timeout
-	 *            milliseconds.
+	 * @param capacity
+	 *            Maximum number of submitted elements awaiting processing.
+	 * @param monitoredTask
+	 *            The task to perform on each element.
 	 */
-	public void setTimeout(int timeout) {
-		this.timeout = timeout;
+	public MonitorDispatchThread(int capacity, MonitoredAction<T> monitoredTask) {
+		this(new ArrayBlockingQueue<T>(capacity), monitoredTask);
 	}
 
 	/**
-	 * This interrupts the currently processing MonitoredTask execution.
+	 * Creates a thread that will perform a given task on each element of the
+	 * given iterator. hasNext() may block while waiting for elements; the
+	 * source ends when it returns false.
+	 * 
+	 * @param source
+	 *            The elements to perform task on.
+	 * @param monitoredTask
+	 *            The task to perform on each element.
 	 */
-	public void interruptMonitoredTask() {
-		dispatcher.interrupt();
+	public MonitorDispatchThread(Iterator<T> source,
+			MonitoredAction<T> monitoredTask) {
+		this((Collection<T>) null, monitoredTask);
+		this.sourceIterator = source;
 	}
 
 	/**
-	 * This sets the internal terminate flag. The current MonitoredTask
-	 * execution will continue. This method provides a way to finish the
-	 * remainder of the Collection in a different thread, without cancelling the
-	 * long-running request.
+	 * Submits an element to the feed, blocking while the feed is at capacity.
+	 * 
+	 * @param obj
+	 *            the element, not null.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for capacity.
 	 */
-	public void terminateAfterThisTask() {
-		sharedState.requestTerminate();
+	public void submit(T obj) throws InterruptedException {
+		checkFeedOpen();
+		feed.put(obj);
 	}
 
 	/**
-	 * This method returns the currently set object. It is most useful to
-	 * determine which object was being processed when the thread was cancelled.
+	 * Submits an element to the feed, waiting up to the given time for
+	 * capacity.
 	 * 
-	 * @return current object.
+	 * @param obj
+	 *            the element, not null.
+	 * @param wait
+	 *            how long to wait for capacity.
+	 * @param unit
+	 *            unit of wait.
+	 * @return false if the feed stayed full.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for capacity.
 	 */
-	public T getCurrentObject() {
-		return sharedState.getCurrentObject();
+	public boolean offer(T obj, long wait, TimeUnit unit)
+			throws InterruptedException {
+		checkFeedOpen();
+		return feed.offer(obj, wait, unit);
 	}
 
 	/**
-	 * the action being performed.
-	 * 
-	 * @return the action being performed.
+	 * Signals that no more elements will be submitted. Elements already in the
+	 * feed are still processed, after which the thread finishes.
 	 */
-	public MonitoredAction<T> getMonitoredAction() {
-		return monitoredTask;
+	public void endOfInput() {
+		inputClosed = true;
 	}
 
 	/**
-	 * the set of objects being processed.
+	 * input closed predicate, for sources fed outside the feed.
 	 * 
-	 * @return the set of objects being processed.
+	 * @return true once {@link #endOfInput()} was called.
 	 */
-	public Collection<T> getManagedObjects() {
-		return managedObjects;
+	boolean isInputClosed() {
+		return inputClosed;
 	}
 
 	/**
-	 * The current ExecutionState.
+	 * terminating predicate, for sources fed outside the feed.
 	 * 
-	 * @return current ExecutionState.
+	 * @return true once termination was requested or the run finished.
 	 */
-	public ExecutionState getExecutionState() {
-		return sharedState.getExecutionState();
+	boolean isTerminating() {
+		return terminateRequested || sharedState.isDone();
 	}
 
 	/**
-	 * Functions as a mutex with additional synchronized state information for
-	 * the two threads. The two threads share state and data information through
-	 * this object, and synchronize on its monitor.
+	 * Moves the elements that were not processed after
+	 * {@link #terminateAfterThisTask()} into the given collection: those still
+	 * in the feed, retries that were due or became due after termination, and
+	 * in pooled mode those held back for per-key ordering.
 	 * 
-	 * @author <a href=mailto:gtassone@cougaarsoftware.com>gtassone</a>
-	 * @version $Revision$
+	 * @param target
+	 *            receives the remaining elements.
+	 * @return the number of elements moved.
 	 */
-	private static class SharedState<T> {
-
-		private ExecutionState state = ExecutionState.NO_TASK;
-
-		private boolean done = false;
-
-		private T currentObject;
-
-		public synchronized void pushTask(T t) {
-			currentObject = t;
-			state = ExecutionState.NEXT_TASK_ASSIGNED;
-			notify();
+	public int drainRemaining(Collection<? super T> target) {
+		int count = 0;
+		synchronized (leftovers) {
+			count += leftovers.size();
+			target.addAll(leftovers);
+			leftovers.clear();
 		}
-
-		public synchronized void finishTask() {
-			state = ExecutionState.FINISHED_TASK;
-			notify();
+		RetryTask retry;
+		while ((retry = retryReady.poll()) != null) {
+			target.add(retry.obj);
+			count++;
 		}
-
-		public synchronized void interruptedTask() {
-			state = ExecutionState.INTERRUPTED_TASK;
-			notify();
+		if (feed != null) {
+			count += feed.drainTo(target);
 		}
+		return count;
+	}
 
-		public synchronized void timedOut() {
-			state = ExecutionState.TIMED_OUT;
-			notify();
+	private void checkFeedOpen() {
+		if (feed == null) {
+			throw new IllegalStateException(
+					"MonitorDispatchThread is not fed by a queue");
 		}
-
-		public synchronized boolean isDone() {
-			return done;
+		if (inputClosed || sharedState.isDone()) {
+			throw new IllegalStateException("input has been closed");
 		}
+	}
 
-		public synchronized T getNextObject() {
-			state = ExecutionState.EXECUTING_TASK;
-			return currentObject;
+	/**
+	 * Opens the configured source for iteration.
+	 * 
+	 * @return an iterator over the source.
+	 */
+	private Iterator<T> openSource() {
+		if (feed != null) {
+			return new SourceIterator(null);
 		}
+		Iterator<T> base = sourceIterator != null ? sourceIterator
+				: new PositionIterator(managedObjects.iterator());
+		if (retryPolicy != null || checkpointStore != null) {
+			return new SourceIterator(base);
+		}
+		return base;
+	}
 
-		public synchronized T getCurrentObject() {
-			return currentObject;
+	/**
+	 * Iterator over a Collection source counting the elements taken.
+	 */
+	private class PositionIterator implements Iterator<T> {
+
+		private final Iterator<T> base;
+
+		PositionIterator(Iterator<T> base) {
+			this.base = base;
 		}
 
-		public synchronized ExecutionState getExecutionState() {
-			return state;
+		@Override
+		public boolean hasNext() {
+			return base.hasNext();
 		}
 
-		public synchronized void requestTerminate() {
-			done = true;
-			notify();
+		@Override
+		public T next() {
+			T t = base.next();
+			sourcePosition.incrementAndGet();
+			return t;
 		}
 
+		@Override
+		public void remove() {
+			base.remove();
+		}
 	}
 
-	@Override
-	public final void run() {
-
-		try {
-			dispatcher.start();
-			Iterator<T> objIter = managedObjects.iterator();
-
-			while (objIter.hasNext() && !sharedState.isDone()) {
+	/**
+	 * Iterator over the feed, or over a base iterator, merged with the retries
+	 * whose delay has elapsed; retries are served first. Source elements a
+	 * previous run checkpointed are skipped. hasNext() blocks
+	 * until an element arrives, and returns false once the input is closed
+	 * and drained with no retry outstanding, or termination is requested. A
+	 * base iterator whose hasNext() blocks holds back due retries until it
+	 * returns.
+	 */
+	private class SourceIterator implements Iterator<T> {
 
-				// when the second thread is handling an interrupt we should be
-				// blocking.
-				synchronized (sharedState) {
-					while (ExecutionState.INTERRUPTED_TASK == sharedState
-							.getExecutionState()
-							|| ExecutionState.TIMED_OUT == sharedState
-									.getExecutionState()) {
-						sharedState.wait();
-					}
-				}
+		private final Iterator<T> base;
 
-				T nextObject = objIter.next();
+		private T next;
 
-				sharedState.pushTask(nextObject);
+		private boolean hasNext;
 
-				handleStartTask(nextObject);
+		private RetryTask nextRetry;
 
-				synchronized (sharedState) {
-					long startTime = System.currentTimeMillis();
-					while (ExecutionState.FINISHED_TASK != sharedState
-							.getExecutionState()) {
-						long elapsed = System.currentTimeMillis() - startTime;
-						if (elapsed < timeout) {
-							long remaining = timeout - elapsed;
+		private long sourceIndex;
 
-							sharedState.wait(remaining);
+		SourceIterator(Iterator<T> base) {
+			this.base = base;
+		}
 
-							if (ExecutionState.INTERRUPTED_TASK == sharedState
-									.getExecutionState()) {
-								break;
-							}
-						} else {
-							sharedState.timedOut();
-							handleTimeout();
-							break;
+		@Override
+		public boolean hasNext() {
+			try {
+				while (!hasNext) {
+					if (sharedState.isDone()) {
+						return false;
+					}
+					RetryTask retry = retryReady.poll();
+					if (retry != null) {
+						takeRetry(retry);
+					} else if (base != null) {
+						if (base.hasNext()) {
+							takeFresh(base.next());
+						} else if (!awaitRetry()) {
+							return false;
 						}
-					} // end while !ExecutionState.FINISHED_TASK
-				} // end synchronized (sharedState)
-			} // end while
-
-			sharedState.requestTerminate();
-			if (shouldJoinDispatch) {
-				dispatcher.join();
+					} else if (inputClosed) {
+						T t = feed.poll();
+						if (t != null) {
+							takeFresh(t);
+						} else if (!awaitRetry()) {
+							return false;
+						}
+					} else {
+						// poll the feed more often while a retry may fall due.
+						long wait = retriesOutstanding.get() > 0 ? RETRY_POLL_MILLIS
+								: IDLE_POLL_MILLIS;
+						T t = feed.poll(wait, TimeUnit.MILLISECONDS);
+						if (t != null) {
+							takeFresh(t);
+						}
+					}
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"interrupted while waiting for input", e);
 			}
-
-		} catch (Exception e) {
-			// hook for logging or custom behavior.
-			sharedState.requestTerminate();
-			dispatcher.interrupt();
-			handleMonitorException(e);
-
-		} finally {
-			finish();
 		}
-	}
 
-	/**
-	 * Execution thread which waits for the next Object to process, then
-	 * processes it with the client MonitoredTask.
-	 * 
-	 * @author gabriel
+		/**
+		 * Waits a while for an outstanding retry.
+		 * 
+		 * @return false if no retry is outstanding.
+		 */
+		private boolean awaitRetry() throws InterruptedException {
+			// a retry is queued before its outstanding count is released.
+			if (!retryPending()) {
+				return false;
+			}
+			RetryTask retry = retryReady.poll(RETRY_POLL_MILLIS,
+					TimeUnit.MILLISECONDS);
+			if (retry != null) {
+				takeRetry(retry);
+			}
+			return true;
+		}
+
+		/**
+		 * Takes an element from the source unless it was checkpointed.
+		 */
+		private void takeFresh(T t) {
+			long index = sourceIndex++;
+			CheckpointStore store = checkpointStore;
+			if (store != null && t != null) {
+				if (checkpointKeys != null) {
+					String key = String.valueOf(checkpointKeys.getKey(t));
+					if (store.isCompleted(key)) {
+						metrics.skipped();
+						return;
+					}
+				} else {
+					if (store.isCompleted(index)) {
+						metrics.skipped();
+						return;
+					}
+					synchronized (checkpointIndex) {
+						checkpointIndex.put(t, index);
+					}
+				}
+			}
+			take(t);
+		}
+
+		private void takeRetry(RetryTask retry) {
+			take(retry.obj);
+			nextRetry = retry;
+		}
+
+		private void take(T t) {
+			next = t;
+			hasNext = true;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T result = next;
+			if (nextRetry != null) {
+				// recorded only now, after the previous execution of the
+				// element has certainly finished in sequential mode.
+				synchronized (attemptCounts) {
+					attemptCounts.put(result, nextRetry.attempt);
+				}
+				nextRetry = null;
+			}
+			next = null;
+			hasNext = false;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Flag for the Monitor thread to join on the dispatch thread when finished
+	 * pushing task objects. probably doesn't matter because it will still
+	 * perform timing on the last task. But if it doesn't interrupt the last
+	 * task, it would matter.
+	 * 
+	 * @param should
+	 *            yes or no
+	 */
+	public void shouldJoinDispatch(boolean should) {
+		shouldJoinDispatch = should;
+	}
+
+	/**
+	 * Set the timeout for each MonitoredTask execution.
+	 * 
+	 * @param timeout
+	 *            milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Set a policy computing the timeout of each element. The fixed timeout is
+	 * used when no policy is set.
+	 * 
+	 * @param policy
+	 *            the policy, or null to restore the fixed timeout.
+	 */
+	public void setTimeoutPolicy(TimeoutPolicy<T> policy) {
+		this.timeoutPolicy = policy;
+	}
+
+	/**
+	 * The timeout applying to the given element.
+	 * 
+	 * @param obj
+	 *            the element.
+	 * @return milliseconds.
+	 */
+	private long timeoutFor(T obj) {
+		TimeoutPolicy<T> policy = timeoutPolicy;
+		return policy == null ? timeout : policy.getTimeout(obj);
+	}
+
+	/**
+	 * Set the number of dispatch workers. A value greater than 1 enables pooled
+	 * mode unless the ordering mode is {@link OrderingMode#STRICT}. Must be
+	 * called before the thread is started.
+	 * 
+	 * @param workers
+	 *            number of concurrent dispatch workers, at least 1.
+	 */
+	public void setParallelism(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException(
+					"parallelism must be at least 1: " + workers);
+		}
+		this.parallelism = workers;
+	}
+
+	/**
+	 * Set the ordering guarantee used in pooled mode. The default is
+	 * {@link OrderingMode#NONE}. {@link OrderingMode#PER_KEY} requires a
+	 * {@link KeyExtractor}.
+	 * 
+	 * @param mode
+	 *            the ordering mode.
+	 */
+	public void setOrderingMode(OrderingMode mode) {
+		this.orderingMode = mode;
+	}
+
+	/**
+	 * Set the key extractor used by {@link OrderingMode#PER_KEY}.
+	 * 
+	 * @param extractor
+	 *            derives an ordering key from each element.
+	 */
+	public void setKeyExtractor(KeyExtractor<T> extractor) {
+		this.keyExtractor = extractor;
+	}
+
+	/**
+	 * Set the most elements held back behind in-flight keys in
+	 * {@link OrderingMode#PER_KEY}. Once that many are held, workers stop
+	 * reading the source until a key's backlog shrinks, so a live feed keeps
+	 * its back-pressure even when most elements share a key. Must be called
+	 * before the thread is started.
+	 * 
+	 * @param max
+	 *            at least 1; {@link #DEFAULT_MAX_PARKED_ELEMENTS} by default.
+	 */
+	public void setMaxParkedElements(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException(
+					"max parked elements must be at least 1: " + max);
+		}
+		this.maxParkedElements = max;
+	}
+
+	/**
+	 * Register each element's deadline with the given wheel and execute the
+	 * elements on the thread running this MonitorDispatchThread instead of a
+	 * separate DispatchThread. Applies when not in pooled mode. Must be called
+	 * before the thread is started.
+	 * 
+	 * @param wheel
+	 *            the wheel, typically {@link TimeoutWheel#getShared()}; null
+	 *            restores the dedicated DispatchThread.
+	 */
+	public void setTimeoutWheel(TimeoutWheel wheel) {
+		this.timeoutWheel = wheel;
+	}
+
+	/**
+	 * Set the policy giving failed and timed out elements further attempts.
+	 * Attempts are counted per element identity. A timed out element is
+	 * retried whether or not its first execution is eventually interrupted,
+	 * so an action which may time out should tolerate running twice. In
+	 * pooled mode a retried element loses its per-key ordering. Must be called
+	 * before the thread is started.
+	 * 
+	 * @param policy
+	 *            the policy, or null to never retry.
+	 */
+	public void setRetryPolicy(RetryPolicy<T> policy) {
+		this.retryPolicy = policy;
+	}
+
+	/**
+	 * Set the sink receiving the elements which failed for good.
+	 * 
+	 * @param sink
+	 *            the sink, or null to drop them.
+	 */
+	public void setDeadLetterSink(DeadLetterSink<T> sink) {
+		this.deadLetterSink = sink;
+	}
+
+	/**
+	 * Set the store recording completed elements. Elements the store already
+	 * holds as completed are skipped; open it for resume to continue an
+	 * earlier run, or afresh to start over. Elements are identified by their
+	 * position in the source unless a key extractor is set, and are recorded
+	 * once the MonitoredAction returns normally. The store is flushed when the
+	 * run ends but is not closed. Must be called before the thread is
+	 * started.
+	 * 
+	 * @param store
+	 *            the store, or null to disable checkpointing.
+	 */
+	public void setCheckpointStore(CheckpointStore store) {
+		this.checkpointStore = store;
+	}
+
+	/**
+	 * Set the key identifying elements in the checkpoint store; the key's
+	 * string form is recorded. Positions identify elements only as long as
+	 * the source yields the same elements in the same order on every run, and
+	 * are tracked per element instance, so a source which repeats an instance
+	 * or changes between runs needs a key.
+	 * 
+	 * @param extractor
+	 *            derives a stable key from each element, or null to use
+	 *            source positions.
+	 */
+	public void setCheckpointKeyExtractor(KeyExtractor<T> extractor) {
+		this.checkpointKeys = extractor;
+	}
+
+	/**
+	 * Schedules another attempt at a failed element, or hands it to the
+	 * dead-letter sink once the retry policy gives up on it.
+	 * 
+	 * @param obj
+	 *            the element.
+	 * @param cause
+	 *            the failure, or a TimeoutException.
+	 */
+	private void retryOrDeadLetter(T obj, Exception cause) {
+		RetryPolicy<T> policy = retryPolicy;
+		DeadLetterSink<T> sink = deadLetterSink;
+		if (obj == null) {
+			return;
+		}
+		if (policy == null && sink == null) {
+			forgetCheckpoint(obj);
+			return;
+		}
+		try {
+			int attempts = 1;
+			if (policy != null) {
+				synchronized (attemptCounts) {
+					Integer previous = attemptCounts.remove(obj);
+					if (previous != null) {
+						attempts = previous;
+					}
+				}
+			}
+			if (policy != null && policy.shouldRetry(obj, cause, attempts)) {
+				retriesOutstanding.incrementAndGet();
+				metrics.taskRetried();
+				TimeoutWheel wheel = timeoutWheel != null ? timeoutWheel
+						: TimeoutWheel.getShared();
+				wheel.schedule(new RetryTask(obj, attempts + 1),
+						policy.getDelay(attempts), TimeUnit.MILLISECONDS);
+			} else {
+				forgetCheckpoint(obj);
+				if (sink != null) {
+					metrics.deadLettered();
+					sink.deadLetter(obj, attempts, cause);
+				}
+			}
+		} catch (RuntimeException e) {
+			handleMonitorException(e);
+		}
+	}
+
+	/**
+	 * Checkpoints an element the MonitoredAction completed.
+	 * 
+	 * @param obj
+	 *            the element.
+	 */
+	private void taskSucceeded(T obj) {
+		forgetAttempts(obj);
+		CheckpointStore store = checkpointStore;
+		if (store == null) {
+			return;
+		}
+		try {
+			if (checkpointKeys != null) {
+				store.completed(String.valueOf(checkpointKeys.getKey(obj)));
+			} else {
+				Long index;
+				synchronized (checkpointIndex) {
+					index = checkpointIndex.remove(obj);
+				}
+				if (index != null) {
+					store.completed(index);
+				}
+			}
+		} catch (IOException e) {
+			handleMonitorException(e);
+		}
+	}
+
+	/**
+	 * Drops the bookkeeping of an element which was interrupted.
+	 * 
+	 * @param obj
+	 *            the element.
+	 */
+	private void taskAbandoned(T obj) {
+		forgetAttempts(obj);
+		forgetCheckpoint(obj);
+	}
+
+	/**
+	 * Drops the attempt count of an element which will not be retried.
+	 */
+	private void forgetAttempts(T obj) {
+		if (retryPolicy != null) {
+			synchronized (attemptCounts) {
+				attemptCounts.remove(obj);
+			}
+		}
+	}
+
+	/**
+	 * Drops the source position of an element which will not complete.
+	 */
+	private void forgetCheckpoint(T obj) {
+		if (checkpointStore != null && checkpointKeys == null) {
+			synchronized (checkpointIndex) {
+				checkpointIndex.remove(obj);
+			}
+		}
+	}
+
+	/**
+	 * Writes out buffered checkpoint records at the end of a run.
+	 */
+	private void flushCheckpoint() {
+		CheckpointStore store = checkpointStore;
+		if (store != null) {
+			try {
+				store.flush();
+			} catch (IOException e) {
+				handleMonitorException(e);
+			}
+		}
+	}
+
+	/**
+	 * Wheel task returning a failed element to the source once its backoff
+	 * has elapsed. After termination the element is kept for drainRemaining.
+	 */
+	private class RetryTask implements Runnable {
+
+		private final T obj;
+
+		private final int attempt;
+
+		RetryTask(T obj, int attempt) {
+			this.obj = obj;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (sharedState.isDone()) {
+					synchronized (leftovers) {
+						leftovers.add(obj);
+					}
+				} else {
+					retryReady.add(this);
+				}
+			} finally {
+				retriesOutstanding.decrementAndGet();
+			}
+		}
+	}
+
+	private boolean retryPending() {
+		return retriesOutstanding.get() > 0 || !retryReady.isEmpty();
+	}
+
+	private static TimeoutException timedOut() {
+		return new TimeoutException("MonitoredAction timed out");
+	}
+
+	/**
+	 * This interrupts the currently processing MonitoredTask execution. In
+	 * pooled mode, a call from within a hook interrupts the worker the hook is
+	 * reporting on; any other call interrupts every busy worker.
+	 */
+	public void interruptMonitoredTask() {
+		WorkerPool p = pool;
+		if (p != null) {
+			WorkerSlot<T> slot = slotContext.get();
+			if (slot != null) {
+				p.interrupt(slot);
+			} else {
+				p.interruptAll();
+			}
+			return;
+		}
+		if (timeoutWheel != null) {
+			Thread runner = inlineRunner;
+			if (runner != null) {
+				runner.interrupt();
+			}
+			return;
+		}
+		dispatcher.interruptWorker();
+	}
+
+	/**
+	 * This sets the internal terminate flag. The current MonitoredTask
+	 * execution will continue. This method provides a way to finish the
+	 * remainder of the Collection in a different thread, without cancelling the
+	 * long-running request.
+	 */
+	public void terminateAfterThisTask() {
+		// the flag survives the replacement of a stuck DispatchThread.
+		terminateRequested = true;
+		sharedState.requestTerminate();
+	}
+
+	/**
+	 * This method returns the currently set object. It is most useful to
+	 * determine which object was being processed when the thread was cancelled.
+	 * 
+	 * @return current object.
+	 */
+	public T getCurrentObject() {
+		WorkerPool p = pool;
+		if (p != null) {
+			return p.getCurrentObject(slotContext.get());
+		}
+		return currentSharedState().getCurrentObject();
+	}
+
+	/**
+	 * the action being performed.
+	 * 
+	 * @return the action being performed.
+	 */
+	public MonitoredAction<T> getMonitoredAction() {
+		return monitoredTask;
+	}
+
+	/**
+	 * the set of objects being processed.
+	 * 
+	 * @return the set of objects being processed; the feed for a queue source,
+	 *         or null for an Iterator source.
+	 */
+	public Collection<T> getManagedObjects() {
+		return managedObjects;
+	}
+
+	/**
+	 * The current ExecutionState.
+	 * 
+	 * @return current ExecutionState.
+	 */
+	public ExecutionState getExecutionState() {
+		WorkerPool p = pool;
+		if (p != null) {
+			return p.getExecutionState(slotContext.get());
+		}
+		return currentSharedState().getExecutionState();
+	}
+
+	/**
+	 * The SharedState the calling hook reports on: an abandoned DispatchThread
+	 * keeps its own.
+	 */
+	private SharedState<T> currentSharedState() {
+		DispatchThread d = dispatchContext.get();
+		return d != null ? d.state : sharedState;
+	}
+
+	/**
+	 * Set the factory creating dispatch workers: the DispatchThread, and the
+	 * workers of pooled mode. Must be called before the thread is started. A
+	 * factory creating virtual threads selects {@link HandoffMode#PARKING}
+	 * unless a handoff mode was set.
+	 * 
+	 * @param factory
+	 *            the factory, or null for platform threads named after this
+	 *            thread.
+	 * @throws IllegalArgumentException
+	 *             if the factory creates virtual threads and
+	 *             {@link HandoffMode#MONITOR} was set.
+	 */
+	public void setThreadFactory(ThreadFactory factory) {
+		boolean virtual = factory != null
+				&& ThreadFactories.createsVirtual(factory);
+		if (virtual && handoffModeSet && handoffMode == HandoffMode.MONITOR) {
+			throw new IllegalArgumentException(
+					"MONITOR handoff would pin the carriers of virtual dispatch workers");
+		}
+		this.threadFactory = factory;
+		this.virtualWorkers = virtual;
+		if (virtual && !handoffModeSet) {
+			applyHandoffMode(HandoffMode.PARKING);
+		}
+	}
+
+	/**
+	 * Creates a dispatch worker thread.
+	 */
+	private Thread newWorker(Runnable r, String name) {
+		ThreadFactory factory = threadFactory;
+		if (factory == null) {
+			return new Thread(r, name);
+		}
+		return factory.newThread(r);
+	}
+
+	/**
+	 * Counters and latency histogram for this thread, readable while it runs
+	 * and exportable via JMX.
+	 * 
+	 * @return the metrics.
+	 */
+	public MonitorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Number of elements waiting to be processed.
+	 * 
+	 * @return the queue depth, or -1 for an Iterator source.
+	 */
+	int getQueueDepth() {
+		WorkerPool p = pool;
+		int parked = p != null ? p.getParkedCount() : 0;
+		if (feed != null) {
+			return feed.size() + parked;
+		}
+		if (managedObjects != null) {
+			long remaining = managedObjects.size() - sourcePosition.get();
+			return (int) Math.max(0, remaining + parked);
+		}
+		return -1;
+	}
+
+	/**
+	 * Age of the oldest element currently executing.
+	 * 
+	 * @return nanoseconds, or 0 when idle.
+	 */
+	long getCurrentElementAgeNanos() {
+		WorkerPool p = pool;
+		if (p != null) {
+			return p.getOldestTaskAge();
+		}
+		long start = taskStartNanos;
+		return start == 0 ? 0 : System.nanoTime() - start;
+	}
+
+	/**
+	 * Handoff strategy between the monitor thread and the DispatchThread.
+	 * Both strategies share the same {@link ExecutionState} semantics.
+	 * 
+	 * @author gabriel
+	 */
+	public static enum HandoffMode {
+		/**
+		 * The two threads synchronize on a shared monitor and hand off each
+		 * element with wait/notify. This is the default, except with virtual
+		 * dispatch workers, which it would pin to their carrier threads.
+		 */
+		MONITOR,
+		/**
+		 * The two threads publish state through atomics and hand off each
+		 * element with LockSupport park/unpark. This is considerably cheaper
+		 * per element when the MonitoredAction itself is cheap.
+		 */
+		PARKING;
+	}
+
+	/**
+	 * Set the handoff strategy used between the monitor thread and the
+	 * DispatchThread. Must be called before the thread is started.
+	 * 
+	 * @param mode
+	 *            the handoff strategy.
+	 * @throws IllegalArgumentException
+	 *             if mode is {@link HandoffMode#MONITOR} and the thread
+	 *             factory creates virtual threads, whose carriers a wait
+	 *             inside synchronized would pin.
+	 */
+	public void setHandoffMode(HandoffMode mode) {
+		if (mode == HandoffMode.MONITOR && virtualWorkers) {
+			throw new IllegalArgumentException(
+					"MONITOR handoff would pin the carriers of virtual dispatch workers");
+		}
+		handoffModeSet = true;
+		applyHandoffMode(mode);
+	}
+
+	private void applyHandoffMode(HandoffMode mode) {
+		this.handoffMode = mode;
+		sharedState = newSharedState();
+		dispatcher = new DispatchThread();
+	}
+
+	private SharedState<T> newSharedState() {
+		if (handoffMode == HandoffMode.PARKING) {
+			return new ParkingSharedState<T>();
+		}
+		return new MonitorSharedState<T>();
+	}
+
+	/**
+	 * Set how many abandoned dispatch workers may be alive at once. When an
+	 * element times out and the cap has not been reached, its worker is
+	 * interrupted and abandoned and a new worker continues with the next
+	 * element; a late result of the abandoned element is still reported
+	 * through the hooks, from the abandoned worker. Once the cap is reached,
+	 * the next element waits for the stuck worker as usual. In
+	 * {@link OrderingMode#PER_KEY} the elements queued behind the abandoned
+	 * element's key no longer wait for it. Does not apply when a TimeoutWheel
+	 * is set outside pooled mode. Must be called before the thread is
+	 * started.
+	 * 
+	 * @param max
+	 *            the cap; 0, the default, never abandons a worker.
+	 */
+	public void setMaxOrphanedWorkers(int max) {
+		if (max < 0) {
+			throw new IllegalArgumentException(
+					"max orphaned workers must not be negative: " + max);
+		}
+		this.maxOrphanedWorkers = max;
+	}
+
+	/**
+	 * Registers a worker being abandoned, unless the cap is reached.
+	 * 
+	 * @return false if the worker must be kept.
+	 */
+	private boolean adoptOrphan(Thread worker) {
+		synchronized (orphans) {
+			for (Iterator<Thread> it = orphans.iterator(); it.hasNext();) {
+				if (!it.next().isAlive()) {
+					it.remove();
+				}
+			}
+			if (orphans.size() >= maxOrphanedWorkers) {
+				return false;
+			}
+			orphans.add(worker);
+		}
+		metrics.workerOrphaned();
+		return true;
+	}
+
+	/**
+	 * Number of abandoned dispatch workers still alive.
+	 * 
+	 * @return the live orphan count.
+	 */
+	int getLiveOrphanCount() {
+		int live = 0;
+		synchronized (orphans) {
+			for (Thread t : orphans) {
+				if (t.isAlive()) {
+					live++;
+				}
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * Abandons the DispatchThread stuck on a timed out element and starts a
+	 * fresh one with its own SharedState.
+	 */
+	private void replaceDispatcher() {
+		DispatchThread stuck = dispatcher;
+		if (maxOrphanedWorkers == 0 || !adoptOrphan(stuck.worker())) {
+			return;
+		}
+		SharedState<T> old = sharedState;
+		sharedState = newSharedState();
+		if (terminateRequested) {
+			sharedState.requestTerminate();
+		}
+		// the orphan exits once its element returns.
+		old.requestTerminate();
+		stuck.interruptWorker();
+		DispatchThread fresh = new DispatchThread();
+		dispatcher = fresh;
+		fresh.startWorker();
+	}
+
+	/**
+	 * State and data shared by the monitor thread and the DispatchThread. The
+	 * await methods encapsulate the blocking handoff for each side.
+	 * 
+	 * @author <a href=mailto:gtassone@cougaarsoftware.com>gtassone</a>
+	 * @version $Revision$
+	 */
+	private abstract static class SharedState<T> {
+
+		/**
+		 * Monitor side: assigns the next object to the DispatchThread.
+		 */
+		public abstract void pushTask(T t);
+
+		/**
+		 * Monitor side: blocks while the DispatchThread is still occupied by
+		 * an interrupted or timed out task.
+		 */
+		public abstract void awaitIdle() throws InterruptedException;
+
+		/**
+		 * Monitor side: blocks until the assigned task finishes, is
+		 * interrupted, or exceeds the timeout.
+		 * 
+		 * @return true if the task timed out and was marked TIMED_OUT.
+		 */
+		public abstract boolean awaitCompletion(long timeout)
+				throws InterruptedException;
+
+		/**
+		 * Dispatch side: blocks until a task is assigned or termination is
+		 * requested. Also returns for a task which timed out before it was
+		 * started.
+		 * 
+		 * @return false if termination was requested.
+		 */
+		public abstract boolean awaitTask() throws InterruptedException;
+
+		/**
+		 * Dispatch side: moves the assigned task to EXECUTING_TASK.
+		 * 
+		 * @return false if the monitor timed the task out before it started.
+		 */
+		public abstract boolean startTask();
+
+		/**
+		 * Dispatch side: settles the outcome of the executing task against
+		 * its timeout. Once it returns true the monitor no longer times the
+		 * task out.
+		 * 
+		 * @return false if the task already timed out, in which case the
+		 *         monitor has handled its retry or dead letter.
+		 */
+		public abstract boolean settleTask();
+
+		public abstract void finishTask();
+
+		public abstract void interruptedTask();
+
+		public abstract void timedOut();
+
+		public abstract boolean isDone();
+
+		public abstract T getCurrentObject();
+
+		public abstract ExecutionState getExecutionState();
+
+		public abstract void requestTerminate();
+
+	}
+
+	/**
+	 * Functions as a mutex with additional synchronized state information for
+	 * the two threads. The two threads share state and data information through
+	 * this object, and synchronize on its monitor.
+	 * 
+	 * @author <a href=mailto:gtassone@cougaarsoftware.com>gtassone</a>
+	 * @version $Revision$
+	 */
+	private static class MonitorSharedState<T> extends SharedState<T> {
+
+		private ExecutionState state = ExecutionState.NO_TASK;
+
+		private boolean done = false;
+
+		private boolean assigned = false;
+
+		private boolean settled = false;
+
+		private T currentObject;
+
+		public synchronized void pushTask(T t) {
+			currentObject = t;
+			assigned = true;
+			settled = false;
+			state = ExecutionState.NEXT_TASK_ASSIGNED;
+			notify();
+		}
+
+		public synchronized void awaitIdle() throws InterruptedException {
+			while (ExecutionState.INTERRUPTED_TASK == state
+					|| ExecutionState.TIMED_OUT == state) {
+				wait();
+			}
+		}
+
+		public synchronized boolean awaitCompletion(long timeout)
+				throws InterruptedException {
+			long startTime = System.currentTimeMillis();
+			while (ExecutionState.FINISHED_TASK != state) {
+				long elapsed = System.currentTimeMillis() - startTime;
+				if (elapsed < timeout) {
+					wait(timeout - elapsed);
+
+					if (ExecutionState.INTERRUPTED_TASK == state) {
+						break;
+					}
+				} else if (settled) {
+					// the task returned in time and is being wound up.
+					wait();
+
+					if (ExecutionState.INTERRUPTED_TASK == state) {
+						break;
+					}
+				} else {
+					settled = true;
+					state = ExecutionState.TIMED_OUT;
+					notify();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized boolean awaitTask() throws InterruptedException {
+			try {
+				while (!assigned && !done) {
+					wait();
+				}
+				return !done;
+			} finally {
+				notify();
+			}
+		}
+
+		public synchronized void finishTask() {
+			state = ExecutionState.FINISHED_TASK;
+			notify();
+		}
+
+		public synchronized void interruptedTask() {
+			state = ExecutionState.INTERRUPTED_TASK;
+			notify();
+		}
+
+		public synchronized void timedOut() {
+			state = ExecutionState.TIMED_OUT;
+			notify();
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		public synchronized boolean startTask() {
+			assigned = false;
+			if (ExecutionState.NEXT_TASK_ASSIGNED != state) {
+				return false;
+			}
+			state = ExecutionState.EXECUTING_TASK;
+			return true;
+		}
+
+		public synchronized boolean settleTask() {
+			if (settled) {
+				return false;
+			}
+			settled = true;
+			return true;
+		}
+
+		public synchronized T getCurrentObject() {
+			return currentObject;
+		}
+
+		public synchronized ExecutionState getExecutionState() {
+			return state;
+		}
+
+		public synchronized void requestTerminate() {
+			done = true;
+			notify();
+		}
+
+	}
+
+	/**
+	 * Lock-free SharedState. State transitions are published through an
+	 * AtomicReference and each side parks until the other unparks it; no
+	 * monitor is ever acquired on the per-element path. The timeout and the
+	 * dispatcher settle each task through a compare-and-set, so a task
+	 * finishing right at its deadline is never both completed and timed out.
+	 * 
+	 * @author gabriel
+	 */
+	private static class ParkingSharedState<T> extends SharedState<T> {
+
+		/**
+		 * Number of state checks before parking. Spinning only pays off when
+		 * the other side can run concurrently.
+		 */
+		private static final int SPINS = Runtime.getRuntime()
+				.availableProcessors() > 1 ? 128 : 0;
+
+		private final AtomicReference<ExecutionState> state = new AtomicReference<ExecutionState>(
+				ExecutionState.NO_TASK);
+
+		private volatile boolean done = false;
+
+		private volatile boolean assigned = false;
+
+		private final AtomicBoolean settled = new AtomicBoolean();
+
+		private volatile T currentObject;
+
+		private volatile Thread monitorWaiter;
+
+		private volatile Thread dispatchWaiter;
+
+		public void pushTask(T t) {
+			currentObject = t;
+			settled.set(false);
+			assigned = true;
+			state.set(ExecutionState.NEXT_TASK_ASSIGNED);
+			unpark(dispatchWaiter);
+		}
+
+		public void awaitIdle() throws InterruptedException {
+			monitorWaiter = Thread.currentThread();
+			ExecutionState s = state.get();
+			while (ExecutionState.INTERRUPTED_TASK == s
+					|| ExecutionState.TIMED_OUT == s) {
+				LockSupport.park(this);
+				checkInterrupt();
+				s = state.get();
+			}
+		}
+
+		public boolean awaitCompletion(long timeout)
+				throws InterruptedException {
+			monitorWaiter = Thread.currentThread();
+			long deadline = System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(timeout);
+			int spins = SPINS;
+			while (true) {
+				ExecutionState s = state.get();
+				if (ExecutionState.FINISHED_TASK == s
+						|| ExecutionState.INTERRUPTED_TASK == s) {
+					return false;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					if (settled.compareAndSet(false, true)) {
+						markTimedOut();
+						unpark(dispatchWaiter);
+						return true;
+					}
+					// the task returned in time and is being wound up.
+					LockSupport.park(this);
+					checkInterrupt();
+				} else if (spins > 0) {
+					spins--;
+				} else {
+					LockSupport.parkNanos(this, remaining);
+					checkInterrupt();
+				}
+			}
+		}
+
+		public boolean awaitTask() throws InterruptedException {
+			dispatchWaiter = Thread.currentThread();
+			int spins = SPINS;
+			while (!assigned && !done) {
+				if (spins > 0) {
+					spins--;
+				} else {
+					LockSupport.park(this);
+					checkInterrupt();
+				}
+			}
+			return !done;
+		}
+
+		/**
+		 * Moves a task still assigned or executing to TIMED_OUT; the
+		 * dispatcher may be starting it meanwhile.
+		 */
+		private void markTimedOut() {
+			ExecutionState s;
+			do {
+				s = state.get();
+				if (ExecutionState.NEXT_TASK_ASSIGNED != s
+						&& ExecutionState.EXECUTING_TASK != s) {
+					return;
+				}
+			} while (!state.compareAndSet(s, ExecutionState.TIMED_OUT));
+		}
+
+		public boolean startTask() {
+			assigned = false;
+			return state.compareAndSet(ExecutionState.NEXT_TASK_ASSIGNED,
+					ExecutionState.EXECUTING_TASK);
+		}
+
+		public boolean settleTask() {
+			return settled.compareAndSet(false, true);
+		}
+
+		public void finishTask() {
+			state.set(ExecutionState.FINISHED_TASK);
+			unpark(monitorWaiter);
+		}
+
+		public void interruptedTask() {
+			state.set(ExecutionState.INTERRUPTED_TASK);
+			unpark(monitorWaiter);
+		}
+
+		public void timedOut() {
+			state.set(ExecutionState.TIMED_OUT);
+			unpark(dispatchWaiter);
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		public T getCurrentObject() {
+			return currentObject;
+		}
+
+		public ExecutionState getExecutionState() {
+			return state.get();
+		}
+
+		public void requestTerminate() {
+			done = true;
+			unpark(dispatchWaiter);
+			unpark(monitorWaiter);
+		}
+
+		private static void unpark(Thread t) {
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+
+		private static void checkInterrupt() throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+	}
+
+	@Override
+	public final void run() {
+
+		if (parallelism > 1 && orderingMode != OrderingMode.STRICT) {
+			runPooled();
+			return;
+		}
+		if (timeoutWheel != null) {
+			runInline();
+			return;
+		}
+
+		try {
+			dispatcher.startWorker();
+			Iterator<T> objIter = openSource();
+
+			while (!sharedState.isDone()) {
+
+				// when the second thread is handling an interrupt we should be
+				// blocking.
+				sharedState.awaitIdle();
+
+				// hasNext() may take an element from the feed, so termination
+				// is checked first to leave it there for drainRemaining.
+				if (sharedState.isDone() || !objIter.hasNext()) {
+					break;
+				}
+				T nextObject = objIter.next();
+
+				sharedState.pushTask(nextObject);
+
+				handleStartTask(nextObject);
+
+				if (sharedState.awaitCompletion(timeoutFor(nextObject))) {
+					metrics.taskTimedOut();
+					handleTimeout();
+					retryOrDeadLetter(nextObject, timedOut());
+					replaceDispatcher();
+				}
+			} // end while
+
+			sharedState.requestTerminate();
+			if (shouldJoinDispatch) {
+				dispatcher.joinWorker();
+			}
+
+		} catch (Exception e) {
+			// hook for logging or custom behavior.
+			sharedState.requestTerminate();
+			dispatcher.interruptWorker();
+			handleMonitorException(e);
+
+		} finally {
+			flushCheckpoint();
+			finish();
+		}
+	}
+
+	/**
+	 * Execution thread which waits for the next Object to process, then
+	 * processes it with the client MonitoredTask. When a ThreadFactory is set,
+	 * this Thread is only the Runnable of a worker created by the factory.
+	 * 
+	 * @author gabriel
+	 */
+	public class DispatchThread extends Thread {
+
+		private final SharedState<T> state = sharedState;
+
+		private volatile Thread carrier;
+
+		/**
+		 * the thread actually executing this dispatcher.
+		 */
+		private Thread worker() {
+			Thread c = carrier;
+			return c != null ? c : this;
+		}
+
+		private void startWorker() {
+			if (threadFactory == null) {
+				start();
+			} else {
+				carrier = newWorker(this, getName());
+				carrier.start();
+			}
+		}
+
+		private void interruptWorker() {
+			worker().interrupt();
+		}
+
+		private void joinWorker() throws InterruptedException {
+			worker().join();
+		}
+
+		@Override
+		public final void run() {
+
+			dispatchContext.set(this);
+			while (true) {
+
+				T nextObj = null;
+
+				try {
+
+					if (!state.awaitTask()) {
+						break;
+					}
+
+					if (!state.startTask()) {
+						// timed out before it started; the monitor has
+						// already handled it.
+						state.finishTask();
+						continue;
+					}
+					nextObj = state.getCurrentObject();
+
+				} catch (InterruptedException e) {
+					// this shouldn't happen
+					e.printStackTrace(System.out);
+				}
+
+				if (nextObj != null) {
+					long started = metrics.taskStarted();
+					taskStartNanos = started;
+					try {
+						monitoredTask.execute(nextObj);
+						boolean settled = state.settleTask();
+						metrics.taskCompleted(started);
+						if (settled) {
+							taskSucceeded(nextObj);
+						}
+						handleTaskCompleted();
+
+					} catch (InterruptedException e) {
+						boolean settled = state.settleTask();
+						metrics.taskInterrupted(started);
+						if (settled) {
+							taskAbandoned(nextObj);
+						}
+						state.interruptedTask();
+						handleInterruptedTask(e);
+
+					} catch (Exception e) {
+						boolean settled = state.settleTask();
+						metrics.taskFailed(started);
+						handleDispatchException(e);
+						if (settled) {
+							retryOrDeadLetter(nextObj, e);
+						}
+
+					} finally {
+
+						if (this == dispatcher) {
+							taskStartNanos = 0;
+						}
+						state.finishTask();
+					}
+				} else {
+					metrics.nullObject();
+					handleNullObject();
+					state.finishTask();
+				}
+			}
+			dispatchContext.remove();
+		}
+	}
+
+
+	/**
+	 * Run loop used with a TimeoutWheel: each element executes on this thread
+	 * while the wheel watches its deadline.
+	 */
+	private void runInline() {
+
+		try {
+			Iterator<T> objIter = openSource();
+
+			// termination is checked before hasNext(), which may take an
+			// element from the feed.
+			while (!sharedState.isDone() && objIter.hasNext()) {
+
+				T nextObject = objIter.next();
+
+				sharedState.pushTask(nextObject);
+
+				handleStartTask(nextObject);
+
+				sharedState.startTask();
+				dispatchInline(nextObject);
+			}
+
+			sharedState.requestTerminate();
+
+		} catch (Exception e) {
+			// hook for logging or custom behavior.
+			sharedState.requestTerminate();
+			handleMonitorException(e);
+
+		} finally {
+			flushCheckpoint();
+			finish();
+		}
+	}
+
+	/**
+	 * Executes one element on the current thread under a wheel deadline.
+	 * 
+	 * @param nextObj
+	 *            the element.
 	 */
-	public class DispatchThread extends Thread {
+	private void dispatchInline(T nextObj) {
+
+		InlineDeadline deadline = new InlineDeadline(nextObj);
+		deadline.handle = timeoutWheel.schedule(deadline, timeoutFor(nextObj),
+				TimeUnit.MILLISECONDS);
+
+		// an interrupt aimed at the previous element must not leak into
+		// this one.
+		Thread.interrupted();
+		inlineRunner = Thread.currentThread();
+		try {
+			if (nextObj != null) {
+				long started = metrics.taskStarted();
+				taskStartNanos = started;
+				try {
+					monitoredTask.execute(nextObj);
+					boolean settled = deadline.settle();
+					metrics.taskCompleted(started);
+					if (settled) {
+						taskSucceeded(nextObj);
+					}
+					handleTaskCompleted();
+
+				} catch (InterruptedException e) {
+					boolean settled = deadline.settle();
+					metrics.taskInterrupted(started);
+					if (settled) {
+						taskAbandoned(nextObj);
+					}
+					sharedState.interruptedTask();
+					handleInterruptedTask(e);
+
+				} catch (Exception e) {
+					boolean settled = deadline.settle();
+					metrics.taskFailed(started);
+					handleDispatchException(e);
+					if (settled) {
+						retryOrDeadLetter(nextObj, e);
+					}
+				}
+			} else {
+				metrics.nullObject();
+				handleNullObject();
+			}
+		} finally {
+			taskStartNanos = 0;
+			inlineRunner = null;
+			Thread.interrupted();
+			deadline.finish();
+		}
+	}
+
+	/**
+	 * Wheel task guarding a single inline execution. Whichever of expiry and
+	 * completion happens first decides whether the element timed out; an
+	 * execution returning after its expiry leaves the retry or dead letter to
+	 * the expiry.
+	 */
+	private class InlineDeadline implements Runnable {
+
+		private final T obj;
+
+		private TimeoutWheel.Timeout handle;
+
+		private boolean settled;
+
+		InlineDeadline(T obj) {
+			this.obj = obj;
+		}
 
 		@Override
-		public final void run() {
+		public void run() {
+			boolean reserved = retryPolicy != null;
+			synchronized (this) {
+				if (settled) {
+					return;
+				}
+				settled = true;
+				sharedState.timedOut();
+				// keep the run alive until the retry decision is made.
+				if (reserved) {
+					retriesOutstanding.incrementAndGet();
+				}
+			}
+			metrics.taskTimedOut();
+			try {
+				handleTimeout();
+			} catch (RuntimeException e) {
+				handleMonitorException(e);
+			} finally {
+				retryOrDeadLetter(obj, timedOut());
+				if (reserved) {
+					retriesOutstanding.decrementAndGet();
+				}
+			}
+		}
 
-			while (true) {
+		/**
+		 * Settles the execution against its expiry.
+		 * 
+		 * @return false if the element already timed out.
+		 */
+		synchronized boolean settle() {
+			if (settled) {
+				return false;
+			}
+			settled = true;
+			return true;
+		}
 
-				T nextObj = null;
+		void finish() {
+			handle.cancel();
+			synchronized (this) {
+				settled = true;
+				sharedState.finishTask();
+			}
+		}
+	}
 
-				synchronized (sharedState) {
-					try {
+	/**
+	 * Monitor loop for pooled mode. The dispatch workers pull elements from the
+	 * Collection themselves; this thread only enforces the per-element timeout
+	 * and fires {@link #handleTimeout()}.
+	 */
+	private void runPooled() {
 
-						while (ExecutionState.NEXT_TASK_ASSIGNED != sharedState
-								.getExecutionState() && !sharedState.isDone()) {
-							sharedState.wait();
-						}
+		WorkerPool p = null;
+		try {
+			if (orderingMode == OrderingMode.PER_KEY && keyExtractor == null) {
+				throw new IllegalStateException(
+						"OrderingMode.PER_KEY requires a KeyExtractor");
+			}
 
-						if (sharedState.isDone()) {
-							break;
+			p = new WorkerPool(openSource());
+			pool = p;
+			p.start();
+
+			List<WorkerSlot<T>> expired;
+			while ((expired = p.awaitExpired()) != null) {
+				for (WorkerSlot<T> slot : expired) {
+					metrics.taskTimedOut();
+					slotContext.set(slot);
+					try {
+						handleTimeout();
+					} finally {
+						slotContext.remove();
+						retryOrDeadLetter(slot.expiredObject, timedOut());
+						if (slot.retryReserved) {
+							retriesOutstanding.decrementAndGet();
+						}
+						if (maxOrphanedWorkers > 0) {
+							p.replace(slot);
 						}
+					}
+				}
+			}
+
+			sharedState.requestTerminate();
+			if (shouldJoinDispatch) {
+				p.join();
+			}
 
-						nextObj = sharedState.getNextObject();
+		} catch (Exception e) {
+			// hook for logging or custom behavior.
+			sharedState.requestTerminate();
+			if (p != null) {
+				p.interruptAll();
+			}
+			handleMonitorException(e);
 
-					} catch (InterruptedException e) {
-						// this shouldn't happen
-						e.printStackTrace(System.out);
-					} finally {
-						sharedState.notify();
+		} finally {
+			flushCheckpoint();
+			finish();
+		}
+	}
+
+	/**
+	 * State of one dispatch worker in pooled mode. All fields are guarded by
+	 * the owning WorkerPool's monitor.
+	 * 
+	 * @param <T>
+	 *            The type of objects to perform action on.
+	 */
+	private static class WorkerSlot<T> {
+
+		private Thread worker;
+
+		private ExecutionState state = ExecutionState.NO_TASK;
+
+		private T currentObject;
+
+		private Object key;
+
+		private long startTime;
+
+		private long deadline;
+
+		private boolean timedOut;
+
+		private boolean settled;
+
+		private T expiredObject;
+
+		private boolean retryReserved;
+
+		private boolean orphaned;
+
+	}
+
+	/**
+	 * Shared work source and timeout bookkeeping for pooled mode. Workers pull
+	 * their next element through {@link #assign(WorkerSlot)}; in
+	 * {@link OrderingMode#PER_KEY} an element whose key is already in flight is
+	 * parked behind that key and later handed to the worker owning it, which
+	 * preserves iteration order per key.
+	 */
+	private class WorkerPool {
+
+		private final Iterator<T> source;
+
+		private final Object sourceLock = new Object();
+
+		private final List<WorkerSlot<T>> slots = new ArrayList<WorkerSlot<T>>();
+
+		private final Map<Object, Deque<T>> pendingByKey = new HashMap<Object, Deque<T>>();
+
+		private int liveWorkers;
+
+		private int stuckWorkers;
+
+		private int parkedElements;
+
+		private boolean exhausted;
+
+		private boolean monitorWaiting;
+
+		private long monitorWakeup;
+
+		private T lastAssigned;
+
+		private int nextWorkerIndex = parallelism;
+
+		WorkerPool(Iterator<T> source) {
+			this.source = source;
+			for (int i = 0; i < parallelism; i++) {
+				WorkerSlot<T> slot = new WorkerSlot<T>();
+				slot.worker = newPooledWorker(slot, i);
+				slots.add(slot);
+			}
+		}
+
+		synchronized void start() {
+			liveWorkers = slots.size();
+			for (WorkerSlot<T> slot : slots) {
+				slot.worker.start();
+			}
+		}
+
+		/**
+		 * Assigns the next element to the given worker. The source may block,
+		 * so it is read under its own lock rather than the pool monitor, which
+		 * stays available to the timeout loop. Elements are claimed while the
+		 * source lock is held so that per-key order matches source order.
+		 * 
+		 * @return false if there is nothing left for this worker to do.
+		 */
+		boolean assign(WorkerSlot<T> slot) {
+
+			if (isOrphaned(slot)) {
+				return false;
+			}
+			if (continueKey(slot)) {
+				return true;
+			}
+
+			synchronized (sourceLock) {
+				while (awaitParkingRoom() && source.hasNext()) {
+					T next = source.next();
+					Object key = null;
+					if (next != null && orderingMode == OrderingMode.PER_KEY) {
+						key = keyExtractor.getKey(next);
 					}
+					if (claim(slot, next, key)) {
+						return true;
+					}
+				}
+			}
+
+			synchronized (this) {
+				exhausted = true;
+			}
+			return false;
+		}
+
+		/**
+		 * Blocks while the elements parked behind in-flight keys are at the
+		 * bound. The workers owning those keys drain them without the source
+		 * lock, so waiting here holds back only further reads.
+		 * 
+		 * @return false once termination is requested.
+		 */
+		private synchronized boolean awaitParkingRoom() {
+			boolean interrupted = false;
+			while (!sharedState.isDone()
+					&& parkedElements >= maxParkedElements) {
+				try {
+					wait(IDLE_POLL_MILLIS);
+				} catch (InterruptedException e) {
+					// aimed at the previous element; cleared before the next.
+					interrupted = true;
 				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return !sharedState.isDone();
+		}
 
-				if (nextObj != null) {
-					try {
-						monitoredTask.execute(nextObj);
-						handleTaskCompleted();
+		/**
+		 * Hands the worker the next element parked behind the key it owns, or
+		 * releases the key.
+		 */
+		private synchronized boolean continueKey(WorkerSlot<T> slot) {
+			if (slot.key == null) {
+				return false;
+			}
+			Deque<T> pending = pendingByKey.get(slot.key);
+			if (!pending.isEmpty() && !sharedState.isDone()) {
+				if (parkedElements-- == maxParkedElements) {
+					notifyAll();
+				}
+				start(slot, pending.poll());
+				return true;
+			}
+			releaseKey(slot);
+			return false;
+		}
 
-					} catch (InterruptedException e) {
-						sharedState.interruptedTask();
-						handleInterruptedTask(e);
+		/**
+		 * Claims an element for the worker, unless its key is in flight, in
+		 * which case the element is parked behind the key.
+		 */
+		private synchronized boolean claim(WorkerSlot<T> slot, T next,
+				Object key) {
+			if (key != null) {
+				Deque<T> pending = pendingByKey.get(key);
+				if (pending != null) {
+					pending.add(next);
+					parkedElements++;
+					return false;
+				}
+				pendingByKey.put(key, new ArrayDeque<T>());
+				slot.key = key;
+			}
+			start(slot, next);
+			return true;
+		}
 
-					} catch (Exception e) {
-						handleDispatchException(e);
+		private void start(WorkerSlot<T> slot, T next) {
+			slot.currentObject = next;
+			slot.state = ExecutionState.EXECUTING_TASK;
+			slot.startTime = System.nanoTime();
+			slot.deadline = slot.startTime
+					+ TimeUnit.MILLISECONDS.toNanos(timeoutFor(next));
+			slot.timedOut = false;
+			slot.settled = false;
+			lastAssigned = next;
+
+			if (monitorWaiting
+					&& (monitorWakeup == 0 || slot.deadline - monitorWakeup < 0)) {
+				notifyAll();
+			}
+		}
 
-					} finally {
+		/**
+		 * Releases the key owned by the worker; anything still parked behind
+		 * it was cut off by termination and is kept for drainRemaining.
+		 */
+		private void releaseKey(WorkerSlot<T> slot) {
+			Deque<T> pending = pendingByKey.remove(slot.key);
+			slot.key = null;
+			if (pending != null && !pending.isEmpty()) {
+				parkedElements -= pending.size();
+				synchronized (leftovers) {
+					leftovers.addAll(pending);
+				}
+			}
+		}
+
+		private synchronized boolean isOrphaned(WorkerSlot<T> slot) {
+			return slot.orphaned;
+		}
+
+		/**
+		 * Abandons a worker still stuck on a timed out element and starts a
+		 * fresh worker in its place, which inherits the key it owned.
+		 * 
+		 * @return false if the worker was kept.
+		 */
+		synchronized boolean replace(WorkerSlot<T> slot) {
+			if (!slot.timedOut || slot.orphaned || sharedState.isDone()
+					|| !adoptOrphan(slot.worker)) {
+				return false;
+			}
+			slot.orphaned = true;
+			slot.timedOut = false;
+			stuckWorkers--;
+
+			WorkerSlot<T> fresh = new WorkerSlot<T>();
+			fresh.key = slot.key;
+			slot.key = null;
+			fresh.worker = newPooledWorker(fresh, nextWorkerIndex++);
+			slots.set(slots.indexOf(slot), fresh);
+
+			slot.worker.interrupt();
+			fresh.worker.start();
+			return true;
+		}
+
+		/**
+		 * Settles the outcome of the worker's element against its timeout.
+		 * 
+		 * @return false if the element already timed out, in which case the
+		 *         monitor has handled its retry or dead letter.
+		 */
+		synchronized boolean settle(WorkerSlot<T> slot) {
+			if (slot.settled) {
+				return false;
+			}
+			slot.settled = true;
+			return true;
+		}
+
+		synchronized void interruptedTask(WorkerSlot<T> slot) {
+			slot.state = ExecutionState.INTERRUPTED_TASK;
+		}
+
+		synchronized void finishTask(WorkerSlot<T> slot) {
+			slot.state = ExecutionState.FINISHED_TASK;
+			if (slot.timedOut) {
+				slot.timedOut = false;
+				stuckWorkers--;
+			}
+		}
+
+		synchronized void workerExited(WorkerSlot<T> slot) {
+			if (slot.key != null) {
+				releaseKey(slot);
+			}
+			if (slot.timedOut) {
+				slot.timedOut = false;
+				stuckWorkers--;
+			}
+			slot.state = ExecutionState.NO_TASK;
+			// an orphan's place was taken by its replacement.
+			if (!slot.orphaned) {
+				liveWorkers--;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Blocks until at least one busy worker exceeds its timeout, marking
+		 * those workers TIMED_OUT.
+		 * 
+		 * @return the newly timed-out slots, or null once no worker can start
+		 *         another element.
+		 */
+		synchronized List<WorkerSlot<T>> awaitExpired()
+				throws InterruptedException {
+
+			while (true) {
+				// stuck workers are abandoned unless a retry still needs them.
+				if (liveWorkers == 0
+						|| (exhausted && stuckWorkers == liveWorkers
+								&& pendingByKey.isEmpty() && !retryPending())) {
+					return null;
+				}
 
-						sharedState.finishTask();
+				long now = System.nanoTime();
+				long wakeup = 0;
+				List<WorkerSlot<T>> expired = null;
+
+				for (WorkerSlot<T> slot : slots) {
+					if (ExecutionState.EXECUTING_TASK == slot.state
+							&& !slot.timedOut && !slot.settled) {
+						long deadline = slot.deadline;
+						if (deadline - now <= 0) {
+							slot.state = ExecutionState.TIMED_OUT;
+							slot.timedOut = true;
+							slot.settled = true;
+							stuckWorkers++;
+							slot.expiredObject = slot.currentObject;
+							// keep the workers alive until the retry decision
+							// is made.
+							slot.retryReserved = retryPolicy != null;
+							if (slot.retryReserved) {
+								retriesOutstanding.incrementAndGet();
+							}
+							if (expired == null) {
+								expired = new ArrayList<WorkerSlot<T>>();
+							}
+							expired.add(slot);
+						} else if (wakeup == 0 || deadline - wakeup < 0) {
+							wakeup = deadline;
+						}
 					}
+				}
+
+				if (expired != null) {
+					return expired;
+				}
+
+				monitorWaiting = true;
+				monitorWakeup = wakeup;
+				if (wakeup == 0) {
+					wait();
 				} else {
-					handleNullObject();
-					sharedState.finishTask();
+					TimeUnit.NANOSECONDS.timedWait(this, wakeup - now);
+				}
+				monitorWaiting = false;
+			}
+		}
+
+		synchronized int getParkedCount() {
+			return parkedElements;
+		}
+
+		synchronized long getOldestTaskAge() {
+			long now = System.nanoTime();
+			long age = 0;
+			for (WorkerSlot<T> s : slots) {
+				if (ExecutionState.EXECUTING_TASK == s.state
+						|| ExecutionState.TIMED_OUT == s.state) {
+					age = Math.max(age, now - s.startTime);
+				}
+			}
+			return age;
+		}
+
+		synchronized T getCurrentObject(WorkerSlot<T> slot) {
+			return slot != null ? slot.currentObject : lastAssigned;
+		}
+
+		synchronized ExecutionState getExecutionState(WorkerSlot<T> slot) {
+			if (slot != null) {
+				return slot.state;
+			}
+			for (WorkerSlot<T> s : slots) {
+				if (ExecutionState.EXECUTING_TASK == s.state
+						|| ExecutionState.TIMED_OUT == s.state) {
+					return ExecutionState.EXECUTING_TASK;
+				}
+			}
+			return ExecutionState.NO_TASK;
+		}
+
+		synchronized void interrupt(WorkerSlot<T> slot) {
+			slot.worker.interrupt();
+		}
+
+		synchronized void interruptAll() {
+			for (WorkerSlot<T> slot : slots) {
+				if (ExecutionState.EXECUTING_TASK == slot.state
+						|| ExecutionState.TIMED_OUT == slot.state) {
+					slot.worker.interrupt();
 				}
 			}
 		}
+
+		void join() throws InterruptedException {
+			for (WorkerSlot<T> slot : slots) {
+				slot.worker.join();
+			}
+		}
+	}
+
+	private Thread newPooledWorker(WorkerSlot<T> slot, int index) {
+		return newWorker(new PooledDispatcher(slot), getName() + "-dispatch-"
+				+ index);
+	}
+
+	/**
+	 * Dispatch worker for pooled mode. Pulls elements from the WorkerPool and
+	 * processes them with the client MonitoredTask, invoking the task hooks on
+	 * its thread.
+	 * 
+	 * @author gabriel
+	 */
+	private class PooledDispatcher implements Runnable {
+
+		private final WorkerSlot<T> slot;
+
+		PooledDispatcher(WorkerSlot<T> slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public void run() {
+
+			WorkerPool p = pool;
+			slotContext.set(slot);
+			try {
+				while (p.assign(slot)) {
+
+					T nextObj = slot.currentObject;
+
+					// an interrupt aimed at the previous element must not leak
+					// into this one.
+					Thread.interrupted();
+
+					handleStartTask(nextObj);
+
+					if (nextObj != null) {
+						long started = metrics.taskStarted();
+						try {
+							monitoredTask.execute(nextObj);
+							boolean settled = p.settle(slot);
+							metrics.taskCompleted(started);
+							if (settled) {
+								taskSucceeded(nextObj);
+							}
+							handleTaskCompleted();
+
+						} catch (InterruptedException e) {
+							boolean settled = p.settle(slot);
+							metrics.taskInterrupted(started);
+							if (settled) {
+								taskAbandoned(nextObj);
+							}
+							p.interruptedTask(slot);
+							handleInterruptedTask(e);
+
+						} catch (Exception e) {
+							boolean settled = p.settle(slot);
+							metrics.taskFailed(started);
+							handleDispatchException(e);
+							if (settled) {
+								retryOrDeadLetter(nextObj, e);
+							}
+
+						} finally {
+							p.finishTask(slot);
+						}
+					} else {
+						metrics.nullObject();
+						handleNullObject();
+						p.finishTask(slot);
+					}
+				}
+			} catch (RuntimeException e) {
+				sharedState.requestTerminate();
+				handleMonitorException(e);
+
+			} finally {
+				p.workerExited(slot);
+				slotContext.remove();
+			}
+		}
 	}
 
 }
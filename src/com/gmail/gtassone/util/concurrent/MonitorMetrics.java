@@ -0,0 +1,258 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and execution latency histogram for a MonitorDispatchThread, timed
+ * with System.nanoTime() on the dispatch path. Every value can be read while
+ * the thread is running, and the whole set can be exported as a JMX MBean via
+ * {@link #registerMBean(String)}.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorMetrics implements MonitorMetricsMBean {
+
+  /**
+   * JMX domain under which metrics are registered.
+   */
+  public static final String JMX_DOMAIN = "com.gmail.gtassone.util.concurrent";
+
+  private final MonitorDispatchThread<?> owner;
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private final AtomicLong started = new AtomicLong();
+
+  private final AtomicLong completed = new AtomicLong();
+
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private final AtomicLong interrupted = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong nullObjects = new AtomicLong();
+
+  private final AtomicLong retried = new AtomicLong();
+
+  private final AtomicLong deadLettered = new AtomicLong();
+
+  private final AtomicLong skipped = new AtomicLong();
+
+  private final AtomicLong orphaned = new AtomicLong();
+
+  private volatile ObjectName registeredName;
+
+  MonitorMetrics(MonitorDispatchThread<?> owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * The execution latency histogram, in nanoseconds. Every execution of the
+   * MonitoredAction is recorded, whatever its outcome.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram getLatencyHistogram() {
+    return latency;
+  }
+
+  /**
+   * registers these metrics with the platform MBeanServer.
+   *
+   * @param name
+   *        value of the name key of the ObjectName.
+   * @return the ObjectName registered.
+   * @throws JMException
+   *         if registration fails.
+   */
+  public ObjectName registerMBean(String name) throws JMException {
+    ObjectName objectName = new ObjectName(JMX_DOMAIN
+        + ":type=MonitorDispatchThread,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    registeredName = objectName;
+    return objectName;
+  }
+
+  /**
+   * unregisters these metrics from the platform MBeanServer, if registered.
+   *
+   * @throws JMException
+   *         if unregistration fails.
+   */
+  public void unregisterMBean() throws JMException {
+    ObjectName objectName = registeredName;
+    if (objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      registeredName = null;
+    }
+  }
+
+  long taskStarted() {
+    started.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  void taskCompleted(long startNanos) {
+    latency.record(System.nanoTime() - startNanos);
+    completed.incrementAndGet();
+  }
+
+  void taskFailed(long startNanos) {
+    latency.record(System.nanoTime() - startNanos);
+    failed.incrementAndGet();
+  }
+
+  void taskInterrupted(long startNanos) {
+    latency.record(System.nanoTime() - startNanos);
+    interrupted.incrementAndGet();
+  }
+
+  void taskTimedOut() {
+    timedOut.incrementAndGet();
+  }
+
+  void nullObject() {
+    nullObjects.incrementAndGet();
+  }
+
+  void taskRetried() {
+    retried.incrementAndGet();
+  }
+
+  void deadLettered() {
+    deadLettered.incrementAndGet();
+  }
+
+  void skipped() {
+    skipped.incrementAndGet();
+  }
+
+  void workerOrphaned() {
+    orphaned.incrementAndGet();
+  }
+
+  @Override
+  public long getStartedCount() {
+    return started.get();
+  }
+
+  @Override
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  @Override
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  @Override
+  public long getInterruptedCount() {
+    return interrupted.get();
+  }
+
+  @Override
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  @Override
+  public long getNullObjectCount() {
+    return nullObjects.get();
+  }
+
+  @Override
+  public long getRetriedCount() {
+    return retried.get();
+  }
+
+  @Override
+  public long getDeadLetteredCount() {
+    return deadLettered.get();
+  }
+
+  @Override
+  public long getSkippedCount() {
+    return skipped.get();
+  }
+
+  @Override
+  public long getOrphanedWorkerCount() {
+    return orphaned.get();
+  }
+
+  @Override
+  public int getLiveOrphanedWorkerCount() {
+    return owner.getLiveOrphanCount();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return owner.getQueueDepth();
+  }
+
+  @Override
+  public long getCurrentElementAgeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(owner.getCurrentElementAgeNanos());
+  }
+
+  @Override
+  public double getMeanLatencyMicros() {
+    return latency.getMean() / 1000;
+  }
+
+  @Override
+  public long getP50LatencyMicros() {
+    return micros(latency.getValueAtPercentile(50));
+  }
+
+  @Override
+  public long getP90LatencyMicros() {
+    return micros(latency.getValueAtPercentile(90));
+  }
+
+  @Override
+  public long getP99LatencyMicros() {
+    return micros(latency.getValueAtPercentile(99));
+  }
+
+  @Override
+  public long getP999LatencyMicros() {
+    return micros(latency.getValueAtPercentile(99.9));
+  }
+
+  @Override
+  public long getMaxLatencyMicros() {
+    return micros(latency.getMax());
+  }
+
+  @Override
+  public void reset() {
+    latency.reset();
+    started.set(0);
+    completed.set(0);
+    timedOut.set(0);
+    interrupted.set(0);
+    failed.set(0);
+    nullObjects.set(0);
+    retried.set(0);
+    deadLettered.set(0);
+    skipped.set(0);
+    orphaned.set(0);
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
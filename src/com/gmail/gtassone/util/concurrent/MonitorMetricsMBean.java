@@ -0,0 +1,112 @@
+package com.gmail.gtassone.util.concurrent;
+
+/**
+ * JMX management interface for {@link MonitorMetrics}. Latencies are reported
+ * in microseconds.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public interface MonitorMetricsMBean {
+
+  /**
+   * @return number of elements handed to the MonitoredAction.
+   */
+  long getStartedCount();
+
+  /**
+   * @return number of elements the MonitoredAction completed normally.
+   */
+  long getCompletedCount();
+
+  /**
+   * @return number of elements that exceeded their timeout.
+   */
+  long getTimedOutCount();
+
+  /**
+   * @return number of elements whose execution was interrupted.
+   */
+  long getInterruptedCount();
+
+  /**
+   * @return number of elements for which the MonitoredAction threw.
+   */
+  long getFailedCount();
+
+  /**
+   * @return number of null elements encountered.
+   */
+  long getNullObjectCount();
+
+  /**
+   * @return number of retries scheduled for failed or timed out elements.
+   */
+  long getRetriedCount();
+
+  /**
+   * @return number of elements handed to the dead-letter sink.
+   */
+  long getDeadLetteredCount();
+
+  /**
+   * @return number of elements skipped as completed by a previous run.
+   */
+  long getSkippedCount();
+
+  /**
+   * @return number of dispatch workers abandoned on a timed out element.
+   */
+  long getOrphanedWorkerCount();
+
+  /**
+   * @return number of abandoned dispatch workers still alive.
+   */
+  int getLiveOrphanedWorkerCount();
+
+  /**
+   * @return number of elements waiting to be processed, or -1 if unknown.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return age of the oldest element currently executing, in milliseconds;
+   *         0 when idle.
+   */
+  long getCurrentElementAgeMillis();
+
+  /**
+   * @return mean execution latency.
+   */
+  double getMeanLatencyMicros();
+
+  /**
+   * @return median execution latency.
+   */
+  long getP50LatencyMicros();
+
+  /**
+   * @return 90th percentile execution latency.
+   */
+  long getP90LatencyMicros();
+
+  /**
+   * @return 99th percentile execution latency.
+   */
+  long getP99LatencyMicros();
+
+  /**
+   * @return 99.9th percentile execution latency.
+   */
+  long getP999LatencyMicros();
+
+  /**
+   * @return largest execution latency.
+   */
+  long getMaxLatencyMicros();
+
+  /**
+   * clears all counters and the latency histogram.
+   */
+  void reset();
+}
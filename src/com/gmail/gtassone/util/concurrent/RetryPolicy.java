@@ -0,0 +1,163 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed element is executed again, and after what delay.
+ * Delays grow exponentially from the initial delay by the multiplier, are
+ * capped at the maximum delay, and are spread by a random jitter so that
+ * elements failing together are not retried together. Failures can be
+ * filtered with a {@link RetryPredicate}; by default every failure is
+ * retried until the attempts are used up.
+ * <p>
+ * Timeouts are reported to the policy as a
+ * {@link java.util.concurrent.TimeoutException}; elements interrupted through
+ * {@link MonitorDispatchThread#interruptMonitoredTask()} are never retried.
+ *
+ * @param <T>
+ *        The type of objects to perform action on.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class RetryPolicy<T> {
+
+  /**
+   * The default jitter, as a fraction of the delay.
+   */
+  public static final double DEFAULT_JITTER = 0.2;
+
+  /**
+   * Selects the failures worth retrying.
+   *
+   * @param <T>
+   *        The type of objects to perform action on.
+   */
+  public interface RetryPredicate<T> {
+
+    /**
+     * retry predicate.
+     *
+     * @param obj
+     *        the failed element.
+     * @param cause
+     *        the exception thrown by the action, or a TimeoutException.
+     * @return true if the element should be executed again.
+     */
+    boolean shouldRetry(T obj, Exception cause);
+  }
+
+  private final int maxAttempts;
+
+  private final long initialDelayMillis;
+
+  private final double multiplier;
+
+  private final long maxDelayMillis;
+
+  private volatile double jitter = DEFAULT_JITTER;
+
+  private volatile RetryPredicate<T> retryOn;
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxAttempts
+   *        total executions per element including the first, at least 1.
+   * @param initialDelayMillis
+   *        delay before the first retry.
+   * @param multiplier
+   *        growth of the delay per attempt, at least 1.
+   * @param maxDelayMillis
+   *        the longest delay before jitter.
+   */
+  public RetryPolicy(int maxAttempts, long initialDelayMillis,
+      double multiplier, long maxDelayMillis) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("maxAttempts must be at least 1: "
+          + maxAttempts);
+    }
+    if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+      throw new IllegalArgumentException("invalid delays: "
+          + initialDelayMillis + ", " + maxDelayMillis);
+    }
+    if (multiplier < 1) {
+      throw new IllegalArgumentException("multiplier must be at least 1: "
+          + multiplier);
+    }
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMillis = initialDelayMillis;
+    this.multiplier = multiplier;
+    this.maxDelayMillis = maxDelayMillis;
+  }
+
+  /**
+   * sets the jitter. Each delay is moved by a random amount of up to this
+   * fraction of itself, in either direction.
+   *
+   * @param fraction
+   *        between 0 and 1.
+   */
+  public void setJitter(double fraction) {
+    if (fraction < 0 || fraction > 1) {
+      throw new IllegalArgumentException("jitter out of range: " + fraction);
+    }
+    this.jitter = fraction;
+  }
+
+  /**
+   * sets the predicate selecting retryable failures.
+   *
+   * @param predicate
+   *        the predicate, or null to retry every failure.
+   */
+  public void setRetryOn(RetryPredicate<T> predicate) {
+    this.retryOn = predicate;
+  }
+
+  /**
+   * the total number of executions allowed per element.
+   *
+   * @return the attempt limit.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * retry predicate.
+   *
+   * @param obj
+   *        the failed element.
+   * @param cause
+   *        the failure.
+   * @param attempts
+   *        executions so far, including the one that failed.
+   * @return true if the element should be executed again.
+   */
+  public boolean shouldRetry(T obj, Exception cause, int attempts) {
+    if (attempts >= maxAttempts) {
+      return false;
+    }
+    RetryPredicate<T> p = retryOn;
+    return p == null || p.shouldRetry(obj, cause);
+  }
+
+  /**
+   * the delay before the next execution.
+   *
+   * @param attempts
+   *        executions so far, at least 1.
+   * @return milliseconds.
+   */
+  public long getDelay(int attempts) {
+    double delay = initialDelayMillis
+        * Math.pow(multiplier, Math.max(0, attempts - 1));
+    delay = Math.min(delay, maxDelayMillis);
+    double j = jitter;
+    if (j > 0) {
+      double r = ThreadLocalRandom.current().nextDouble();
+      delay += delay * j * (2 * r - 1);
+    }
+    return Math.max(0, Math.round(delay));
+  }
+}
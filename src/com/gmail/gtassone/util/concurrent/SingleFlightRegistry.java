@@ -0,0 +1,235 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent requests for the same key onto one in-flight
+ * {@link AsynchronousFuture}. The first request for a key creates the future
+ * through the {@link FutureFactory} and runs it; requests arriving while it
+ * is outstanding share its outcome instead of initiating their own call.
+ * Once the future completes the key is free again, or, with a cache TTL set,
+ * successful results are served from memory for that long.
+ * <p>
+ * Each caller receives its own view of the shared future: cancelling a view
+ * detaches that caller only, and never cancels the call the others wait on.
+ * Failures are shared by the callers in flight but are not cached.
+ *
+ * @param <K>
+ *        the request key type; must implement equals and hashCode.
+ * @param <T>
+ *        the result type.
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class SingleFlightRegistry<K, T> {
+
+  /**
+   * Creates the future performing the call for a key.
+   *
+   * @param <K>
+   *        the request key type.
+   * @param <T>
+   *        the result type.
+   */
+  public interface FutureFactory<K, T> {
+
+    /**
+     * creates, but does not run, the future for a key.
+     *
+     * @param key
+     *        the request key.
+     * @return a new AsynchronousFuture.
+     */
+    AsynchronousFuture<T> create(K key);
+  }
+
+  private final FutureFactory<K, T> factory;
+
+  private final ConcurrentMap<K, AsynchronousFuture<T>> inFlight =
+      new ConcurrentHashMap<K, AsynchronousFuture<T>>();
+
+  private final ConcurrentMap<K, CachedResult<T>> cache =
+      new ConcurrentHashMap<K, CachedResult<T>>();
+
+  private volatile long cacheTtlNanos;
+
+  private final AtomicLong calls = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  /**
+   * Creates a registry without result caching.
+   *
+   * @param factory
+   *        creates the future for a key.
+   */
+  public SingleFlightRegistry(FutureFactory<K, T> factory) {
+    if (factory == null) {
+      throw new NullPointerException("factory");
+    }
+    this.factory = factory;
+  }
+
+  /**
+   * sets how long successful results are served from memory. Results cached
+   * before the change keep their original expiry.
+   *
+   * @param ttl
+   *        time to live, 0 to disable caching.
+   * @param unit
+   *        the unit of ttl.
+   */
+  public void setCacheTtl(long ttl, TimeUnit unit) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("ttl must not be negative: " + ttl);
+    }
+    this.cacheTtlNanos = unit.toNanos(ttl);
+  }
+
+  /**
+   * requests the result for a key: from the cache, from the call already in
+   * flight for the key, or from a new call.
+   *
+   * @param key
+   *        the request key.
+   * @return this caller's view of the result.
+   */
+  public ListenableFuture<T> get(final K key) {
+    if (key == null) {
+      throw new NullPointerException("key");
+    }
+    CachedResult<T> cached = cache.get(key);
+    if (cached != null) {
+      if (System.nanoTime() - cached.expiry < 0) {
+        cacheHits.incrementAndGet();
+        return CompletionFuture.completed(cached.value);
+      }
+      cache.remove(key, cached);
+    }
+
+    AsynchronousFuture<T> future = inFlight.get(key);
+    if (future == null) {
+      final AsynchronousFuture<T> created = factory.create(key);
+      future = inFlight.putIfAbsent(key, created);
+      if (future == null) {
+        calls.incrementAndGet();
+        created.addListener(new CompletionListener<T>() {
+
+          @Override
+          public void onSuccess(T value) {
+            long ttl = cacheTtlNanos;
+            if (ttl > 0) {
+              cache(key, value, ttl);
+            }
+            inFlight.remove(key, created);
+          }
+
+          @Override
+          public void onFailure(Throwable cause) {
+            inFlight.remove(key, created);
+          }
+
+          @Override
+          public void onCancel() {
+            inFlight.remove(key, created);
+          }
+        });
+        created.run();
+        future = created;
+      } else {
+        coalesced.incrementAndGet();
+      }
+    } else {
+      coalesced.incrementAndGet();
+    }
+
+    CompletionFuture<T> view = new CompletionFuture<T>();
+    future.addListener(CompletionFuture.forwardTo(view));
+    return view;
+  }
+
+  private void cache(final K key, T value, long ttl) {
+    final CachedResult<T> entry = new CachedResult<T>(value, System.nanoTime()
+        + ttl);
+    cache.put(key, entry);
+    TimeoutWheel.getShared().schedule(new Runnable() {
+      @Override
+      public void run() {
+        cache.remove(key, entry);
+      }
+    }, ttl, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * drops the cached result for a key. A call in flight is not affected.
+   *
+   * @param key
+   *        the request key.
+   */
+  public void invalidate(K key) {
+    cache.remove(key);
+  }
+
+  /**
+   * drops all cached results.
+   */
+  public void clearCache() {
+    cache.clear();
+  }
+
+  /**
+   * the number of keys with a call in flight.
+   *
+   * @return the count.
+   */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  /**
+   * the number of calls initiated.
+   *
+   * @return the count.
+   */
+  public long getCallCount() {
+    return calls.get();
+  }
+
+  /**
+   * the number of requests which joined a call already in flight.
+   *
+   * @return the count.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * the number of requests served from the cache.
+   *
+   * @return the count.
+   */
+  public long getCacheHitCount() {
+    return cacheHits.get();
+  }
+
+  /**
+   * A cached value with its expiry, in System.nanoTime terms.
+   */
+  private static final class CachedResult<T> {
+
+    private final T value;
+
+    private final long expiry;
+
+    CachedResult(T value, long expiry) {
+      this.value = value;
+      this.expiry = expiry;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread provisioning strategies for {@link MonitorDispatchThread} workers and
+ * for the executors handed to a
+ * {@link com.gmail.gtassone.util.chain.ChainManager}. Virtual threads are
+ * used when the runtime provides them (Java 21 and later); they are looked up
+ * reflectively, so this class also loads on older runtimes, where
+ * {@link #preferVirtual(String)} falls back to platform threads.
+ * <p>
+ * Virtual threads suit actions which spend their time blocked on I/O: tens of
+ * thousands of monitored sequences can then run at once without a native
+ * thread each. Actions which hold a monitor while blocking pin their carrier
+ * thread and gain nothing.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public final class ThreadFactories {
+
+  private ThreadFactories() {
+  }
+
+  private static class VirtualSupport {
+    private static final Method OF_VIRTUAL = lookupOfVirtual();
+
+    private static final Method IS_VIRTUAL = lookup("isVirtual");
+  }
+
+  /**
+   * virtual thread predicate.
+   *
+   * @return true if the runtime can create virtual threads.
+   */
+  public static boolean isVirtualThreadSupported() {
+    return VirtualSupport.OF_VIRTUAL != null;
+  }
+
+  /**
+   * virtual thread predicate.
+   *
+   * @param t
+   *        the thread.
+   * @return true if the thread is a virtual thread.
+   */
+  public static boolean isVirtual(Thread t) {
+    Method isVirtual = VirtualSupport.IS_VIRTUAL;
+    if (isVirtual == null) {
+      return false;
+    }
+    try {
+      return ((Boolean) isVirtual.invoke(t)).booleanValue();
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Tells whether a factory creates virtual threads, by creating one thread
+   * from it which is never started.
+   *
+   * @param factory
+   *        the factory.
+   * @return true if the factory creates virtual threads.
+   */
+  public static boolean createsVirtual(ThreadFactory factory) {
+    if (!isVirtualThreadSupported()) {
+      return false;
+    }
+    Thread probe = factory.newThread(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    return probe != null && isVirtual(probe);
+  }
+
+  /**
+   * A factory creating virtual threads named prefix0, prefix1, and so on.
+   *
+   * @param prefix
+   *        the thread name prefix.
+   * @return the factory.
+   * @throws UnsupportedOperationException
+   *         if the runtime has no virtual threads.
+   */
+  public static ThreadFactory virtual(String prefix) {
+    Method ofVirtual = VirtualSupport.OF_VIRTUAL;
+    if (ofVirtual == null) {
+      throw new UnsupportedOperationException(
+          "virtual threads are not supported by this runtime");
+    }
+    try {
+      Object builder = ofVirtual.invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      builder = builderType.getMethod("name", String.class, long.class)
+          .invoke(builder, prefix, 0L);
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (InvocationTargetException e) {
+      throw new UnsupportedOperationException(
+          "virtual threads are not available", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException(
+          "virtual threads are not available", e);
+    }
+  }
+
+  /**
+   * A factory creating platform threads named prefix0, prefix1, and so on,
+   * at normal priority.
+   *
+   * @param prefix
+   *        the thread name prefix.
+   * @param daemon
+   *        whether the threads are daemon threads.
+   * @return the factory.
+   */
+  public static ThreadFactory platform(final String prefix,
+      final boolean daemon) {
+    return new ThreadFactory() {
+
+      private final AtomicInteger number = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + number.getAndIncrement());
+        t.setDaemon(daemon);
+        t.setPriority(Thread.NORM_PRIORITY);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * A factory creating virtual threads when the runtime supports them, and
+   * non-daemon platform threads otherwise.
+   *
+   * @param prefix
+   *        the thread name prefix.
+   * @return the factory.
+   */
+  public static ThreadFactory preferVirtual(String prefix) {
+    if (isVirtualThreadSupported()) {
+      try {
+        return virtual(prefix);
+      } catch (UnsupportedOperationException e) {
+        // the API exists but is disabled, as with a preview feature.
+      }
+    }
+    return platform(prefix, false);
+  }
+
+  /**
+   * An Executor starting a new thread from the given factory for every
+   * task. With virtual threads this is the recommended executor; with
+   * platform threads prefer a pool.
+   *
+   * @param factory
+   *        creates the threads.
+   * @return the executor.
+   */
+  public static Executor threadPerTask(final ThreadFactory factory) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        factory.newThread(task).start();
+      }
+    };
+  }
+
+  private static Method lookupOfVirtual() {
+    return lookup("ofVirtual");
+  }
+
+  private static Method lookup(String name) {
+    try {
+      return Thread.class.getMethod(name);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
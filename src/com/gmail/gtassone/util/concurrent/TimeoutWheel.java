@@ -0,0 +1,368 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel for large numbers of short-lived deadlines. A single
+ * timer thread advances the wheel one tick at a time and expires the
+ * deadlines in the current bucket, so registering and cancelling a deadline
+ * costs O(1) and any number of outstanding deadlines costs one thread.
+ * Deadlines fire with tick granularity, never early.
+ * <p>
+ * Expiration tasks run on the timer thread and should be brief; hand longer
+ * work off to an Executor. A task which throws is reported to the timer
+ * thread's UncaughtExceptionHandler, which a ThreadFactory given to the
+ * constructor may set, and the timer carries on. A process-wide instance is
+ * available from {@link #getShared()}.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class TimeoutWheel {
+
+  /**
+   * The default tick duration, in milliseconds.
+   */
+  public static final long DEFAULT_TICK_MILLIS = 10;
+
+  /**
+   * The default number of buckets in the wheel.
+   */
+  public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+  /**
+   * Handle for a registered deadline.
+   *
+   * @author GTassone
+   */
+  public interface Timeout {
+
+    /**
+     * cancels the deadline. Has no effect if the deadline already expired.
+     *
+     * @return true if this call cancelled the deadline.
+     */
+    boolean cancel();
+
+    /**
+     * expired predicate.
+     *
+     * @return true if the expiration task has been run.
+     */
+    boolean isExpired();
+
+    /**
+     * cancelled predicate.
+     *
+     * @return true if the deadline was cancelled.
+     */
+    boolean isCancelled();
+  }
+
+  private static class SharedHolder {
+    private static final TimeoutWheel SHARED = new TimeoutWheel();
+  }
+
+  /**
+   * The process-wide wheel, created on first use with default settings.
+   *
+   * @return the shared wheel.
+   */
+  public static TimeoutWheel getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  private static final int ST_INIT = 0;
+
+  private static final int ST_CANCELLED = 1;
+
+  private static final int ST_EXPIRED = 2;
+
+  private static final AtomicInteger WHEEL_NUMBER = new AtomicInteger(1);
+
+  private final long tickNanos;
+
+  private final Bucket[] wheel;
+
+  private final int mask;
+
+  private final Queue<Entry> registrations = new ConcurrentLinkedQueue<Entry>();
+
+  private final ThreadFactory threadFactory;
+
+  private final Object startLock = new Object();
+
+  private volatile Thread worker;
+
+  private volatile boolean stopped;
+
+  private volatile long startTime;
+
+  /**
+   * Creates a wheel with the default tick and size.
+   */
+  public TimeoutWheel() {
+    this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+  }
+
+  /**
+   * Creates a wheel whose timer thread is a daemon thread.
+   *
+   * @param tickDuration
+   *        the resolution of the wheel.
+   * @param unit
+   *        the unit of tickDuration.
+   * @param ticksPerWheel
+   *        the number of buckets; rounded up to a power of two.
+   */
+  public TimeoutWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    this(tickDuration, unit, ticksPerWheel, null);
+  }
+
+  /**
+   * Creates a wheel.
+   *
+   * @param tickDuration
+   *        the resolution of the wheel.
+   * @param unit
+   *        the unit of tickDuration.
+   * @param ticksPerWheel
+   *        the number of buckets; rounded up to a power of two.
+   * @param factory
+   *        creates the timer thread; null for a daemon thread.
+   */
+  public TimeoutWheel(long tickDuration, TimeUnit unit, int ticksPerWheel,
+      ThreadFactory factory) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("tickDuration must be positive: "
+          + tickDuration);
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+      throw new IllegalArgumentException("ticksPerWheel out of range: "
+          + ticksPerWheel);
+    }
+    int size = 1;
+    while (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.threadFactory = factory;
+  }
+
+  /**
+   * Registers a deadline.
+   *
+   * @param task
+   *        run on the timer thread when the deadline expires.
+   * @param delay
+   *        time until the deadline.
+   * @param unit
+   *        the unit of delay.
+   * @return a handle which can cancel the deadline.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) {
+      throw new NullPointerException("task");
+    }
+    if (stopped) {
+      throw new IllegalStateException("TimeoutWheel has been stopped");
+    }
+    ensureStarted();
+    long deadline = System.nanoTime() - startTime
+        + Math.max(0, unit.toNanos(delay));
+    Entry e = new Entry(task, deadline);
+    registrations.add(e);
+    return e;
+  }
+
+  /**
+   * Stops the timer thread. Outstanding deadlines never fire.
+   */
+  public void stop() {
+    stopped = true;
+    Thread t = worker;
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  private void ensureStarted() {
+    if (worker != null) {
+      return;
+    }
+    synchronized (startLock) {
+      if (worker == null) {
+        startTime = System.nanoTime();
+        Runnable loop = new Runnable() {
+          public void run() {
+            runWheel();
+          }
+        };
+        Thread t;
+        if (threadFactory != null) {
+          t = threadFactory.newThread(loop);
+        } else {
+          t = new Thread(loop, "TimeoutWheel-"
+              + WHEEL_NUMBER.getAndIncrement());
+          t.setDaemon(true);
+        }
+        t.start();
+        worker = t;
+      }
+    }
+  }
+
+  private void runWheel() {
+    long tick = 0;
+    while (!stopped) {
+      long deadline = tickNanos * (tick + 1);
+      long sleep = deadline - (System.nanoTime() - startTime);
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          if (stopped) {
+            return;
+          }
+          continue;
+        }
+      }
+      transferRegistrations(tick);
+      wheel[(int) (tick & mask)].expire();
+      tick++;
+    }
+  }
+
+  /**
+   * moves newly registered deadlines into their buckets. Deadlines that are
+   * already due land in the current bucket.
+   */
+  private void transferRegistrations(long currentTick) {
+    // bound the work per tick so a registration storm can't starve expiry.
+    for (int i = 0; i < 100000; i++) {
+      Entry e = registrations.poll();
+      if (e == null) {
+        return;
+      }
+      if (e.state.get() == ST_CANCELLED) {
+        continue;
+      }
+      long calculated = e.deadline / tickNanos;
+      long ticks = Math.max(calculated, currentTick);
+      e.remainingRounds = (calculated - currentTick) / wheel.length;
+      wheel[(int) (ticks & mask)].add(e);
+    }
+  }
+
+  /**
+   * A doubly-linked list of entries, touched only by the timer thread.
+   */
+  private static final class Bucket {
+
+    private Entry head;
+
+    private Entry tail;
+
+    void add(Entry e) {
+      if (head == null) {
+        head = e;
+        tail = e;
+      } else {
+        tail.next = e;
+        e.prev = tail;
+        tail = e;
+      }
+    }
+
+    void expire() {
+      Entry e = head;
+      while (e != null) {
+        Entry next = e.next;
+        if (e.state.get() == ST_CANCELLED) {
+          remove(e);
+        } else if (e.remainingRounds <= 0) {
+          remove(e);
+          e.expire();
+        } else {
+          e.remainingRounds--;
+        }
+        e = next;
+      }
+    }
+
+    private void remove(Entry e) {
+      if (e.prev != null) {
+        e.prev.next = e.next;
+      }
+      if (e.next != null) {
+        e.next.prev = e.prev;
+      }
+      if (e == head) {
+        head = e.next;
+      }
+      if (e == tail) {
+        tail = e.prev;
+      }
+      e.prev = null;
+      e.next = null;
+    }
+  }
+
+  /**
+   * A registered deadline.
+   */
+  private static final class Entry implements Timeout {
+
+    private final Runnable task;
+
+    private final long deadline;
+
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+    private long remainingRounds;
+
+    private Entry prev;
+
+    private Entry next;
+
+    Entry(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    public boolean cancel() {
+      // the timer thread unlinks cancelled entries when it reaches them.
+      return state.compareAndSet(ST_INIT, ST_CANCELLED);
+    }
+
+    public boolean isExpired() {
+      return state.get() == ST_EXPIRED;
+    }
+
+    public boolean isCancelled() {
+      return state.get() == ST_CANCELLED;
+    }
+
+    void expire() {
+      if (!state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+        return;
+      }
+      try {
+        task.run();
+      } catch (Throwable t) {
+        // a failing task must not kill the timer thread.
+        Thread timer = Thread.currentThread();
+        timer.getUncaughtExceptionHandler().uncaughtException(timer, t);
+      }
+    }
+  }
+}
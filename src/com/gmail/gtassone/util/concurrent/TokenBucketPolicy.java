@@ -0,0 +1,69 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limit for call initiation. Tokens accumulate at a fixed rate up to the
+ * burst size, and each admitted call takes one; the bucket starts full.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class TokenBucketPolicy implements AdmissionPolicy {
+
+  private final double tokensPerNano;
+
+  private final double burst;
+
+  private double tokens;
+
+  private long lastRefill = System.nanoTime();
+
+  /**
+   * Creates a rate limit.
+   *
+   * @param permitsPerSecond
+   *        the sustained rate of initiations.
+   * @param burst
+   *        the most initiations allowed at once after an idle period, at
+   *        least 1.
+   */
+  public TokenBucketPolicy(double permitsPerSecond, int burst) {
+    if (!(permitsPerSecond > 0)) {
+      throw new IllegalArgumentException("rate must be positive: "
+          + permitsPerSecond);
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst must be at least 1: " + burst);
+    }
+    this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.tokens = burst;
+  }
+
+  @Override
+  public synchronized long tryAcquire() {
+    refill();
+    if (tokens >= 1) {
+      tokens -= 1;
+      return 0;
+    }
+    return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+  }
+
+  @Override
+  public void release() {
+    // tokens are spent on initiation.
+  }
+
+  @Override
+  public synchronized void revoke() {
+    tokens = Math.min(burst, tokens + 1);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+  }
+}
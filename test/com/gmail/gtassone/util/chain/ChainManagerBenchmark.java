@@ -0,0 +1,88 @@
+package com.gmail.gtassone.util.chain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the sustained message throughput of {@link ChainManager} with a
+ * ChainThread per message and with pooled workers. Each message passes
+ * through four trivial handlers returning PASS and a fifth returning HANDLED.
+ * Not a unit test; run its main method.
+ * <p>
+ * Arguments: the number of messages (100000 by default), of pooled workers
+ * (4 by default) and of rounds per engine (3 by default).
+ *
+ * @author <a href=mailto:gtassone@gmail.com>gtassone</a>
+ * @version $Revision$
+ */
+public class ChainManagerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+    for (int poolSize : new int[] { 0, workers }) {
+      String engine = poolSize == 0 ? "thread per message" : poolSize
+          + " workers";
+      for (int round = 0; round < rounds; round++) {
+        long nanos = run(messages, poolSize);
+        System.out.println(engine + " round " + round + ": " + messages
+            * 1000L / Math.max(1, nanos / 1000000) + " msgs/s");
+      }
+    }
+    System.exit(0);
+  }
+
+  private static long run(int messages, final int poolSize)
+      throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(messages);
+    List<ChainHandler<Message>> handlers = new ArrayList<ChainHandler<Message>>();
+    for (int i = 0; i < 4; i++) {
+      handlers.add(new ChainHandler.Adapter<Message>() {
+        @Override
+        public ChainHandlerResult execute(Message message) {
+          return ChainHandlerResult.PASS;
+        }
+      });
+    }
+    handlers.add(new ChainHandler.Adapter<Message>() {
+      @Override
+      public ChainHandlerResult execute(Message message) {
+        done.countDown();
+        return ChainHandlerResult.HANDLED;
+      }
+    });
+
+    ChainManager<Message, ChainController<Message>> manager = new ChainManager<Message, ChainController<Message>>(
+        handlers) {
+      @Override
+      public int getHandlerTimeout() {
+        return 5000;
+      }
+
+      @Override
+      protected int getWorkerPoolSize() {
+        return poolSize;
+      }
+    };
+
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      manager.handleChainMessage(new Message());
+    }
+    done.await();
+    long nanos = System.nanoTime() - start;
+    manager.shutdown();
+    return nanos;
+  }
+
+  /**
+   * An empty message.
+   */
+  private static class Message implements ChainMessage {
+
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -0,0 +1,155 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Test;
+
+import com.gmail.gtassone.util.concurrent.BatchMonitorDispatchThread.BatchOutcome;
+import com.gmail.gtassone.util.concurrent.BatchMonitorDispatchThread.ElementStatus;
+
+/**
+ * Batches of {@link BatchMonitorDispatchThread} and their per-element results.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class BatchMonitorDispatchThreadTest {
+
+  @Test
+  public void returnMarksThePendingElementsSucceeded() {
+    BatchOutcome<String> outcome = new BatchOutcome<String>(Arrays.asList(
+        "a", "b", "c"));
+    Exception cause = new Exception();
+    outcome.failed(1, cause);
+    outcome.finish(null);
+
+    assertEquals(ElementStatus.SUCCEEDED, outcome.getStatus(0));
+    assertEquals(ElementStatus.FAILED, outcome.getStatus(1));
+    assertSame(cause, outcome.getFailure(1));
+    assertEquals(Arrays.asList("a", "c"),
+        outcome.getElements(ElementStatus.SUCCEEDED));
+  }
+
+  @Test
+  public void throwMarksThePendingElementsFailed() {
+    BatchOutcome<String> outcome = new BatchOutcome<String>(Arrays.asList(
+        "a", "b"));
+    Exception cause = new Exception();
+    outcome.succeeded(0);
+    outcome.finish(cause);
+
+    assertEquals(ElementStatus.SUCCEEDED, outcome.getStatus(0));
+    assertNull(outcome.getFailure(0));
+    assertEquals(ElementStatus.FAILED, outcome.getStatus(1));
+    assertSame(cause, outcome.getFailure(1));
+  }
+
+  @Test
+  public void resultsAfterTheTimeoutAreIgnored() {
+    BatchOutcome<String> outcome = new BatchOutcome<String>(Arrays.asList(
+        "a", "b"));
+    outcome.succeeded(0);
+    assertTrue(outcome.timeOut());
+    outcome.succeeded(1);
+    outcome.finish(null);
+
+    assertTrue(outcome.isTimedOut());
+    assertEquals(ElementStatus.SUCCEEDED, outcome.getStatus(0));
+    assertEquals(ElementStatus.TIMED_OUT, outcome.getStatus(1));
+  }
+
+  @Test
+  public void timeoutAfterTheReturnMarksNothing() {
+    BatchOutcome<String> outcome = new BatchOutcome<String>(Arrays.asList(
+        "a", "b"));
+    outcome.finish(null);
+
+    assertFalse(outcome.timeOut());
+    assertFalse(outcome.isTimedOut());
+    assertEquals(ElementStatus.SUCCEEDED, outcome.getStatus(1));
+  }
+
+  @Test
+  public void batchesAreCutToSizeAndReported() throws Exception {
+    List<Integer> source = new ArrayList<Integer>();
+    for (int i = 0; i < 7; i++) {
+      source.add(i);
+    }
+    final List<BatchOutcome<Integer>> completed = Collections
+        .synchronizedList(new ArrayList<BatchOutcome<Integer>>());
+    BatchMonitorDispatchThread<Integer> m = new BatchMonitorDispatchThread<Integer>(
+        source,
+        new BatchMonitorDispatchThread.BatchMonitoredAction<Integer>() {
+          @Override
+          public void execute(List<Integer> batch, BatchOutcome<Integer> outcome) {
+            // the middle element of every full batch fails.
+            if (batch.size() == 3) {
+              outcome.failed(1, null);
+            }
+          }
+        }) {
+      @Override
+      public void handleBatchCompleted(BatchOutcome<Integer> outcome) {
+        completed.add(outcome);
+      }
+    };
+    m.setBatchSize(3);
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+    assertFalse(m.isAlive());
+
+    assertEquals(3, completed.size());
+    assertEquals(Arrays.asList(0, 1, 2), completed.get(0).getBatch());
+    assertEquals(Arrays.asList(6), completed.get(2).getBatch());
+    assertEquals(Arrays.asList(4),
+        completed.get(1).getElements(ElementStatus.FAILED));
+    assertEquals(Arrays.asList(6),
+        completed.get(2).getElements(ElementStatus.SUCCEEDED));
+  }
+
+  @Test
+  public void feedBatchClosesWhenTheLingerExpires() throws Exception {
+    BlockingQueue<Integer> feed = new LinkedBlockingQueue<Integer>();
+    final List<List<Integer>> batches = Collections
+        .synchronizedList(new ArrayList<List<Integer>>());
+    BatchMonitorDispatchThread<Integer> m = new BatchMonitorDispatchThread<Integer>(
+        feed, new BatchMonitorDispatchThread.BatchMonitoredAction<Integer>() {
+          @Override
+          public void execute(List<Integer> batch, BatchOutcome<Integer> outcome) {
+            batches.add(new ArrayList<Integer>(batch));
+          }
+        });
+    m.setBatchSize(100);
+    m.setMaxLinger(30);
+    m.shouldJoinDispatch(true);
+    m.start();
+
+    feed.put(0);
+    feed.put(1);
+    long end = System.currentTimeMillis() + 5000;
+    while (batches.isEmpty() && System.currentTimeMillis() < end) {
+      Thread.sleep(5);
+    }
+    // the batch closed on the linger, well before the input ended.
+    assertEquals(1, batches.size());
+    assertEquals(Arrays.asList(0, 1), batches.get(0));
+
+    feed.put(2);
+    m.endOfInput();
+    m.join(10000);
+    assertFalse(m.isAlive());
+    assertEquals(Arrays.asList(2), batches.get(1));
+  }
+}
@@ -0,0 +1,56 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the per-element handoff overhead of {@link MonitorDispatchThread}
+ * with a no-op action, for each {@link MonitorDispatchThread.HandoffMode}.
+ * Not a unit test; run its main method.
+ * <p>
+ * Arguments: the number of elements (200000 by default) and of rounds per
+ * mode (6 by default). The first rounds warm up the JIT.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class HandoffBenchmark {
+
+  private static volatile long sink;
+
+  public static void main(String[] args) throws Exception {
+    int elements = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+    List<Integer> source = new ArrayList<Integer>(elements);
+    for (int i = 0; i < elements; i++) {
+      source.add(i);
+    }
+
+    for (MonitorDispatchThread.HandoffMode mode : MonitorDispatchThread.HandoffMode
+        .values()) {
+      for (int round = 0; round < rounds; round++) {
+        long nanos = run(source, mode);
+        System.out.println(mode + " round " + round + ": " + nanos
+            / elements + " ns/element");
+      }
+    }
+  }
+
+  private static long run(List<Integer> source,
+      MonitorDispatchThread.HandoffMode mode) throws InterruptedException {
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        source, new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) {
+            sink += i;
+          }
+        });
+    m.setHandoffMode(mode);
+    m.shouldJoinDispatch(true);
+    long start = System.nanoTime();
+    m.start();
+    m.join();
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,133 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checkpointing {@link MonitorDispatchThread} runs to a
+ * {@link FileCheckpointStore} and resuming them.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadCheckpointTest {
+
+  @Test
+  public void resumeByPositionSkipsCompletedElements() throws Exception {
+    File file = tempFile();
+    assertEquals(range(0, 5), run(file, false, false, 4));
+    assertEquals(range(5, 10), run(file, true, false, -1));
+    assertEquals(new ArrayList<Integer>(), run(file, true, false, -1));
+  }
+
+  @Test
+  public void resumeByKeySkipsCompletedElements() throws Exception {
+    File file = tempFile();
+    assertEquals(range(0, 5), run(file, false, true, 4));
+    assertEquals(range(5, 10), run(file, true, true, -1));
+  }
+
+  @Test
+  public void freshStoreStartsOver() throws Exception {
+    File file = tempFile();
+    assertEquals(range(0, 5), run(file, false, false, 4));
+    assertEquals(range(0, 10), run(file, false, false, -1));
+  }
+
+  @Test
+  public void failedElementIsExecutedAgainOnResume() throws Exception {
+    File file = tempFile();
+    final List<Integer> order = new ArrayList<Integer>();
+    FileCheckpointStore store = new FileCheckpointStore(file, false);
+    try {
+      MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+          range(0, 10), new MonitorDispatchThread.MonitoredAction<Integer>() {
+            @Override
+            public void execute(Integer i) {
+              order.add(i);
+              if (i == 3) {
+                throw new IllegalStateException();
+              }
+            }
+          });
+      m.setCheckpointStore(store);
+      join(m);
+    } finally {
+      store.close();
+    }
+    assertEquals(range(0, 10), order);
+    assertEquals(range(3, 4), run(file, true, false, -1));
+  }
+
+  private static File tempFile() throws Exception {
+    File file = File.createTempFile("checkpoint", ".log");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (int i = from; i < to; i++) {
+      list.add(i);
+    }
+    return list;
+  }
+
+  /**
+   * Runs over 0..9 and returns the elements executed.
+   *
+   * @param stopAt
+   *        the element after which the run terminates, or -1.
+   */
+  private static List<Integer> run(File file, boolean resume, boolean byKey,
+      final int stopAt) throws Exception {
+    final List<Integer> order = new ArrayList<Integer>();
+    final Holder holder = new Holder();
+    FileCheckpointStore store = new FileCheckpointStore(file, resume);
+    try {
+      holder.thread = new MonitorDispatchThread.Adapter<Integer>(range(0, 10),
+          new MonitorDispatchThread.MonitoredAction<Integer>() {
+            @Override
+            public void execute(Integer i) {
+              order.add(i);
+              if (i == stopAt) {
+                holder.thread.terminateAfterThisTask();
+              }
+            }
+          });
+      holder.thread.setCheckpointStore(store);
+      if (byKey) {
+        holder.thread
+            .setCheckpointKeyExtractor(new MonitorDispatchThread.KeyExtractor<Integer>() {
+              @Override
+              public Object getKey(Integer obj) {
+                return "element-" + obj;
+              }
+            });
+      }
+      join(holder.thread);
+    } finally {
+      store.close();
+    }
+    return order;
+  }
+
+  private static void join(MonitorDispatchThread<Integer> m)
+      throws InterruptedException {
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+    assertFalse(m.isAlive());
+  }
+
+  private static class Holder {
+
+    private volatile MonitorDispatchThread<Integer> thread;
+  }
+}
@@ -0,0 +1,174 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Live feeds of {@link MonitorDispatchThread}: a bounded queue fed through
+ * submit, and an Iterator whose hasNext() blocks.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadFeedTest {
+
+  @Test
+  public void endOfInputDrainsTheFeed() throws Exception {
+    final List<Integer> order = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        4, new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) {
+            order.add(i);
+          }
+        });
+    m.shouldJoinDispatch(true);
+    m.start();
+    for (int i = 0; i < 100; i++) {
+      m.submit(i);
+    }
+    m.endOfInput();
+    m.join(10000);
+
+    assertFalse(m.isAlive());
+    assertEquals(100, order.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void boundedFeedRefusesBeyondCapacity() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch running = new CountDownLatch(1);
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        2, new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) throws Exception {
+            running.countDown();
+            release.await();
+          }
+        });
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.submit(0);
+    assertTrue(running.await(5, TimeUnit.SECONDS));
+    assertTrue(m.offer(1, 0, TimeUnit.MILLISECONDS));
+    assertTrue(m.offer(2, 0, TimeUnit.MILLISECONDS));
+    assertFalse(m.offer(3, 20, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+    m.endOfInput();
+    m.join(10000);
+    assertFalse(m.isAlive());
+  }
+
+  @Test
+  public void terminateLeavesTheRestToDrainRemaining() throws Exception {
+    final Holder holder = new Holder();
+    final AtomicInteger executed = new AtomicInteger();
+    holder.thread = new MonitorDispatchThread.Adapter<Integer>(100,
+        new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) {
+            executed.incrementAndGet();
+            if (i == 9) {
+              holder.thread.terminateAfterThisTask();
+            }
+          }
+        });
+    MonitorDispatchThread<Integer> m = holder.thread;
+    for (int i = 0; i < 50; i++) {
+      m.submit(i);
+    }
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+    assertFalse(m.isAlive());
+
+    List<Integer> rest = new ArrayList<Integer>();
+    int drained = m.drainRemaining(rest);
+    assertEquals(10, executed.get());
+    assertEquals(40, drained);
+    assertEquals(10, rest.get(0).intValue());
+  }
+
+  @Test
+  public void blockingIteratorIsConsumedAsElementsArrive() throws Exception {
+    final Trickle source = new Trickle(5);
+    final List<Integer> order = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        source, new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) {
+            order.add(i);
+          }
+        });
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+
+    assertFalse(m.isAlive());
+    assertEquals(5, order.size());
+    assertEquals(4, order.get(4).intValue());
+  }
+
+  private static class Holder {
+
+    private volatile MonitorDispatchThread<Integer> thread;
+  }
+
+  /**
+   * Yields n elements, each after a short wait in hasNext().
+   */
+  private static class Trickle implements Iterator<Integer> {
+
+    private final int n;
+
+    private int next;
+
+    Trickle(int n) {
+      this.n = n;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next >= n) {
+        return false;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }
+
+    @Override
+    public Integer next() {
+      if (next >= n) {
+        throw new NoSuchElementException();
+      }
+      return next++;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * The PARKING handoff must behave like the MONITOR one.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadHandoffTest {
+
+  @Test
+  public void everyElementRunsOnceInOrder() throws Exception {
+    for (MonitorDispatchThread.HandoffMode mode : MonitorDispatchThread.HandoffMode
+        .values()) {
+      final List<Integer> order = new ArrayList<Integer>();
+      Hooks m = new Hooks(range(5000),
+          new MonitorDispatchThread.MonitoredAction<Integer>() {
+            @Override
+            public void execute(Integer i) {
+              order.add(i);
+            }
+          });
+      run(m, mode);
+
+      assertEquals(mode.toString(), range(5000), order);
+      assertEquals(mode.toString(), 5000, m.started.get());
+      assertEquals(mode.toString(), 5000, m.completed.get());
+      assertEquals(mode.toString(), 0, m.timedOut.get());
+    }
+  }
+
+  @Test
+  public void timeoutIsReportedOnceAndTheRunGoesOn() throws Exception {
+    for (MonitorDispatchThread.HandoffMode mode : MonitorDispatchThread.HandoffMode
+        .values()) {
+      final List<Integer> order = Collections
+          .synchronizedList(new ArrayList<Integer>());
+      Hooks m = new Hooks(range(3),
+          new MonitorDispatchThread.MonitoredAction<Integer>() {
+            @Override
+            public void execute(Integer i) throws Exception {
+              if (i == 1) {
+                Thread.sleep(200);
+              }
+              order.add(i);
+            }
+          });
+      m.setTimeout(30);
+      run(m, mode);
+
+      assertEquals(mode.toString(), 1, m.timedOut.get());
+      assertEquals(mode.toString(), 3, order.size());
+      assertEquals(mode.toString(), 2, order.get(2).intValue());
+    }
+  }
+
+  @Test
+  public void terminateStopsAfterTheCurrentElement() throws Exception {
+    for (MonitorDispatchThread.HandoffMode mode : MonitorDispatchThread.HandoffMode
+        .values()) {
+      final List<Integer> order = new ArrayList<Integer>();
+      final Hooks[] ref = new Hooks[1];
+      ref[0] = new Hooks(range(100),
+          new MonitorDispatchThread.MonitoredAction<Integer>() {
+            @Override
+            public void execute(Integer i) {
+              order.add(i);
+              if (i == 5) {
+                ref[0].terminateAfterThisTask();
+              }
+            }
+          });
+      run(ref[0], mode);
+
+      assertEquals(mode.toString(), range(6), order);
+    }
+  }
+
+  private static List<Integer> range(int n) {
+    List<Integer> list = new ArrayList<Integer>(n);
+    for (int i = 0; i < n; i++) {
+      list.add(i);
+    }
+    return list;
+  }
+
+  private static void run(MonitorDispatchThread<Integer> m,
+      MonitorDispatchThread.HandoffMode mode) throws InterruptedException {
+    m.setHandoffMode(mode);
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+    assertFalse(mode.toString(), m.isAlive());
+  }
+
+  /**
+   * Counts the hooks fired.
+   */
+  private static class Hooks extends MonitorDispatchThread.Adapter<Integer> {
+
+    final AtomicInteger started = new AtomicInteger();
+
+    final AtomicInteger completed = new AtomicInteger();
+
+    final AtomicInteger timedOut = new AtomicInteger();
+
+    Hooks(List<Integer> source,
+        MonitorDispatchThread.MonitoredAction<Integer> action) {
+      super(source, action);
+    }
+
+    @Override
+    public void handleStartTask(Integer nextObj) {
+      started.incrementAndGet();
+    }
+
+    @Override
+    public void handleTaskCompleted() {
+      completed.incrementAndGet();
+    }
+
+    @Override
+    public void handleTimeout() {
+      timedOut.incrementAndGet();
+    }
+  }
+}
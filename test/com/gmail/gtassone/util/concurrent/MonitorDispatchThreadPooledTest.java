@@ -0,0 +1,161 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Pooled mode of {@link MonitorDispatchThread}.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadPooledTest {
+
+  private static final int FEED_CAPACITY = 16;
+
+  private static final int MAX_PARKED = 32;
+
+  @Test
+  public void noneRunsElementsConcurrently() throws Exception {
+    Recorder r = run(MonitorDispatchThread.OrderingMode.NONE, 40);
+    assertEquals(40, r.order.size());
+    assertTrue("max " + r.maxBusy.get(), r.maxBusy.get() > 1);
+  }
+
+  @Test
+  public void perKeyKeepsTheOrderOfEachKey() throws Exception {
+    Recorder r = run(MonitorDispatchThread.OrderingMode.PER_KEY, 40);
+    assertEquals(40, r.order.size());
+    assertTrue("max " + r.maxBusy.get(), r.maxBusy.get() > 1);
+    Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+    for (Integer i : r.order) {
+      Integer previous = last.put(i % 3, i);
+      assertTrue(i + " after " + previous, previous == null || previous < i);
+    }
+  }
+
+  @Test
+  public void strictRunsOneElementAtATimeInOrder() throws Exception {
+    Recorder r = run(MonitorDispatchThread.OrderingMode.STRICT, 20);
+    assertEquals(1, r.maxBusy.get());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, r.order.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void hotKeyKeepsFeedBackPressure() throws Exception {
+    final int n = 2000;
+    final AtomicInteger maxDepth = new AtomicInteger();
+    final List<Integer> order = Collections
+        .synchronizedList(new ArrayList<Integer>());
+    final MonitorDispatchThread<Integer>[] ref = newArray();
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        FEED_CAPACITY, new MonitorDispatchThread.MonitoredAction<Integer>() {
+          @Override
+          public void execute(Integer i) throws Exception {
+            int depth = ref[0].getQueueDepth();
+            if (depth > maxDepth.get()) {
+              maxDepth.set(depth);
+            }
+            order.add(i);
+            Thread.sleep(0, 100000);
+          }
+        });
+    ref[0] = m;
+    m.setParallelism(4);
+    m.setOrderingMode(MonitorDispatchThread.OrderingMode.PER_KEY);
+    m.setKeyExtractor(new MonitorDispatchThread.KeyExtractor<Integer>() {
+      @Override
+      public Object getKey(Integer obj) {
+        return "hot";
+      }
+    });
+    m.setMaxParkedElements(MAX_PARKED);
+    m.shouldJoinDispatch(true);
+    m.start();
+
+    for (int i = 0; i < n; i++) {
+      m.submit(i);
+      int parked = m.getQueueDepth() - FEED_CAPACITY;
+      assertTrue("parked " + parked, parked <= MAX_PARKED);
+    }
+    m.endOfInput();
+    m.join(30000);
+    assertFalse(m.isAlive());
+
+    assertTrue("depth " + maxDepth.get(),
+        maxDepth.get() <= FEED_CAPACITY + MAX_PARKED);
+    assertEquals(n, order.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  /**
+   * runs the elements 0 to n-1, keyed by i % 3, on 4 workers.
+   */
+  private static Recorder run(MonitorDispatchThread.OrderingMode mode, int n)
+      throws InterruptedException {
+    List<Integer> source = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++) {
+      source.add(i);
+    }
+    Recorder r = new Recorder();
+    MonitorDispatchThread<Integer> m = new MonitorDispatchThread.Adapter<Integer>(
+        source, r);
+    m.setParallelism(4);
+    m.setOrderingMode(mode);
+    m.setKeyExtractor(new MonitorDispatchThread.KeyExtractor<Integer>() {
+      @Override
+      public Object getKey(Integer obj) {
+        return obj % 3;
+      }
+    });
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(30000);
+    assertFalse(m.isAlive());
+    return r;
+  }
+
+  /**
+   * Records the order in which elements start, and how many run at once.
+   */
+  private static class Recorder implements
+      MonitorDispatchThread.MonitoredAction<Integer> {
+
+    final List<Integer> order = Collections
+        .synchronizedList(new ArrayList<Integer>());
+
+    final AtomicInteger busy = new AtomicInteger();
+
+    final AtomicInteger maxBusy = new AtomicInteger();
+
+    @Override
+    public void execute(Integer i) throws Exception {
+      int now = busy.incrementAndGet();
+      int max;
+      while ((max = maxBusy.get()) < now && !maxBusy.compareAndSet(max, now)) {
+      }
+      order.add(i);
+      Thread.sleep(5);
+      busy.decrementAndGet();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static MonitorDispatchThread<Integer>[] newArray() {
+    return new MonitorDispatchThread[1];
+  }
+}
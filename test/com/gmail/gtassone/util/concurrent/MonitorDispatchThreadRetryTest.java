@@ -0,0 +1,179 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Retries and dead letters of {@link MonitorDispatchThread} under a
+ * {@link RetryPolicy}.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadRetryTest {
+
+  @Test
+  public void transientFailureIsRetriedUntilItSucceeds() throws Exception {
+    final Failing action = new Failing(2);
+    Sink sink = new Sink();
+    MonitorDispatchThread<String> m = new MonitorDispatchThread.Adapter<String>(
+        Arrays.asList("a", "b"), action);
+    m.setRetryPolicy(new RetryPolicy<String>(3, 5, 2, 20));
+    m.setDeadLetterSink(sink);
+    run(m);
+
+    assertEquals(3, action.attempts("a"));
+    assertEquals(3, action.attempts("b"));
+    assertEquals(Arrays.asList("a", "b"), sorted(action.succeeded));
+    assertTrue(sink.elements.isEmpty());
+  }
+
+  @Test
+  public void exhaustedElementIsDeadLetteredOnce() throws Exception {
+    final Failing action = new Failing(Integer.MAX_VALUE);
+    Sink sink = new Sink();
+    MonitorDispatchThread<String> m = new MonitorDispatchThread.Adapter<String>(
+        Arrays.asList("a", "b", "c"), action);
+    m.setRetryPolicy(new RetryPolicy<String>(3, 0, 1, 0));
+    m.setDeadLetterSink(sink);
+    run(m);
+
+    assertEquals(Arrays.asList("a", "b", "c"), sorted(sink.elements));
+    for (String s : new String[] { "a", "b", "c" }) {
+      assertEquals(s, 3, action.attempts(s));
+    }
+    for (int attempts : sink.attempts) {
+      assertEquals(3, attempts);
+    }
+    assertSame(Failure.class, sink.failures.get(0).getClass());
+  }
+
+  @Test
+  public void rejectedFailureSkipsTheRetries() throws Exception {
+    final Failing action = new Failing(Integer.MAX_VALUE);
+    Sink sink = new Sink();
+    MonitorDispatchThread<String> m = new MonitorDispatchThread.Adapter<String>(
+        Arrays.asList("a"), action);
+    RetryPolicy<String> policy = new RetryPolicy<String>(5, 0, 1, 0);
+    policy.setRetryOn(new RetryPolicy.RetryPredicate<String>() {
+      @Override
+      public boolean shouldRetry(String obj, Exception cause) {
+        return !(cause instanceof Failure);
+      }
+    });
+    m.setRetryPolicy(policy);
+    m.setDeadLetterSink(sink);
+    run(m);
+
+    assertEquals(1, action.attempts("a"));
+    assertEquals(Arrays.asList("a"), sink.elements);
+    assertEquals(1, sink.attempts.get(0).intValue());
+  }
+
+  @Test
+  public void delayGrowsUpToTheCap() {
+    RetryPolicy<String> policy = new RetryPolicy<String>(10, 10, 2, 50);
+    policy.setJitter(0);
+    assertEquals(10, policy.getDelay(1));
+    assertEquals(20, policy.getDelay(2));
+    assertEquals(40, policy.getDelay(3));
+    assertEquals(50, policy.getDelay(4));
+    assertEquals(50, policy.getDelay(9));
+
+    policy.setJitter(0.5);
+    for (int i = 0; i < 100; i++) {
+      long delay = policy.getDelay(4);
+      assertTrue("delay " + delay, delay >= 25 && delay <= 75);
+    }
+    assertFalse(policy.shouldRetry("a", new Failure(), 10));
+  }
+
+  private static List<String> sorted(List<String> list) {
+    List<String> copy = new ArrayList<String>(list);
+    Collections.sort(copy);
+    return copy;
+  }
+
+  private static void run(MonitorDispatchThread<String> m)
+      throws InterruptedException {
+    m.shouldJoinDispatch(true);
+    m.start();
+    m.join(10000);
+    assertFalse(m.isAlive());
+  }
+
+  /**
+   * The failure thrown by {@link Failing}.
+   */
+  private static class Failure extends Exception {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Fails the first executions of every element.
+   */
+  private static class Failing implements
+      MonitorDispatchThread.MonitoredAction<String> {
+
+    private final int failures;
+
+    private final ConcurrentMap<String, AtomicInteger> executions = new ConcurrentHashMap<String, AtomicInteger>();
+
+    final List<String> succeeded = Collections
+        .synchronizedList(new ArrayList<String>());
+
+    Failing(int failures) {
+      this.failures = failures;
+    }
+
+    int attempts(String s) {
+      AtomicInteger n = executions.get(s);
+      return n == null ? 0 : n.get();
+    }
+
+    @Override
+    public void execute(String s) throws Exception {
+      executions.putIfAbsent(s, new AtomicInteger());
+      if (executions.get(s).incrementAndGet() <= failures) {
+        throw new Failure();
+      }
+      succeeded.add(s);
+    }
+  }
+
+  /**
+   * Records the dead letters.
+   */
+  private static class Sink implements
+      MonitorDispatchThread.DeadLetterSink<String> {
+
+    final List<String> elements = Collections
+        .synchronizedList(new ArrayList<String>());
+
+    final List<Integer> attempts = Collections
+        .synchronizedList(new ArrayList<Integer>());
+
+    final List<Exception> failures = Collections
+        .synchronizedList(new ArrayList<Exception>());
+
+    @Override
+    public void deadLetter(String obj, int attempt, Exception lastFailure) {
+      elements.add(obj);
+      attempts.add(attempt);
+      failures.add(lastFailure);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * An execution which returns or throws after its timeout must leave the retry
+ * or dead letter to the timeout, in every dispatch mode.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class MonitorDispatchThreadTimeoutTest {
+
+  private static final int TIMEOUT_MILLIS = 30;
+
+  private static final long LATE_MILLIS = 150;
+
+  private enum Mode {
+    MONITOR, PARKING, INLINE, POOLED
+  }
+
+  @Test
+  public void lateThrowIsDeadLetteredOnce() throws Exception {
+    for (Mode mode : Mode.values()) {
+      Sink sink = new Sink();
+      MonitorDispatchThread<String> m = newThread(mode, new Late(true));
+      m.setDeadLetterSink(sink);
+      run(m);
+
+      assertEquals(mode.toString(), 1, sink.failures.size());
+      assertTrue(mode.toString(),
+          sink.failures.get(0) instanceof TimeoutException);
+    }
+  }
+
+  @Test
+  public void lateReturnIsNotCheckpointed() throws Exception {
+    for (Mode mode : Mode.values()) {
+      Sink sink = new Sink();
+      Store store = new Store();
+      MonitorDispatchThread<String> m = newThread(mode, new Late(false));
+      m.setDeadLetterSink(sink);
+      m.setCheckpointStore(store);
+      m.setCheckpointKeyExtractor(new MonitorDispatchThread.KeyExtractor<String>() {
+        @Override
+        public Object getKey(String obj) {
+          return obj;
+        }
+      });
+      run(m);
+
+      assertEquals(mode.toString(), 1, sink.failures.size());
+      assertFalse(mode.toString(), store.isCompleted("late"));
+    }
+  }
+
+  @Test
+  public void lateReturnKeepsTheRetryBudget() throws Exception {
+    for (Mode mode : Mode.values()) {
+      Sink sink = new Sink();
+      Late late = new Late(false);
+      MonitorDispatchThread<String> m = newThread(mode, late);
+      m.setDeadLetterSink(sink);
+      m.setRetryPolicy(new RetryPolicy<String>(2, 0, 1, 0));
+      run(m);
+
+      assertEquals(mode.toString(), 2, late.executions.get());
+      assertEquals(mode.toString(), 1, sink.failures.size());
+      assertEquals(mode.toString(), 2, sink.attempts.get(0).intValue());
+    }
+  }
+
+  private static MonitorDispatchThread<String> newThread(Mode mode,
+      MonitorDispatchThread.MonitoredAction<String> action) {
+    MonitorDispatchThread<String> m = new MonitorDispatchThread.Adapter<String>(
+        Collections.singletonList("late"), action);
+    m.setTimeout(TIMEOUT_MILLIS);
+    m.shouldJoinDispatch(true);
+    switch (mode) {
+    case PARKING:
+      m.setHandoffMode(MonitorDispatchThread.HandoffMode.PARKING);
+      break;
+    case INLINE:
+      m.setTimeoutWheel(TimeoutWheel.getShared());
+      break;
+    case POOLED:
+      m.setParallelism(2);
+      break;
+    default:
+      break;
+    }
+    return m;
+  }
+
+  private static void run(MonitorDispatchThread<String> m)
+      throws InterruptedException {
+    m.start();
+    m.join(10000);
+    assertFalse(m.isAlive());
+  }
+
+  /**
+   * Returns or throws well after the timeout.
+   */
+  private static class Late implements
+      MonitorDispatchThread.MonitoredAction<String> {
+
+    private final boolean fail;
+
+    private final AtomicInteger executions = new AtomicInteger();
+
+    Late(boolean fail) {
+      this.fail = fail;
+    }
+
+    @Override
+    public void execute(String obj) throws Exception {
+      executions.incrementAndGet();
+      long until = System.nanoTime() + LATE_MILLIS * 1000000L;
+      // busy so that an interrupt from the timeout does not cut it short.
+      while (System.nanoTime() - until < 0) {
+        Thread.yield();
+      }
+      if (fail) {
+        throw new IllegalStateException("late failure");
+      }
+    }
+  }
+
+  private static class Sink implements
+      MonitorDispatchThread.DeadLetterSink<String> {
+
+    private final List<Exception> failures = Collections
+        .synchronizedList(new ArrayList<Exception>());
+
+    private final List<Integer> attempts = Collections
+        .synchronizedList(new ArrayList<Integer>());
+
+    @Override
+    public void deadLetter(String obj, int attempt, Exception lastFailure) {
+      failures.add(lastFailure);
+      attempts.add(attempt);
+    }
+  }
+
+  private static class Store implements CheckpointStore {
+
+    private final Set<String> keys = Collections
+        .synchronizedSet(new HashSet<String>());
+
+    @Override
+    public boolean isCompleted(long index) {
+      return false;
+    }
+
+    @Override
+    public boolean isCompleted(String key) {
+      return keys.contains(key);
+    }
+
+    @Override
+    public void completed(long index) {
+    }
+
+    @Override
+    public void completed(String key) {
+      keys.add(key);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link AsynchronousFuture} with many calls
+ * pending at once. One thread initiates every call, each parking its future
+ * in an inbox; responder threads then complete them all. The live thread
+ * count is sampled while every call is pending, to show that a pending call
+ * holds no thread. Not a unit test; run its main method.
+ * <p>
+ * Arguments: the number of futures (100000 by default), of responder threads
+ * (4 by default) and of rounds (3 by default).
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class PendingFuturesBenchmark {
+
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private static final ConcurrentLinkedQueue<Call> inbox = new ConcurrentLinkedQueue<Call>();
+
+  public static void main(String[] args) throws Exception {
+    int futures = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int responders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+    for (int round = 0; round < rounds; round++) {
+      final CountDownLatch done = new CountDownLatch(futures);
+      CompletionListener<Integer> listener = new CompletionListener.Adapter<Integer>() {
+        @Override
+        public void onSuccess(Integer value) {
+          done.countDown();
+        }
+      };
+
+      long start = System.nanoTime();
+      for (int i = 0; i < futures; i++) {
+        Call call = new Call(i);
+        call.addListener(listener);
+        call.run();
+      }
+      long initiated = System.nanoTime();
+      int threads = Thread.activeCount();
+
+      Thread[] workers = new Thread[responders];
+      for (int k = 0; k < responders; k++) {
+        workers[k] = new Thread() {
+          @Override
+          public void run() {
+            Call call;
+            while ((call = inbox.poll()) != null) {
+              call.setResponseValue(call.id);
+            }
+          }
+        };
+        workers[k].start();
+      }
+      done.await();
+      long completed = System.nanoTime();
+
+      System.out.println("round " + round + ": " + futures + " pending with "
+          + threads + " live threads; initiate "
+          + (initiated - start) / 1000000 + " ms, complete "
+          + (completed - initiated) / 1000000 + " ms, "
+          + futures * 1000L / Math.max(1, (completed - start) / 1000000)
+          + " futures/s");
+    }
+    System.exit(0);
+  }
+
+  /**
+   * A call whose request is the inbox.
+   */
+  private static class Call extends AsynchronousFuture<Integer> {
+
+    private final int id;
+
+    Call(int id) {
+      super(TIMEOUT_MILLIS);
+      this.id = id;
+    }
+
+    @Override
+    public void initiateAsynchronousCall() {
+      inbox.add(this);
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    @Override
+    public void onInterrupt(InterruptedException e) {
+    }
+
+    @Override
+    public void onCancellation(CancellationException e) {
+    }
+  }
+}
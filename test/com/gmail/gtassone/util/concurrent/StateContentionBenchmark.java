@@ -0,0 +1,127 @@
+package com.gmail.gtassone.util.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the state transitions of {@link AsynchronousFuture} under
+ * contention: setter threads race setResponseValue and getComputationState on
+ * every future while getter threads block in get() on them. Prints the
+ * setter operations per second. Not a unit test, and a plain harness since
+ * JMH is not a dependency of this tree; run its main method.
+ * <p>
+ * Arguments: the number of futures (200000 by default), of setter threads and
+ * of getter threads (8 each by default), and of rounds (5 by default).
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class StateContentionBenchmark {
+
+  private static volatile long sink;
+
+  public static void main(String[] args) throws Exception {
+    int futures = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int setters = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int getters = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+    for (int round = 0; round < rounds; round++) {
+      final Call[] calls = new Call[futures];
+      for (int i = 0; i < futures; i++) {
+        calls[i] = new Call();
+        calls[i].run();
+      }
+
+      final CountDownLatch go = new CountDownLatch(1);
+      final AtomicLong operations = new AtomicLong();
+      Thread[] threads = new Thread[setters + getters];
+      for (int k = 0; k < setters; k++) {
+        final int first = k;
+        threads[k] = new Thread() {
+          @Override
+          public void run() {
+            await(go);
+            long ops = 0;
+            for (int i = 0; i < calls.length; i++) {
+              // each setter starts elsewhere so every future is raced.
+              Call call = calls[(i + first * 7919) % calls.length];
+              call.setResponseValue(i);
+              if (call.getComputationState() != null) {
+                ops += 2;
+              }
+            }
+            operations.addAndGet(ops);
+          }
+        };
+      }
+      for (int k = 0; k < getters; k++) {
+        final int first = k;
+        threads[setters + k] = new Thread() {
+          @Override
+          public void run() {
+            await(go);
+            long sum = 0;
+            for (int i = 0; i < calls.length; i++) {
+              try {
+                sum += calls[(i + first * 104729) % calls.length].get();
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            }
+            sink += sum;
+          }
+        };
+      }
+
+      for (Thread t : threads) {
+        t.start();
+      }
+      long start = System.nanoTime();
+      go.countDown();
+      for (Thread t : threads) {
+        t.join();
+      }
+      long nanos = System.nanoTime() - start;
+      System.out.println("round " + round + ": " + operations.get() * 1000
+          / Math.max(1, nanos / 1000000) + " setter ops/s, "
+          + nanos / 1000000 + " ms");
+    }
+    System.exit(0);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A call completed only by the setter threads.
+   */
+  private static class Call extends AsynchronousFuture<Integer> {
+
+    Call() {
+      super(60000);
+    }
+
+    @Override
+    public void initiateAsynchronousCall() {
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    @Override
+    public void onInterrupt(InterruptedException e) {
+    }
+
+    @Override
+    public void onCancellation(CancellationException e) {
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.gmail.gtassone.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Expiry and cancellation of {@link TimeoutWheel} deadlines.
+ *
+ * @author <a href=mailto:gtassone@gmail.com>GTassone</a>
+ * @version $Revision$
+ */
+public class TimeoutWheelTest {
+
+  @Test
+  public void deadlineExpiresNeverEarly() throws Exception {
+    TimeoutWheel wheel = new TimeoutWheel(5, TimeUnit.MILLISECONDS, 16);
+    try {
+      final CountDownLatch fired = new CountDownLatch(1);
+      final long start = System.nanoTime();
+      final AtomicReference<Long> elapsed = new AtomicReference<Long>();
+      // longer than one revolution of the wheel.
+      TimeoutWheel.Timeout t = wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          elapsed.set(System.nanoTime() - start);
+          fired.countDown();
+        }
+      }, 120, TimeUnit.MILLISECONDS);
+
+      assertTrue(fired.await(5, TimeUnit.SECONDS));
+      assertTrue("after " + elapsed.get(),
+          elapsed.get() >= TimeUnit.MILLISECONDS.toNanos(120));
+      assertTrue(t.isExpired());
+      assertFalse(t.isCancelled());
+      assertFalse(t.cancel());
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  public void cancelledDeadlineNeverFires() throws Exception {
+    TimeoutWheel wheel = new TimeoutWheel(5, TimeUnit.MILLISECONDS, 16);
+    try {
+      final AtomicInteger runs = new AtomicInteger();
+      Runnable count = new Runnable() {
+        @Override
+        public void run() {
+          runs.incrementAndGet();
+        }
+      };
+      TimeoutWheel.Timeout cancelled = wheel.schedule(count, 30,
+          TimeUnit.MILLISECONDS);
+      assertTrue(cancelled.cancel());
+      assertFalse(cancelled.cancel());
+
+      final CountDownLatch later = new CountDownLatch(1);
+      wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          later.countDown();
+        }
+      }, 80, TimeUnit.MILLISECONDS);
+
+      assertTrue(later.await(5, TimeUnit.SECONDS));
+      assertEquals(0, runs.get());
+      assertTrue(cancelled.isCancelled());
+      assertFalse(cancelled.isExpired());
+    } finally {
+      wheel.stop();
+    }
+  }
+
+  @Test
+  public void failingTaskGoesToTheHandler() throws Exception {
+    final AtomicReference<Throwable> reported = new AtomicReference<Throwable>();
+    TimeoutWheel wheel = new TimeoutWheel(5, TimeUnit.MILLISECONDS, 16,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "wheel");
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+              @Override
+              public void uncaughtException(Thread thread, Throwable e) {
+                reported.set(e);
+              }
+            });
+            return t;
+          }
+        });
+    try {
+      final IllegalStateException failure = new IllegalStateException();
+      wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          throw failure;
+        }
+      }, 10, TimeUnit.MILLISECONDS);
+      final CountDownLatch next = new CountDownLatch(1);
+      wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          next.countDown();
+        }
+      }, 40, TimeUnit.MILLISECONDS);
+
+      assertTrue(next.await(5, TimeUnit.SECONDS));
+      assertSame(failure, reported.get());
+    } finally {
+      wheel.stop();
+    }
+  }
+}